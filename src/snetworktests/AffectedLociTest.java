@@ -0,0 +1,106 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speciesnetwork.ConstantPopulation;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.NetworkParser;
+import speciesnetwork.operators.CoordinatedDeleteReticulation;
+import speciesnetwork.operators.RebuildEmbedding;
+import speciesnetwork.simulator.CoalescentSimulator;
+
+/*
+ * The reticulation branch from S1 or from S2 to H1 is deleted, and only the affected loci are re-simulated. The second
+ * locus only has tips in species A, and coalesces in the branch between A and S1 without crossing any species node.
+ * Deleting the branch from S1 joins this branch with the one above S1, so the locus must be re-simulated, while
+ * deleting the branch from S2 keeps it unchanged.
+ */
+public class AffectedLociTest {
+    final String newickSpeciesNetwork = "(((A:0.2,#H1[&gamma=0.4]:0.1)S1:0.3,((B:0.1)#H1:0.2,C:0.3)S2:0.2)R:0.1)";
+    final String newickGeneTree1 = "(((a1:0.1,a2:0.1):0.5,b1:0.6):0.1,c1:0.7)";
+    final String newickGeneTree2 = "(a1:0.1,a2:0.1)";
+    final double rootHeight2 = 0.1;
+
+    private NetworkParser speciesNetwork;
+    private List<EmbeddedTree> geneTrees;
+
+    @Test
+    public void testLocusLackingSpecies() {
+        boolean joined = false, kept = false;
+        for (int seed = 1; seed <= 20; seed++) {
+            Randomizer.setSeed(seed);
+            final CoordinatedDeleteReticulation operator = newOperator();
+            final double logHR = operator.proposal();
+            assertTrue(logHR > Double.NEGATIVE_INFINITY);
+
+            final NetworkNode nodeA = speciesNetwork.getNode(speciesNetwork.getNodeNumber("A"));
+            final double height2 = geneTrees.get(1).getRoot().getHeight();
+            if (nodeA.getParentByBranch(nodeA.gammaBranchNumber) == speciesNetwork.getRoot()) {
+                assertNotEquals(rootHeight2, height2, 0.0);  // re-simulated
+                joined = true;
+            } else {
+                assertEquals(rootHeight2, height2, 0.0);
+                kept = true;
+            }
+        }
+        assertTrue(joined && kept);
+    }
+
+    private CoordinatedDeleteReticulation newOperator() {
+        List<Taxon> superSetList = new ArrayList<>();
+        List<Taxon> taxonListA = new ArrayList<>();
+        taxonListA.add(new Taxon("a1"));
+        taxonListA.add(new Taxon("a2"));
+        superSetList.add(new TaxonSet("A", taxonListA));
+        List<Taxon> taxonListB = new ArrayList<>();
+        taxonListB.add(new Taxon("b1"));
+        superSetList.add(new TaxonSet("B", taxonListB));
+        List<Taxon> taxonListC = new ArrayList<>();
+        taxonListC.add(new Taxon("c1"));
+        superSetList.add(new TaxonSet("C", taxonListC));
+
+        TreeParser speciesTree = new TreeParser();
+        speciesTree.initByName("newick", newickSpeciesNetwork, "IsLabelledNewick", true, "adjustTipHeights", false);
+        speciesNetwork = new NetworkParser();
+        speciesNetwork.initByName("tree", speciesTree, "taxonset", new TaxonSet(superSetList));
+
+        geneTrees = new ArrayList<>();
+        for (String newick : new String[]{newickGeneTree1, newickGeneTree2}) {
+            TreeParser treeParser = new TreeParser();
+            treeParser.initByName("newick", newick, "IsLabelledNewick", true);
+            EmbeddedTree geneTree = new EmbeddedTree(treeParser.getRoot());
+            geneTree.ploidy = 2.0;  // not read from the input by this constructor
+            geneTrees.add(geneTree);
+        }
+        RebuildEmbedding rebuildOperator = new RebuildEmbedding();
+        rebuildOperator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees);
+        assertTrue(rebuildOperator.rebuildEmbedding());
+
+        final RealParameter popSizes = new RealParameter("0.1");
+        ConstantPopulation populationModel = new ConstantPopulation();
+        populationModel.initByName("popSizes", popSizes);
+        populationModel.initPopSizes(speciesNetwork.getBranchCount());
+        populationModel.initPopSizes(0.1);
+        MultispeciesCoalescent MSNC = new MultispeciesCoalescent();
+        MSNC.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "populationModel", populationModel);
+        CoalescentSimulator coalSimulator = new CoalescentSimulator();
+        coalSimulator.initByName("speciesNetwork", speciesNetwork, "popSizes", popSizes, "geneTree", geneTrees);
+
+        CoordinatedDeleteReticulation operator = new CoordinatedDeleteReticulation();
+        operator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "MSNC", MSNC,
+                "coalescentSimulator", coalSimulator, "affectedLociOnly", true);
+        return operator;
+    }
+}
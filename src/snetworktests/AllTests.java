@@ -9,7 +9,17 @@ import org.junit.runners.Suite.SuiteClasses;
     ConstantPopIntegratedTest.class,
     ConstantPopulationTest.class,
     NetworkParserTest.class,
-    BirthHybridizationTest.class
+    BirthHybridizationTest.class,
+    BirthHybridSimulatorTest.class,
+    EmbeddingTest.class,
+    NetworkEditTest.class,
+    LineageIntervalsTest.class,
+    SimulatorThreadsTest.class,
+    RebuildEmbeddingTest.class,
+    PosteriorPredictiveSimulatorTest.class,
+    AffectedLociTest.class,
+    DelayedAcceptanceTest.class,
+    MultipleTryReticulationTest.class
 })
 
 public class AllTests {
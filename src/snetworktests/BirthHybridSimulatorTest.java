@@ -0,0 +1,181 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.simulator.BirthHybridSimulator;
+
+/*
+ * The networks simulated conditioned on the number of species (and of hybridizations) are compared with those of the
+ * forward simulation kept only if they meet the condition, by the means of a few statistics. With high birth and
+ * hybridization rates, the number of lineages often exceeds the default cap on it before coming back down, so the cap
+ * must be raised for the paths exceeding it not to be excluded.
+ */
+public class BirthHybridSimulatorTest {
+    final int nSpecies = 3;
+    final String origin = "1.0";
+    final String birthRate = "2.0";
+    final String hybridRate = "1.5";
+    final int nSamples = 2000;
+    final String highBirthRate = "12.0";
+    final String highHybridRate = "3.0";
+
+    // a simulator whose protected simulate() can be called here
+    private static class Simulator extends BirthHybridSimulator {
+        Network next() {
+            return simulate();
+        }
+    }
+
+    @Test
+    public void testNumberOfSpecies() {
+        Randomizer.setSeed(127);
+        final Simulator conditioned = newSimulator(newSpeciesNetwork(), null);
+        final Simulator forward = newSimulator(new Network(), null);
+
+        final double[][] expected = new double[4][nSamples];
+        final double[][] observed = new double[4][nSamples];
+        for (int i = 0; i < nSamples; i++) {
+            Network network;
+            do {
+                network = forward.next();
+            } while (network.getLeafNodeCount() != nSpecies);
+            collectStatistics(network, expected, i);
+            collectStatistics(conditioned.next(), observed, i);
+        }
+        for (int s = 0; s < 4; s++)
+            assertMeanEquals(expected[s], observed[s]);
+    }
+
+    @Test
+    public void testNumberOfHybridizations() {
+        Randomizer.setSeed(131);
+        final Simulator conditioned = newSimulator(newSpeciesNetwork(), 1);
+        final Simulator forward = newSimulator(new Network(), null);
+
+        final double[][] expected = new double[4][nSamples];
+        final double[][] observed = new double[4][nSamples];
+        for (int i = 0; i < nSamples; i++) {
+            Network network;
+            do {
+                network = forward.next();
+            } while (network.getLeafNodeCount() != nSpecies || network.getReticulationNodeCount() != 1 ||
+                     network.hasBubble());
+            collectStatistics(network, expected, i);
+            collectStatistics(conditioned.next(), observed, i);
+        }
+        assertMeanEquals(expected[2], observed[2]);
+        assertMeanEquals(expected[3], observed[3]);
+    }
+
+    @Test
+    public void testHighHybridizationRate() {
+        Randomizer.setSeed(137);
+        final Simulator conditioned = newSimulator(newSpeciesNetwork(), null, highBirthRate, highHybridRate, null);
+        final Simulator forward = newSimulator(new Network(), null, highBirthRate, highHybridRate, null);
+
+        final int nHighSamples = nSamples / 2;
+        final double[][] expected = new double[2][nHighSamples];
+        final double[][] observed = new double[2][nHighSamples];
+        for (int i = 0; i < nHighSamples; i++) {
+            Network network;
+            do {
+                network = forward.next();
+            } while (network.getLeafNodeCount() != nSpecies);
+            collectLineageCounts(network, expected, i);
+            collectLineageCounts(conditioned.next(), observed, i);
+        }
+        assertMeanEquals(expected[0], observed[0]);
+        assertMeanEquals(expected[1], observed[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSmallMaxLineages() {
+        // the paths exceeding this cap are far from negligible
+        newSimulator(newSpeciesNetwork(), null, highBirthRate, highHybridRate, 16).next();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyBubbles() {
+        // one species and one hybridization always make a bubble, which must not loop forever
+        newSimulator(newSpeciesNetwork(1), 1).next();
+    }
+
+    private Network newSpeciesNetwork() {
+        return newSpeciesNetwork(nSpecies);
+    }
+
+    private Network newSpeciesNetwork(int nSpecies) {
+        List<Taxon> species = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++)
+            species.add(new Taxon("S" + i));
+        Network network = new Network();
+        network.initByName("taxonset", new TaxonSet(species));
+        return network;
+    }
+
+    private Simulator newSimulator(Network network, Integer nHybrid) {
+        return newSimulator(network, nHybrid, birthRate, hybridRate, null);
+    }
+
+    private Simulator newSimulator(Network network, Integer nHybrid, String birthRate, String hybridRate,
+                                   Integer maxLineages) {
+        final List<Object> inputs = new ArrayList<>(Arrays.asList("speciesNetwork", network,
+                "origin", new RealParameter(origin), "birthRate", new RealParameter(birthRate),
+                "hybridRate", new RealParameter(hybridRate)));
+        if (nHybrid != null)
+            inputs.addAll(Arrays.asList("nHybrid", nHybrid));
+        if (maxLineages != null)
+            inputs.addAll(Arrays.asList("maxLineages", maxLineages));
+        Simulator simulator = new Simulator();
+        simulator.initByName(inputs.toArray());
+        return simulator;
+    }
+
+    // the number of reticulations, whether there is none, the root height, and the height of the oldest reticulation
+    private static void collectStatistics(Network network, double[][] statistics, int i) {
+        final int nReticulations = network.getReticulationNodeCount();
+        statistics[0][i] = nReticulations;
+        statistics[1][i] = nReticulations == 0 ? 1.0 : 0.0;
+        statistics[2][i] = network.getRoot().getHeight();
+        for (NetworkNode node : network.getReticulationNodes())
+            statistics[3][i] = Math.max(statistics[3][i], node.getHeight());
+    }
+
+    // the number of reticulations, and the largest number of lineages at any time
+    private static void collectLineageCounts(Network network, double[][] statistics, int i) {
+        final List<NetworkNode> nodes = new ArrayList<>(Arrays.asList(network.getInternalNodes()));
+        nodes.sort(Comparator.comparingDouble(NetworkNode::getHeight).reversed());
+        int nLineages = 1, maxLineages = 1;
+        for (NetworkNode node : nodes) {
+            nLineages += node.isReticulation() ? -1 : 1;
+            maxLineages = Math.max(maxLineages, nLineages);
+        }
+        statistics[0][i] = network.getReticulationNodeCount();
+        statistics[1][i] = maxLineages;
+    }
+
+    // the means of the two samples must be within 4 standard errors of each other
+    private static void assertMeanEquals(double[] expected, double[] observed) {
+        final double[] mean = new double[2], var = new double[2];
+        final double[][] samples = {expected, observed};
+        for (int k = 0; k < 2; k++) {
+            for (double x : samples[k])
+                mean[k] += x / samples[k].length;
+            for (double x : samples[k])
+                var[k] += (x - mean[k]) * (x - mean[k]) / (samples[k].length - 1);
+        }
+        final double stdErr = Math.sqrt(var[0] / expected.length + var[1] / observed.length);
+        assertEquals(mean[0], mean[1], 4 * stdErr + 1e-12);
+    }
+}
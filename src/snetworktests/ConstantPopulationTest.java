@@ -3,11 +3,15 @@ package snetworktests;
 import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
 
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.alignment.Taxon;
 import beast.base.evolution.alignment.TaxonSet;
 import speciesnetwork.ConstantPopulation;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.MultispeciesCoalescent.CoalescentStatistics;
+import speciesnetwork.NetworkNode;
 import speciesnetwork.PopulationSizeModel;
 
 public class ConstantPopulationTest extends PopulationTestHelper {
@@ -71,6 +75,69 @@ public class ConstantPopulationTest extends PopulationTestHelper {
         super.testLogP();
     }
 
+    @Test
+    public void testGibbsConditional() {
+        super.testLogP();
+
+        // the MSNC as a function of the population size of one branch must be -q*log(N) - gamma/N + const,
+        // with q and gamma used by the Gibbs operator, so that the full conditional is inverse-gamma
+        final CoalescentStatistics stats = msc.getStatistics();
+        final double[] popSizes = {0.05, 0.1, 0.3, 1.0, 5.0};
+        for (int i = 0; i < nBranches; i++) {
+            final int[] eventCounts = stats.getEventCounts(i);
+            final int q = ConstantPopulation.getBranchEventCount(eventCounts);
+            final double gamma = ConstantPopulation.getBranchGamma(stats.getGenePloidy(), stats.getCoalescentTimes(i),
+                                                                   stats.getLineageCounts(i), eventCounts);
+            double constant = Double.NaN;
+            for (double branchPopSize : popSizes) {
+                final double residual = calculateLogP(i, branchPopSize) + q * Math.log(branchPopSize) + gamma / branchPopSize;
+                if (Double.isNaN(constant))
+                    constant = residual;
+                assertEquals(constant, residual, allowedError);
+            }
+        }
+    }
+
+    @Test
+    public void testGammaConditional() {
+        super.testLogP();
+
+        // the MSNC as a function of the gamma prob of a reticulation node must be c1*log(gamma) + c2*log(1-gamma) + const,
+        // with c1 and c2 used by the Gibbs operator (GammaProbGibbs), so that the full conditional is beta
+        final CoalescentStatistics stats = msc.getStatistics();
+        final double[] gammaProbs = {0.05, 0.2, 0.4, 0.7, 0.95};
+        for (NetworkNode node : speciesNetwork.getReticulationNodes()) {
+            final int c1 = stats.getBottomLineageCount(node.gammaBranchNumber);
+            final int c2 = stats.getBottomLineageCount(node.gammaBranchNumber + 1);
+            assertEquals(5, c1 + c2);  // the lineages of both gene trees through H1
+            final double oldGammaProb = node.getGammaProb();
+            double constant = Double.NaN;
+            for (double gammaProb : gammaProbs) {
+                node.setGammaProb(gammaProb);
+                final double residual = msc.calculateLogP() - c1 * Math.log(gammaProb) - c2 * Math.log(1.0 - gammaProb);
+                if (Double.isNaN(constant))
+                    constant = residual;
+                assertEquals(constant, residual, allowedError);
+            }
+            node.setGammaProb(oldGammaProb);
+        }
+    }
+
+    // the MSNC with the population size of one branch changed
+    private double calculateLogP(int branchNr, double branchPopSize) {
+        final StringBuilder values = new StringBuilder();
+        for (int i = 0; i < nBranches; i++)
+            values.append(i == branchNr ? branchPopSize : popSize).append(" ");
+        RealParameter popSizesParameter = new RealParameter();
+        popSizesParameter.initByName("value", values.toString().trim());
+        PopulationSizeModel populationModel = new ConstantPopulation();
+        populationModel.initByName("popSizes", popSizesParameter);
+
+        MultispeciesCoalescent branchMSC = new MultispeciesCoalescent();
+        branchMSC.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "populationModel", populationModel);
+        return branchMSC.calculateLogP();
+    }
+
     @Override
     public TaxonSet generateSuperset() {
         List<Taxon> superSetList = new ArrayList<>();
@@ -0,0 +1,159 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speciesnetwork.BirthHybridizationModel;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.operators.DelayedAcceptance;
+import speciesnetwork.operators.NodeUniform;
+
+/*
+ * The node heights of a species tree are sampled from a posterior made of the birth-hybridization prior, which is used
+ * in the first stage, and of an exponential density of the root height standing for the rest of the posterior. The
+ * means of the node heights sampled with the node uniform operator wrapped in the delayed acceptance must be those
+ * sampled with the operator itself, compared by the means of batches of the chains. A Gibbs move must be accepted
+ * without going through either stage.
+ */
+public class DelayedAcceptanceTest {
+    final int nSpecies = 4;
+    final int nSteps = 400000;
+    final int nBatches = 200;
+    final double rootRate = 1.5;
+
+    // a network whose protected store() can be called here
+    private static class StoredNetwork extends Network {
+        void storeNetwork() {
+            store();
+        }
+    }
+
+    // an operator resampling the height of the root, as a Gibbs move would do
+    private static class GibbsMove extends Operator {
+        final Network network;
+
+        GibbsMove(Network network) {
+            this.network = network;
+        }
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double proposal() {
+            network.startEditing(this);
+            final NetworkNode root = network.getRoot();
+            double lower = 0.0;
+            for (NetworkNode child : root.getChildren())
+                lower = Math.max(lower, child.getHeight());
+            final double upper = network.getOrigin().getHeight();
+            root.setHeight(lower + Randomizer.nextDouble() * (upper - lower));
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    @Test
+    public void testNodeHeights() {
+        final double[][] expected = sampleNodeHeights(false, 151);
+        final double[][] observed = sampleNodeHeights(true, 157);
+        for (int i = 0; i < nSpecies - 1; i++)
+            assertMeanEquals(expected[i], observed[i]);
+    }
+
+    @Test
+    public void testGibbsMove() {
+        Randomizer.setSeed(163);
+        final StoredNetwork network = newNetwork();
+        final DelayedAcceptance operator = new DelayedAcceptance();
+        operator.initByName("operator", new GibbsMove(network), "prior", newPrior(network));
+        for (int step = 0; step < 100; step++)
+            assertEquals(Double.POSITIVE_INFINITY, operator.proposal(), 0.0);
+        assertEquals(0, operator.getFirstStageRejectedCount());
+    }
+
+    // the batch means of the node heights, sorted, sampled with or without the delayed acceptance
+    private double[][] sampleNodeHeights(boolean delayed, long seed) {
+        Randomizer.setSeed(seed);
+        final StoredNetwork network = newNetwork();
+        final BirthHybridizationModel prior = newPrior(network);
+        final NodeUniform nodeUniform = new NodeUniform();
+        nodeUniform.initByName("speciesNetwork", network);
+        final DelayedAcceptance delayedAcceptance = new DelayedAcceptance();
+        delayedAcceptance.initByName("operator", nodeUniform, "prior", prior);
+        final Operator operator = delayed ? delayedAcceptance : nodeUniform;
+
+        final int batchSize = nSteps / nBatches;
+        final double[][] batchMeans = new double[nSpecies - 1][nBatches];
+        double logP = logPosterior(prior, network);
+        for (int step = 0; step < nSteps; step++) {
+            network.storeNetwork();
+            final double logHR = operator.proposal();
+            final double newLogP = logPosterior(prior, network);
+            if (logHR != Double.NEGATIVE_INFINITY && Math.log(Randomizer.nextDouble()) < newLogP - logP + logHR)
+                logP = newLogP;
+            else
+                network.restore();
+
+            final double[] heights = getNodeHeights(network);
+            for (int i = 0; i < heights.length; i++)
+                batchMeans[i][step / batchSize] += heights[i] / batchSize;
+        }
+        if (delayed)  // the first stage must have rejected some moves
+            assertTrue(delayedAcceptance.getFirstStageRejectedCount() > 0);
+        return batchMeans;
+    }
+
+    private double logPosterior(BirthHybridizationModel prior, Network network) {
+        return prior.networkLogP(network) - rootRate * network.getRoot().getHeight();
+    }
+
+    private static double[] getNodeHeights(Network network) {
+        final NetworkNode[] internalNodes = network.getInternalNodes();
+        final double[] heights = new double[internalNodes.length];
+        for (int i = 0; i < heights.length; i++)
+            heights[i] = internalNodes[i].getHeight();
+        Arrays.sort(heights);
+        return heights;
+    }
+
+    private StoredNetwork newNetwork() {
+        List<Taxon> species = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++)
+            species.add(new Taxon("S" + i));
+        StoredNetwork network = new StoredNetwork();
+        network.initByName("taxonset", new TaxonSet(species));
+        return network;
+    }
+
+    private static BirthHybridizationModel newPrior(Network network) {
+        final BirthHybridizationModel prior = new BirthHybridizationModel();
+        prior.initByName("network", network, "birthRate", new RealParameter("2.0"),
+                "hybridRate", new RealParameter("1.5"), "betaShape", new RealParameter("2.0"));
+        return prior;
+    }
+
+    // the means of the two samples must be within 4 standard errors of each other
+    private static void assertMeanEquals(double[] expected, double[] observed) {
+        final double[] mean = new double[2], var = new double[2];
+        final double[][] samples = {expected, observed};
+        for (int k = 0; k < 2; k++) {
+            for (double x : samples[k])
+                mean[k] += x / samples[k].length;
+            for (double x : samples[k])
+                var[k] += (x - mean[k]) * (x - mean[k]) / (samples[k].length - 1);
+        }
+        final double stdErr = Math.sqrt(var[0] / expected.length + var[1] / observed.length);
+        assertEquals(mean[0], mean[1], 4 * stdErr + 1e-12);
+    }
+}
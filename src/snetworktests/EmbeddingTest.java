@@ -0,0 +1,79 @@
+package snetworktests;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import speciesnetwork.Embedding;
+
+public class EmbeddingTest {
+
+    @Test
+    public void testCopyOnWrite() {
+        Embedding embedding = new Embedding(3, 2);
+        embedding.setDirection(1, 0, 4);
+
+        Embedding stored = new Embedding(3, 2);
+        stored.copyFrom(embedding);
+        assertTrue(embedding.isShared());
+        assertTrue(stored.isShared());
+        assertEquals(4, stored.getDirection(1, 0));
+
+        // the first write detaches the written embedding, and the stored copy is unchanged
+        embedding.setDirection(1, 0, 5);
+        embedding.setDirection(2, 1, 6);
+        assertFalse(embedding.isShared());
+        assertFalse(stored.isShared());
+        assertEquals(5, embedding.getDirection(1, 0));
+        assertEquals(6, embedding.getDirection(2, 1));
+        assertEquals(4, stored.getDirection(1, 0));
+        assertEquals(-1, stored.getDirection(2, 1));
+
+        // a copy shares the matrix until reset
+        Embedding copy = new Embedding(stored);
+        copy.reset(2);
+        assertEquals(-1, copy.getDirection(1, 0));
+        assertEquals(4, stored.getDirection(1, 0));
+    }
+
+    @Test
+    public void testShareCount() {
+        Embedding embedding = new Embedding(3, 2);
+        Embedding stored = new Embedding(3, 2);
+        Embedding other = new Embedding(3, 2);
+
+        // an embedding sharing another matrix no longer counts as an owner of the old one
+        stored.copyFrom(embedding);
+        assertTrue(embedding.isShared());
+        stored.copyFrom(other);
+        assertFalse(embedding.isShared());
+        assertTrue(other.isShared());
+
+        // nor does a released one, so the next write does not copy
+        Embedding copy = new Embedding(embedding);
+        assertTrue(embedding.isShared());
+        copy.release();
+        assertFalse(embedding.isShared());
+        final int[] matrix = embedding.getEmbedding();
+        embedding.setDirection(0, 0, 1);
+        assertTrue(matrix == embedding.getEmbedding());
+    }
+
+    @Test
+    public void testMergeWith() {
+        Embedding left = new Embedding(2, 2);
+        left.setDirection(0, 0, 1);
+        left.probability = 0.5;
+        Embedding right = new Embedding(2, 2);
+        right.setDirection(1, 1, 3);
+        right.probability = 0.4;
+
+        Embedding stored = new Embedding(left);
+        left.mergeWith(right);
+        assertEquals(1, left.getDirection(0, 0));
+        assertEquals(3, left.getDirection(1, 1));
+        assertEquals(0.2, left.probability, 1e-12);
+        assertEquals(-1, stored.getDirection(1, 1));
+    }
+}
@@ -0,0 +1,158 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import speciesnetwork.BirthHybridizationModel;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+
+/*
+ * The birth-hybridization prior of the network in the state is calculated from the sums over the time intervals kept
+ * up to date by LineageIntervals, and must agree with the prior of a copy of the network, which is calculated by a full
+ * sweep over its nodes sorted by height. Random edits of heights, gamma probs and reticulation branches are proposed,
+ * and half of them rejected by restoring the stored network.
+ */
+public class LineageIntervalsTest {
+    final int nSpecies = 8;
+    final int nSteps = 2000;
+    final double allowedError = 1e-8;
+
+    // a network whose protected store() can be called here
+    private static class StoredNetwork extends Network {
+        void storeNetwork() {
+            store();
+        }
+    }
+
+    // an operator making a few random edits of the network
+    private static class RandomEdit extends Operator {
+        final Network network;
+        final Random random;
+
+        RandomEdit(Network network, Random random) {
+            this.network = network;
+            this.random = random;
+        }
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double proposal() {
+            network.startEditing(this);
+            final double u = random.nextDouble();
+            if (u < 0.1) {
+                editReticulation();
+            } else if (u < 0.2) {
+                network.scale(0.8 + 0.4 * random.nextDouble());
+            } else if (u < 0.4 && network.getReticulationNodeCount() > 0) {
+                final NetworkNode[] reticulations = network.getReticulationNodes();
+                reticulations[random.nextInt(reticulations.length)].setGammaProb(random.nextDouble());
+            } else {
+                // at times more nodes than LineageIntervals moves one by one, so that it rebuilds the sums
+                final int nMoves = 1 + random.nextInt(6);
+                for (int i = 0; i < nMoves; i++)
+                    moveHeight();
+            }
+            return 0.0;
+        }
+
+        // set the height of an internal node uniformly between its oldest child and its youngest parent
+        private void moveHeight() {
+            final NetworkNode[] internalNodes = network.getInternalNodes();
+            final NetworkNode node = internalNodes[random.nextInt(internalNodes.length)];
+            double lower = 0.0, upper = Double.POSITIVE_INFINITY;
+            for (NetworkNode child : node.getChildren())
+                lower = Math.max(lower, child.getHeight());
+            for (NetworkNode parent : node.getParents())
+                upper = Math.min(upper, parent.getHeight());
+            node.setHeight(lower + random.nextDouble() * (upper - lower));
+        }
+
+        // add a reticulation branch with prob. 0.55 if there are fewer than 10, otherwise delete one if possible
+        private void editReticulation() {
+            final List<Integer> deletable = new ArrayList<>();
+            for (NetworkNode node : network.getReticulationNodes()) {
+                for (int b = node.gammaBranchNumber; b <= node.gammaBranchNumber + 1; b++) {
+                    if (!node.getParentByBranch(b).isReticulation())
+                        deletable.add(b);
+                }
+            }
+            if ((random.nextDouble() < 0.55 && network.getReticulationNodeCount() < 10) || deletable.isEmpty()) {
+                final int nBranches = network.getBranchCount();
+                int branchNr1 = random.nextInt(nBranches);
+                int branchNr2 = random.nextInt(nBranches);
+                final NetworkNode child1 = network.getNode(network.getNodeNumber(branchNr1));
+                final NetworkNode child2 = network.getNode(network.getNodeNumber(branchNr2));
+                final NetworkNode parent1 = child1.getParentByBranch(branchNr1);
+                final NetworkNode parent2 = child2.getParentByBranch(branchNr2);
+                final double height1 = child1.getHeight() + random.nextDouble() * (parent1.getHeight() - child1.getHeight());
+                final double height2 = child2.getHeight() + random.nextDouble() * (parent2.getHeight() - child2.getHeight());
+
+                NetworkNode reticulation = new NetworkNode(network);
+                NetworkNode bifurcation = new NetworkNode(network);
+                reticulation.setHeight(Math.min(height1, height2));
+                bifurcation.setHeight(Math.max(height1, height2));
+                if (height1 > height2) {  // the reticulation node is on the lower one
+                    final int tmp = branchNr1;
+                    branchNr1 = branchNr2;
+                    branchNr2 = tmp;
+                }
+                network.addReticulationBranch(reticulation, bifurcation, branchNr1, branchNr2);
+                reticulation.setGammaProb(random.nextDouble());
+            } else {
+                network.deleteReticulationBranch(deletable.get(random.nextInt(deletable.size())));
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalLogP() {
+        final Random random = new Random(61);
+        final StoredNetwork network = newNetwork();
+        final BirthHybridizationModel prior = new BirthHybridizationModel();
+        prior.initByName("network", network, "birthRate", new RealParameter("2.0"),
+                "hybridRate", new RealParameter("1.5"), "betaShape", new RealParameter("2.0"));
+        final RandomEdit operator = new RandomEdit(network, random);
+
+        // the statistics of the network in the state are only cached once it is edited
+        operator.proposal();
+        assertLogPEquals(prior, network);
+        for (int step = 0; step < nSteps; step++) {
+            network.storeNetwork();
+            final double storedLogP = prior.calculateLogP();
+
+            operator.proposal();
+            assertLogPEquals(prior, network);
+            if (random.nextBoolean()) {
+                network.restore();
+                assertEquals(storedLogP, prior.calculateLogP(), 0.0);
+                assertLogPEquals(prior, network);
+            }
+        }
+    }
+
+    private StoredNetwork newNetwork() {
+        List<Taxon> species = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++)
+            species.add(new Taxon("S" + i));
+        StoredNetwork network = new StoredNetwork();
+        network.initByName("taxonset", new TaxonSet(species));
+        return network;
+    }
+
+    // the prior of the network in the state must be that of its copy, whose statistics are not cached
+    private void assertLogPEquals(BirthHybridizationModel prior, Network network) {
+        final double expected = prior.networkLogP(network.copy());
+        assertEquals(expected, prior.calculateLogP(), allowedError * Math.max(1.0, Math.abs(expected)));
+    }
+}
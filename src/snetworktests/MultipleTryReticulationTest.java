@@ -0,0 +1,138 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speciesnetwork.BirthHybridizationModel;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.operators.AddReticulation;
+import speciesnetwork.operators.DeleteReticulation;
+import speciesnetwork.operators.MultipleTryReticulation;
+
+/*
+ * Reticulation branches are added to and deleted from a species tree, with the birth-hybridization prior as the only
+ * target. The number of reticulations and the height of the oldest one sampled with the multiple-try operator, with one
+ * and with several tries, must agree with those sampled with AddReticulation and DeleteReticulation chosen with equal
+ * prob., compared by the means of batches of the chains.
+ */
+public class MultipleTryReticulationTest {
+    final int nSpecies = 3;
+    final int maxReticulation = 3;
+    final int nSteps = 200000;
+    final int nBatches = 200;
+
+    // a network whose protected store() can be called here
+    private static class StoredNetwork extends Network {
+        void storeNetwork() {
+            store();
+        }
+    }
+
+    // AddReticulation or DeleteReticulation, chosen with equal prob.
+    private static class AddOrDelete extends Operator {
+        final Operator add, delete;
+
+        AddOrDelete(Operator add, Operator delete) {
+            this.add = add;
+            this.delete = delete;
+        }
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double proposal() {
+            return Randomizer.nextBoolean() ? add.proposal() : delete.proposal();
+        }
+    }
+
+    @Test
+    public void testSingleTry() {
+        final double[][] expected = sample(null, 167);
+        final double[][] observed = sample(1, 173);
+        assertMeanEquals(expected[0], observed[0]);
+        assertMeanEquals(expected[1], observed[1]);
+    }
+
+    @Test
+    public void testMultipleTries() {
+        final double[][] expected = sample(null, 179);
+        final double[][] observed = sample(4, 181);
+        assertMeanEquals(expected[0], observed[0]);
+        assertMeanEquals(expected[1], observed[1]);
+    }
+
+    // the batch means of the statistics, sampled with the multiple-try operator, or the single moves if tries is null
+    private double[][] sample(Integer tries, long seed) {
+        Randomizer.setSeed(seed);
+        final StoredNetwork network = newNetwork();
+        final BirthHybridizationModel prior = new BirthHybridizationModel();
+        prior.initByName("network", network, "birthRate", new RealParameter("2.0"),
+                "hybridRate", new RealParameter("1.5"), "betaShape", new RealParameter("2.0"));
+
+        final Operator operator;
+        if (tries == null) {
+            final AddReticulation add = new AddReticulation();
+            add.initByName("speciesNetwork", network, "maxReticulation", maxReticulation);
+            final DeleteReticulation delete = new DeleteReticulation();
+            delete.initByName("speciesNetwork", network);
+            operator = new AddOrDelete(add, delete);
+        } else {
+            operator = new MultipleTryReticulation();
+            operator.initByName("speciesNetwork", network, "prior", prior, "maxReticulation", maxReticulation,
+                    "tries", tries);
+        }
+
+        final int batchSize = nSteps / nBatches;
+        final double[][] batchMeans = new double[2][nBatches];
+        double logP = prior.networkLogP(network);
+        for (int step = 0; step < nSteps; step++) {
+            network.storeNetwork();
+            final double logHR = operator.proposal();
+            final double newLogP = logHR == Double.NEGATIVE_INFINITY ? logP : prior.networkLogP(network);
+            if (logHR != Double.NEGATIVE_INFINITY && Math.log(Randomizer.nextDouble()) < newLogP - logP + logHR)
+                logP = newLogP;
+            else
+                network.restore();
+
+            double oldestHeight = 0.0;
+            for (NetworkNode node : network.getReticulationNodes())
+                oldestHeight = Math.max(oldestHeight, node.getHeight());
+            batchMeans[0][step / batchSize] += (double) network.getReticulationNodeCount() / batchSize;
+            batchMeans[1][step / batchSize] += oldestHeight / batchSize;
+        }
+        return batchMeans;
+    }
+
+    private StoredNetwork newNetwork() {
+        List<Taxon> species = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++)
+            species.add(new Taxon("S" + i));
+        StoredNetwork network = new StoredNetwork();
+        network.initByName("taxonset", new TaxonSet(species));
+        return network;
+    }
+
+    // the means of the two samples must be within 4 standard errors of each other
+    private static void assertMeanEquals(double[] expected, double[] observed) {
+        final double[] mean = new double[2], var = new double[2];
+        final double[][] samples = {expected, observed};
+        for (int k = 0; k < 2; k++) {
+            for (double x : samples[k])
+                mean[k] += x / samples[k].length;
+            for (double x : samples[k])
+                var[k] += (x - mean[k]) * (x - mean[k]) / (samples[k].length - 1);
+        }
+        final double stdErr = Math.sqrt(var[0] / expected.length + var[1] / observed.length);
+        assertEquals(mean[0], mean[1], 4 * stdErr + 1e-12);
+    }
+}
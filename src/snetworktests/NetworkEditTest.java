@@ -0,0 +1,327 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import speciesnetwork.BranchIntervals;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+
+/*
+ * Random sequences of reticulation branch additions and deletions, checked against the edges between the node objects
+ * kept here independently of the branch numbers, and store/restore checked against the network as it was stored.
+ * The branch intervals, kept up to date by the network, are checked against a scan of the branches after each edit.
+ */
+public class NetworkEditTest {
+    final int nSpecies = 8;
+    final int nSteps = 500;
+
+    // a network whose protected store() can be called here
+    private static class StoredNetwork extends Network {
+        void storeNetwork() {
+            store();
+        }
+    }
+
+    // the children of each node, by node object
+    private final Map<NetworkNode, List<NetworkNode>> edges = new IdentityHashMap<>();
+
+    @Test
+    public void testAddDelete() {
+        final Random random = new Random(47);
+        final StoredNetwork network = newNetwork();
+        collectEdges(network);
+        for (int step = 0; step < nSteps; step++) {
+            edit(network, random);
+            checkNetwork(network);
+        }
+    }
+
+    @Test
+    public void testStoreRestore() {
+        final Random random = new Random(53);
+        final StoredNetwork network = newNetwork();
+        collectEdges(network);
+        for (int step = 0; step < nSteps / 10; step++) {
+            network.storeNetwork();
+            final String newick = network.toString();
+            final List<String> stored = describe(network);
+
+            final int nEdits = 1 + random.nextInt(5);
+            for (int i = 0; i < nEdits; i++)
+                edit(network, random);
+            if (random.nextBoolean()) {
+                network.restore();
+                assertEquals(newick, network.toString());
+                assertEquals(stored, describe(network));
+                collectEdges(network);
+            }
+            checkNetwork(network);
+        }
+    }
+
+    @Test
+    public void testBranchIntervals() {
+        final Random random = new Random(59);
+        final StoredNetwork network = newNetwork();
+        collectEdges(network);
+        for (int step = 0; step < nSteps / 10; step++) {
+            network.storeNetwork();
+            final List<String> stored = describe(network);
+
+            final int nEdits = 1 + random.nextInt(10);
+            for (int i = 0; i < nEdits; i++) {
+                final double u = random.nextDouble();
+                if (u < 0.2)
+                    edit(network, random);
+                else if (u < 0.3)
+                    network.scale(0.5 + random.nextDouble());
+                else
+                    moveHeight(network, random);
+                checkNetwork(network);
+            }
+            if (random.nextBoolean()) {
+                network.restore();
+                assertEquals(stored, describe(network));
+                collectEdges(network);
+                checkNetwork(network);
+            }
+        }
+    }
+
+    private StoredNetwork newNetwork() {
+        List<Taxon> species = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++)
+            species.add(new Taxon("S" + i));
+        StoredNetwork network = new StoredNetwork();
+        network.initByName("taxonset", new TaxonSet(species));
+        return network;
+    }
+
+    // add a reticulation branch with prob. 0.55 if there are fewer than 10, otherwise delete one if possible
+    private void edit(Network network, Random random) {
+        final List<Integer> deletable = new ArrayList<>();
+        for (NetworkNode node : network.getReticulationNodes()) {
+            for (int b = node.gammaBranchNumber; b <= node.gammaBranchNumber + 1; b++) {
+                if (!node.getParentByBranch(b).isReticulation())
+                    deletable.add(b);
+            }
+        }
+        if ((random.nextDouble() < 0.55 && network.getReticulationNodeCount() < 10) || deletable.isEmpty())
+            addReticulation(network, random);
+        else
+            deleteReticulation(network, deletable.get(random.nextInt(deletable.size())));
+    }
+
+    // set the height of an internal node uniformly between its oldest child and its youngest parent
+    private static void moveHeight(Network network, Random random) {
+        final NetworkNode[] internalNodes = network.getInternalNodes();
+        final NetworkNode node = internalNodes[random.nextInt(internalNodes.length)];
+        double lower = 0.0, upper = Double.POSITIVE_INFINITY;
+        for (NetworkNode child : node.getChildren())
+            lower = Math.max(lower, child.getHeight());
+        for (NetworkNode parent : node.getParents())
+            upper = Math.min(upper, parent.getHeight());
+        node.setHeight(lower + random.nextDouble() * (upper - lower));
+    }
+
+    private void addReticulation(Network network, Random random) {
+        final int nBranches = network.getBranchCount();
+        int branchNr1 = random.nextInt(nBranches);
+        int branchNr2 = random.nextInt(nBranches);
+        final NetworkNode child1 = network.getNode(network.getNodeNumber(branchNr1));
+        final NetworkNode child2 = network.getNode(network.getNodeNumber(branchNr2));
+        final NetworkNode parent1 = child1.getParentByBranch(branchNr1);
+        final NetworkNode parent2 = child2.getParentByBranch(branchNr2);
+
+        NetworkNode reticulation = new NetworkNode(network);
+        NetworkNode bifurcation = new NetworkNode(network);
+        final double height1 = child1.getHeight() + random.nextDouble() * (parent1.getHeight() - child1.getHeight());
+        final double height2 = child2.getHeight() + random.nextDouble() * (parent2.getHeight() - child2.getHeight());
+        reticulation.setHeight(Math.min(height1, height2));
+        bifurcation.setHeight(Math.max(height1, height2));
+        if (height1 > height2) {  // the reticulation node is on the lower one
+            final int tmp = branchNr1;
+            branchNr1 = branchNr2;
+            branchNr2 = tmp;
+        }
+
+        if (branchNr1 == branchNr2) {
+            final NetworkNode child = network.getNode(network.getNodeNumber(branchNr1));
+            final NetworkNode parent = child.getParentByBranch(branchNr1);
+            removeEdge(parent, child);
+            addEdge(parent, bifurcation);
+            addEdge(bifurcation, reticulation);
+            addEdge(bifurcation, reticulation);
+            addEdge(reticulation, child);
+        } else {
+            final NetworkNode retChild = network.getNode(network.getNodeNumber(branchNr1));
+            final NetworkNode retParent = retChild.getParentByBranch(branchNr1);
+            final NetworkNode bifChild = network.getNode(network.getNodeNumber(branchNr2));
+            final NetworkNode bifParent = bifChild.getParentByBranch(branchNr2);
+            removeEdge(retParent, retChild);
+            removeEdge(bifParent, bifChild);
+            addEdge(retParent, reticulation);
+            addEdge(reticulation, retChild);
+            addEdge(bifParent, bifurcation);
+            addEdge(bifurcation, bifChild);
+            addEdge(bifurcation, reticulation);
+        }
+        network.addReticulationBranch(reticulation, bifurcation, branchNr1, branchNr2);
+        reticulation.setGammaProb(random.nextDouble());
+    }
+
+    private void deleteReticulation(Network network, int branchNr) {
+        final NetworkNode hybrid = network.getNode(network.getNodeNumber(branchNr));
+        final NetworkNode bifurcation = hybrid.getParentByBranch(branchNr);
+        final NetworkNode parent = getParents(bifurcation).get(0);
+        final List<NetworkNode> otherChildren = new ArrayList<>(edges.get(bifurcation));
+        otherChildren.remove(hybrid);
+        final List<NetworkNode> otherParents = getParents(hybrid);
+        otherParents.remove(bifurcation);
+        final NetworkNode otherChild = otherChildren.get(0);
+        final NetworkNode otherParent = otherParents.get(0);
+        final NetworkNode hybridChild = edges.get(hybrid).get(0);
+
+        removeEdge(parent, bifurcation);
+        removeEdge(bifurcation, hybrid);
+        removeEdge(bifurcation, otherChild);
+        removeEdge(hybrid, hybridChild);
+        if (otherParent == bifurcation) {  // the two nodes are on the same branch
+            addEdge(parent, hybridChild);
+        } else {
+            removeEdge(otherParent, hybrid);
+            addEdge(parent, otherChild);
+            addEdge(otherParent, hybridChild);
+        }
+        edges.remove(bifurcation);
+        edges.remove(hybrid);
+        network.deleteReticulationBranch(branchNr);
+    }
+
+    private void collectEdges(Network network) {
+        edges.clear();
+        for (NetworkNode node : network.getAllNodes()) {
+            final List<NetworkNode> children = new ArrayList<>();
+            for (Integer branchNr : node.childBranchNumbers)
+                children.add(network.getNode(network.getNodeNumber(branchNr)));
+            edges.put(node, children);
+        }
+    }
+
+    private void addEdge(NetworkNode parent, NetworkNode child) {
+        edges.computeIfAbsent(parent, node -> new ArrayList<>()).add(child);
+        edges.computeIfAbsent(child, node -> new ArrayList<>());
+    }
+
+    private void removeEdge(NetworkNode parent, NetworkNode child) {
+        assertTrue(edges.get(parent).remove(child));
+    }
+
+    private List<NetworkNode> getParents(NetworkNode child) {
+        final List<NetworkNode> parents = new ArrayList<>();
+        for (Map.Entry<NetworkNode, List<NetworkNode>> entry : edges.entrySet()) {
+            for (NetworkNode node : entry.getValue()) {
+                if (node == child)
+                    parents.add(entry.getKey());
+            }
+        }
+        return parents;
+    }
+
+    // the child branch numbers must lead to the same nodes as the edges, and the parents must agree with them
+    private void checkNetwork(Network network) {
+        final int nodeCount = network.getNodeCount();
+        assertEquals(edges.size(), nodeCount);
+        assertEquals(nSpecies, network.getLeafNodeCount());
+        assertEquals(nodeCount, network.getLeafNodeCount() + network.getSpeciationNodeCount() +
+                                network.getReticulationNodeCount() + 1);
+
+        final Multiset<Integer> branchNrs = HashMultiset.create();
+        for (int i = 0; i < nodeCount; i++) {
+            final NetworkNode node = network.getNode(i);
+            assertEquals(i, node.getNr());
+            assertEquals(network.getBranchNumber(i), node.gammaBranchNumber);
+
+            final List<NetworkNode> expectedChildren = edges.get(node);
+            assertEquals(expectedChildren.size(), node.childBranchNumbers.size());
+            final Multiset<NetworkNode> children = HashMultiset.create();
+            for (Integer branchNr : node.childBranchNumbers) {
+                final NetworkNode child = network.getNode(network.getNodeNumber(branchNr));
+                assertSame(node, child.getParentByBranch(branchNr));
+                children.add(child);
+                branchNrs.add(branchNr);
+            }
+            assertEquals(HashMultiset.create(expectedChildren), children);
+            assertEquals(children, HashMultiset.create(node.getChildren()));
+
+            final int expectedParents = node.isOrigin() ? 0 : node.isReticulation() ? 2 : 1;
+            assertEquals(expectedParents, getParents(node).size());
+            assertEquals(expectedParents, node.getParents().size());
+        }
+
+        // each branch is the child branch of exactly one node
+        assertEquals(network.getBranchCount(), branchNrs.size());
+        assertEquals(network.getBranchCount(), branchNrs.elementSet().size());
+
+        for (NetworkNode node : network.getAllNodes()) {
+            checkIntervals(network, node.getHeight());
+            checkIntervals(network, node.getHeight() + 1e-6);
+        }
+        checkIntervals(network, Double.NEGATIVE_INFINITY);
+        checkIntervals(network, Double.POSITIVE_INFINITY);
+    }
+
+    // the branches below, above and alive at the height must be those found by a scan of the branches
+    private static void checkIntervals(Network network, double height) {
+        final Multiset<Integer> below = HashMultiset.create(), above = HashMultiset.create();
+        int alive = 0;
+        for (NetworkNode node : network.getAllNodes()) {
+            for (Integer branchNr : node.childBranchNumbers) {
+                final NetworkNode child = network.getNode(network.getNodeNumber(branchNr));
+                if (child.getHeight() < height) below.add(branchNr);
+                if (node.getHeight() > height) above.add(branchNr);
+                if (child.getHeight() <= height && node.getHeight() > height) alive++;
+            }
+        }
+
+        final BranchIntervals intervals = network.getBranchIntervals();
+        final Multiset<Integer> indexedBelow = HashMultiset.create(), indexedAbove = HashMultiset.create();
+        assertEquals(below.size(), intervals.countBelow(height));
+        for (int i = 0; i < intervals.countBelow(height); i++) {
+            final int branchNr = intervals.getBelow(height, i);
+            assertEquals(i, intervals.getBelowIndex(height, branchNr));
+            indexedBelow.add(branchNr);
+        }
+        assertEquals(below, indexedBelow);
+        assertEquals(above.size(), intervals.countAbove(height));
+        for (int i = 0; i < intervals.countAbove(height); i++) {
+            final int branchNr = intervals.getAbove(height, i);
+            assertEquals(i, intervals.getAboveIndex(height, branchNr));
+            indexedAbove.add(branchNr);
+        }
+        assertEquals(above, indexedAbove);
+        assertEquals(alive, network.getBranchCount(height));
+    }
+
+    // the child branch numbers, parent count, height and label of each node
+    private static List<String> describe(Network network) {
+        final List<String> description = new ArrayList<>();
+        for (NetworkNode node : network.getAllNodes())
+            description.add(node.childBranchNumbers + " " + node.getParents().size() + " " + node.getHeight() + " " +
+                            node.getLabel());
+        return description;
+    }
+}
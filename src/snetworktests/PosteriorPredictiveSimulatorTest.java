@@ -0,0 +1,171 @@
+package snetworktests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.Network;
+import speciesnetwork.simulator.CoalescentSimulator;
+import speciesnetwork.simulator.PosteriorPredictiveSimulator;
+
+/*
+ * The gene trees are simulated in a logged network of fixed topology with the population size of each sample read
+ * from the trace log. With a tiny population size all the lineages coalesce just above the root of the network, and
+ * with a huge one far above it. Population sizes logged per branch are rejected, as the branches of the parsed networks
+ * are numbered differently. The statistics of the sequences are checked on a small alignment.
+ */
+public class PosteriorPredictiveSimulatorTest {
+    final String newickSpeciesNetwork = "(((A:0.2,#H1[&gamma=0.4]:0.1)S1:0.3,((B:0.1)#H1:0.2,C:0.3)S2:0.2)R:0.1)";
+    final double rootHeight = 0.5;
+    final String newickGeneTree = "(((a1:0.1,a2:0.1):0.5,b1:0.6):0.1,c1:0.7)";
+
+    // a simulator whose protected statistics can be called here
+    private static class Simulator extends PosteriorPredictiveSimulator {
+        static double segregatingSites(char[][] data) {
+            return countSegregatingSites(data);
+        }
+
+        static double nucleotideDiversity(char[][] data) {
+            return getNucleotideDiversity(data);
+        }
+    }
+
+    @Test
+    public void testRows() throws IOException {
+        final File networkLog = newNetworkLog();
+        final File traceLog = File.createTempFile("trace", ".log");
+        final File output = File.createTempFile("ppsim", ".log");
+        traceLog.deleteOnExit();
+        output.deleteOnExit();
+
+        // a row without a network is skipped
+        try (PrintStream out = new PrintStream(traceLog)) {
+            out.println("# a comment");
+            out.println("Sample\tposterior\tpopSizes");
+            out.println("0\t-10.0\t1.0");
+            out.println("1000\t-10.0\t1.0E-8");
+            out.println("1500\t-10.0\t1.0");
+            out.println("2000\t-10.0\t100.0");
+            out.println("3000\t-10.0\t1.0E-8");
+        }
+
+        final PosteriorPredictiveSimulator simulator = new PosteriorPredictiveSimulator();
+        simulator.initByName("inputFileName", networkLog.getPath(), "outputFileName", output.getPath(),
+                "burnin", 1, "coalescentSimulator", newCoalescentSimulator(), "traceFileName", traceLog.getPath(),
+                "seed", 47L);
+        simulator.run();
+
+        final List<String> lines = Files.readAllLines(output.toPath());
+        assertEquals(4, lines.size());
+        assertEquals("Sample\ttreeHeight\ttreeLength", lines.get(0));
+        final String[] labels = {"1000", "2000", "3000"};
+        for (int i = 0; i < labels.length; i++) {
+            final String[] row = lines.get(i + 1).split("\t");
+            assertEquals(3, row.length);
+            assertEquals(labels[i], row[0]);
+            final double treeHeight = Double.parseDouble(row[1]), treeLength = Double.parseDouble(row[2]);
+            assertTrue(treeHeight >= rootHeight);
+            assertTrue(treeLength >= 2 * treeHeight);
+            if (labels[i].equals("2000"))
+                assertTrue(treeHeight > 10 * rootHeight);
+            else
+                assertEquals(rootHeight, treeHeight, 1e-4);
+        }
+
+        // the same rows from the same seed
+        final List<String> lines2 = new ArrayList<>(lines);
+        simulator.run();
+        assertEquals(lines2, Files.readAllLines(output.toPath()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPerBranchPopSizes() throws IOException {
+        final File networkLog = newNetworkLog();
+        final File traceLog = File.createTempFile("trace", ".log");
+        final File output = File.createTempFile("ppsim", ".log");
+        traceLog.deleteOnExit();
+        output.deleteOnExit();
+
+        try (PrintStream out = new PrintStream(traceLog)) {
+            out.print("Sample\tposterior");
+            for (int i = 1; i <= 8; i++)
+                out.print("\tpopSizes" + i);
+            out.println();
+            for (int state = 0; state <= 3000; state += 1000) {
+                out.print(state + "\t-10.0");
+                for (int i = 1; i <= 8; i++)
+                    out.print("\t" + 0.1 * i);
+                out.println();
+            }
+        }
+
+        final PosteriorPredictiveSimulator simulator = new PosteriorPredictiveSimulator();
+        simulator.initByName("inputFileName", networkLog.getPath(), "outputFileName", output.getPath(),
+                "coalescentSimulator", newCoalescentSimulator(), "traceFileName", traceLog.getPath(), "seed", 47L);
+        simulator.run();
+    }
+
+    @Test
+    public void testSequenceStatistics() {
+        final char[][] data = {"AACGT".toCharArray(), "AACGA".toCharArray(), "ATCGA".toCharArray()};
+        assertEquals(2.0, Simulator.segregatingSites(data), 0.0);
+        // pairwise differences 1, 2 and 1 in 5 sites
+        assertEquals(4.0 / 15.0, Simulator.nucleotideDiversity(data), 1e-12);
+
+        final char[][] single = {"ACGT".toCharArray()};
+        assertEquals(0.0, Simulator.segregatingSites(single), 0.0);
+        assertEquals(0.0, Simulator.nucleotideDiversity(single), 0.0);
+    }
+
+    private File newNetworkLog() throws IOException {
+        final File networkLog = File.createTempFile("networks", ".trees");
+        networkLog.deleteOnExit();
+        try (PrintStream out = new PrintStream(networkLog)) {
+            out.println("#NEXUS");
+            out.println("Begin trees;");
+            for (int state = 0; state <= 3000; state += 1000)
+                out.println("tree STATE_" + state + " = " + newickSpeciesNetwork + ";");
+            out.println("End;");
+        }
+        return networkLog;
+    }
+
+    private CoalescentSimulator newCoalescentSimulator() {
+        List<Taxon> superSetList = new ArrayList<>();
+        List<Taxon> taxonListA = new ArrayList<>();
+        taxonListA.add(new Taxon("a1"));
+        taxonListA.add(new Taxon("a2"));
+        superSetList.add(new TaxonSet("A", taxonListA));
+        List<Taxon> taxonListB = new ArrayList<>();
+        taxonListB.add(new Taxon("b1"));
+        superSetList.add(new TaxonSet("B", taxonListB));
+        List<Taxon> taxonListC = new ArrayList<>();
+        taxonListC.add(new Taxon("c1"));
+        superSetList.add(new TaxonSet("C", taxonListC));
+        Network speciesNetwork = new Network();
+        speciesNetwork.initByName("taxonset", new TaxonSet(superSetList));
+
+        TreeParser treeParser = new TreeParser();
+        treeParser.initByName("newick", newickGeneTree, "IsLabelledNewick", true);
+        EmbeddedTree geneTree = new EmbeddedTree(treeParser.getRoot());
+        geneTree.ploidy = 2.0;  // not read from the input by this constructor
+        List<EmbeddedTree> geneTrees = new ArrayList<>();
+        geneTrees.add(geneTree);
+
+        CoalescentSimulator coalSimulator = new CoalescentSimulator();
+        coalSimulator.initByName("speciesNetwork", speciesNetwork, "popSizes", new RealParameter("0.1"),
+                "geneTree", geneTrees);
+        return coalSimulator;
+    }
+}
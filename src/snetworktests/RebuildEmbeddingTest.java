@@ -0,0 +1,178 @@
+package snetworktests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.NetworkParser;
+import speciesnetwork.operators.RebuildEmbedding;
+
+/*
+ * The clade (b1,b2) of the gene tree is moved between two heights, below and above the reticulation node H1, and its
+ * embedding is rebuilt, which is accepted with the Metropolis-Hastings ratio of a target proportional to the embedding
+ * probability p (the product of the gamma probs traversed). Given the height, the embeddings must then be sampled
+ * with frequencies p/S, S being the sum of p over all the embeddings, whether the clade or the whole gene tree is
+ * re-embedded. The two heights are equally likely a priori, so the height h1 has frequency S(h1)/(S(h1)+S(h2)).
+ *   h1 = 0.05: the clade goes through H1 to S1 or to S2, p = 0.4 or 0.6, S = 1
+ *   h2 = 0.15: both lineages go through H1 to S1 or both to S2, p = 0.16 or 0.36, S = 0.52
+ */
+public class RebuildEmbeddingTest {
+    final String newickSpeciesNetwork = "(((A:0.2,#H1[&gamma=0.4]:0.1)S1:0.3,((B:0.1)#H1:0.2,C:0.3)S2:0.2)R:0.1)";
+    final String newickGeneTree = "(((b1:0.05,b2:0.05):0.47,a1:0.52):0.04,c1:0.56)";
+    final double h1 = 0.05, h2 = 0.15;
+    final int nSteps = 20000;
+    final double allowedError = 0.03;
+
+    private NetworkParser speciesNetwork;
+    private EmbeddedTree geneTree;
+    private int cladeNr;  // node number of the clade (b1,b2)
+
+    // an operator moving the clade between the two heights, which is symmetric
+    private class ToggleHeight extends Operator {
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double proposal() {
+            geneTree.startEditing(this);
+            final Node clade = geneTree.getNode(cladeNr);
+            clade.setHeight(clade.getHeight() == h1 ? h2 : h1);
+            return 0.0;
+        }
+
+        @Override
+        public List<StateNode> listStateNodes() {
+            return Collections.singletonList(geneTree);
+        }
+    }
+
+    @Test
+    public void testLocalFrequencies() {
+        Randomizer.setSeed(67);
+        checkFrequencies(newRebuildEmbedding(true));
+    }
+
+    @Test
+    public void testFullFrequencies() {
+        Randomizer.setSeed(71);
+        checkFrequencies(newRebuildEmbedding(false));
+    }
+
+    @Test
+    public void testLocalReverseMove() {
+        Randomizer.setSeed(73);
+        final RebuildEmbedding operator = newRebuildEmbedding(true);
+        for (int step = 0; step < 100; step++) {
+            geneTree.store();
+            final String before = describeEmbedding();
+            final double logHR = operator.proposal();
+            assertTrue(logHR > Double.NEGATIVE_INFINITY);
+
+            // propose the reverse move until it draws the embedding before the move, whose log HR must be the negation
+            geneTree.store();
+            boolean reversed = false;
+            for (int i = 0; i < 100 && !reversed; i++) {
+                final double reverseLogHR = operator.proposal();
+                if (describeEmbedding().equals(before)) {
+                    assertEquals(-logHR, reverseLogHR, 1e-12);
+                    reversed = true;
+                }
+                geneTree.restore();
+            }
+            assertTrue(reversed);
+        }
+    }
+
+    // run the chain, and compare the frequencies of the heights and of the embeddings given the height
+    private void checkFrequencies(RebuildEmbedding operator) {
+        final Map<Double, Double> expected = new HashMap<>();
+        expected.put(0.4, 0.4);
+        expected.put(0.6, 0.6);
+        expected.put(0.16, 0.16 / 0.52);
+        expected.put(0.36, 0.36 / 0.52);
+
+        final Map<Double, Integer> counts = new HashMap<>();
+        int nLow = 0;
+        for (int step = 0; step < nSteps; step++) {
+            geneTree.store();
+            final double oldProbability = geneTree.embedding.probability;
+            final double logHR = operator.proposal();
+            final double logAlpha = logHR + Math.log(geneTree.embedding.probability) - Math.log(oldProbability);
+            if (logHR == Double.NEGATIVE_INFINITY || Math.log(Randomizer.nextDouble()) >= logAlpha)
+                geneTree.restore();
+
+            if (geneTree.getNode(cladeNr).getHeight() == h1)
+                nLow++;
+            final double probability = Math.round(geneTree.embedding.probability * 1e8) / 1e8;
+            assertTrue(expected.containsKey(probability));
+            counts.merge(probability, 1, Integer::sum);
+        }
+
+        assertEquals(1.0 / 1.52, (double) nLow / nSteps, allowedError);
+        for (Map.Entry<Double, Double> entry : expected.entrySet()) {
+            final int nGivenHeight = entry.getKey() == 0.4 || entry.getKey() == 0.6 ? nLow : nSteps - nLow;
+            final double frequency = counts.getOrDefault(entry.getKey(), 0) / (double) nGivenHeight;
+            assertEquals(entry.getValue(), frequency, allowedError);
+        }
+    }
+
+    private RebuildEmbedding newRebuildEmbedding(boolean local) {
+        List<Taxon> superSetList = new ArrayList<>();
+        List<Taxon> taxonListA = new ArrayList<>();
+        taxonListA.add(new Taxon("a1"));
+        superSetList.add(new TaxonSet("A", taxonListA));
+        List<Taxon> taxonListB = new ArrayList<>();
+        taxonListB.add(new Taxon("b1"));
+        taxonListB.add(new Taxon("b2"));
+        superSetList.add(new TaxonSet("B", taxonListB));
+        List<Taxon> taxonListC = new ArrayList<>();
+        taxonListC.add(new Taxon("c1"));
+        superSetList.add(new TaxonSet("C", taxonListC));
+
+        TreeParser speciesTree = new TreeParser();
+        speciesTree.initByName("newick", newickSpeciesNetwork, "IsLabelledNewick", true, "adjustTipHeights", false);
+        speciesNetwork = new NetworkParser();
+        speciesNetwork.initByName("tree", speciesTree, "taxonset", new TaxonSet(superSetList));
+
+        TreeParser treeParser = new TreeParser();
+        treeParser.initByName("newick", newickGeneTree, "IsLabelledNewick", true);
+        geneTree = new EmbeddedTree(treeParser.getRoot());
+        geneTree.setID("gene");
+        for (Node node : geneTree.getInternalNodes()) {
+            if (node.getLeft().isLeaf() && node.getRight().isLeaf()) {  // the only cherry
+                cladeNr = node.getNr();
+                node.setHeight(h1);  // exactly, rather than as parsed
+            }
+        }
+
+        List<EmbeddedTree> geneTrees = new ArrayList<>();
+        geneTrees.add(geneTree);
+        RebuildEmbedding operator = new RebuildEmbedding();
+        operator.initByName("speciesNetwork", speciesNetwork, "geneTree", geneTrees, "operator", new ToggleHeight(),
+                "local", local);
+        assertTrue(operator.rebuildEmbedding());
+        return operator;
+    }
+
+    // the directions of all the gene tree nodes at all the traversal nodes
+    private String describeEmbedding() {
+        final StringBuilder description = new StringBuilder();
+        for (int i = 0; i < geneTree.getNodeCount(); i++)
+            description.append(geneTree.embedding.rowToString(i)).append(";");
+        return description.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package snetworktests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import beastfx.app.seqgen.SequenceSimulator;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.Network;
+import speciesnetwork.simulator.BirthHybridSimulator;
+import speciesnetwork.simulator.CoalescentSimulator;
+
+/*
+ * With useThreads, each replicate (or locus) draws from its own random stream derived from the seed, and the results
+ * are written in order, so the output files must be the same byte for byte with one thread and with four.
+ */
+public class SimulatorThreadsTest {
+    final long seed = 47L;
+    final String newickGeneTree = "(((a1:0.1,a2:0.1):0.5,b1:0.6):0.1,c1:0.7)";
+    final int nLoci = 3;
+
+    @Test
+    public void testBirthHybridSimulator() throws IOException {
+        final File output = File.createTempFile("networks", ".trees");
+        output.deleteOnExit();
+        final byte[][] contents = new byte[2][];
+        final int[] threads = {1, 4};
+        for (int k = 0; k < threads.length; k++) {
+            BirthHybridSimulator simulator = new BirthHybridSimulator();
+            simulator.initByName("speciesNetwork", newSpeciesNetwork(), "origin", new RealParameter("1.0"),
+                    "birthRate", new RealParameter("2.0"), "hybridRate", new RealParameter("1.5"), "nHybrid", 1,
+                    "outputFileName", output.getPath(), "iterations", 50,
+                    "useThreads", true, "threads", threads[k], "seed", seed);
+            simulator.run();
+            contents[k] = Files.readAllBytes(output.toPath());
+        }
+        assertTrue(new String(contents[0]).contains("tree SIM_50 ="));
+        assertArrayEquals(contents[0], contents[1]);
+    }
+
+    @Test
+    public void testCoalescentSimulatorReplicates() throws IOException {
+        final File output = File.createTempFile("replicates", "");
+        final File geneOutput = new File(output.getPath() + ".gene.trees");
+        final File networkOutput = new File(output.getPath() + ".species.trees");
+        output.deleteOnExit();
+        geneOutput.deleteOnExit();
+        networkOutput.deleteOnExit();
+        final byte[][] geneContents = new byte[2][], networkContents = new byte[2][];
+        final int[] threads = {1, 4};
+        for (int k = 0; k < threads.length; k++) {
+            // the replicates are appended to the files
+            Files.deleteIfExists(geneOutput.toPath());
+            Files.deleteIfExists(networkOutput.toPath());
+            final RealParameter popSizes = new RealParameter("0.1");
+            CoalescentSimulator simulator = new CoalescentSimulator();
+            simulator.initByName("state", newState(popSizes), "networkSimulator", newNetworkSimulator(),
+                    "popSizes", popSizes, "geneTree", newGeneTrees(), "outputFileName", output.getPath(),
+                    "iterations", 20, "useThreads", true, "threads", threads[k], "seed", seed);
+            simulator.run();
+            geneContents[k] = Files.readAllBytes(geneOutput.toPath());
+            networkContents[k] = Files.readAllBytes(networkOutput.toPath());
+        }
+        assertTrue(geneContents[0].length > 0 && networkContents[0].length > 0);
+        assertArrayEquals(geneContents[0], geneContents[1]);
+        assertArrayEquals(networkContents[0], networkContents[1]);
+    }
+
+    @Test
+    public void testCoalescentSimulatorLoci() throws IOException {
+        // a single iteration, whose gene trees are simulated in turn and whose loci are sequenced in parallel
+        final File output = File.createTempFile("loci", ".xml");
+        output.deleteOnExit();
+        final byte[][] contents = new byte[2][];
+        final int[] threads = {1, 4};
+        for (int k = 0; k < threads.length; k++) {
+            Randomizer.setSeed(53);
+            final RealParameter popSizes = new RealParameter("0.1");
+            final List<EmbeddedTree> geneTrees = newGeneTrees();
+            final List<SequenceSimulator> seqSimulators = new ArrayList<>();
+            for (EmbeddedTree geneTree : geneTrees)
+                seqSimulators.add(newSequenceSimulator(geneTree));
+
+            CoalescentSimulator simulator = new CoalescentSimulator();
+            simulator.initByName("state", newState(popSizes), "speciesNetwork", newSpeciesNetwork(),
+                    "popSizes", popSizes, "geneTree", geneTrees, "sequenceSimulator", seqSimulators,
+                    "outputFileName", output.getPath(), "useThreads", true, "threads", threads[k], "seed", seed);
+            simulator.run();
+            contents[k] = Files.readAllBytes(output.toPath());
+        }
+        assertTrue(new String(contents[0]).contains("<data id=\"gene" + nLoci + "\""));
+        assertArrayEquals(contents[0], contents[1]);
+    }
+
+    private Network newSpeciesNetwork() {
+        List<Taxon> superSetList = new ArrayList<>();
+        List<Taxon> taxonListA = new ArrayList<>();
+        taxonListA.add(new Taxon("a1"));
+        taxonListA.add(new Taxon("a2"));
+        superSetList.add(new TaxonSet("A", taxonListA));
+        List<Taxon> taxonListB = new ArrayList<>();
+        taxonListB.add(new Taxon("b1"));
+        superSetList.add(new TaxonSet("B", taxonListB));
+        List<Taxon> taxonListC = new ArrayList<>();
+        taxonListC.add(new Taxon("c1"));
+        superSetList.add(new TaxonSet("C", taxonListC));
+        Network speciesNetwork = new Network();
+        speciesNetwork.initByName("taxonset", new TaxonSet(superSetList));
+        return speciesNetwork;
+    }
+
+    private BirthHybridSimulator newNetworkSimulator() {
+        BirthHybridSimulator simulator = new BirthHybridSimulator();
+        simulator.initByName("speciesNetwork", newSpeciesNetwork(), "origin", new RealParameter("1.0"),
+                "birthRate", new RealParameter("2.0"), "hybridRate", new RealParameter("1.5"), "nHybrid", 1);
+        return simulator;
+    }
+
+    private List<EmbeddedTree> newGeneTrees() {
+        List<EmbeddedTree> geneTrees = new ArrayList<>();
+        for (int i = 0; i < nLoci; i++) {
+            TreeParser treeParser = new TreeParser();
+            treeParser.initByName("newick", newickGeneTree, "IsLabelledNewick", true);
+            EmbeddedTree geneTree = new EmbeddedTree(treeParser.getRoot());
+            geneTree.setID("gene" + (i + 1));
+            geneTree.ploidy = 2.0;  // not read from the input by this constructor
+            geneTrees.add(geneTree);
+        }
+        return geneTrees;
+    }
+
+    private static SequenceSimulator newSequenceSimulator(EmbeddedTree geneTree) {
+        List<Sequence> sequences = new ArrayList<>();
+        for (String taxon : new String[]{"a1", "a2", "b1", "c1"})
+            sequences.add(new Sequence(taxon, "?"));
+        Alignment data = new Alignment(sequences, "nucleotide");
+        JukesCantor substModel = new JukesCantor();
+        substModel.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("substModel", substModel);
+
+        SequenceSimulator seqSimulator = new SequenceSimulator();
+        seqSimulator.initByName("data", data, "tree", geneTree, "siteModel", siteModel, "sequencelength", 200);
+        return seqSimulator;
+    }
+
+    private static State newState(RealParameter popSizes) {
+        State state = new State();
+        state.initByName("stateNode", popSizes);
+        return state;
+    }
+}
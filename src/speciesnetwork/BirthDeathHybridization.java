@@ -16,7 +16,7 @@ import beast.base.inference.distribution.Beta;
  */
 
 @Description("Birth-death-hybridization model")
-public class BirthDeathHybridization extends Distribution {
+public class BirthDeathHybridization extends Distribution implements NetworkPrior {
     public final Input<Network> networkInput =
             new Input<>("network", "The species network.", Validate.REQUIRED);
     public final Input<RealParameter> birthRateInput =
@@ -36,17 +36,16 @@ public class BirthDeathHybridization extends Distribution {
     public final Input<RealParameter> betaShapeInput =
             new Input<>("betaShape", "Shape of the symmetric beta prior on gamma probs (default is 1).");
 
-    private static Comparator<NetworkNode> hc = new NodeHeightComparator();
-
-    private double lambda, mu, nu;
     private Beta betaPrior;
+    private RealParameter betaShape;
+    // the sums over the time intervals of the network in the state, kept across calls
+    private final LineageIntervals.Cache cachedIntervals = new LineageIntervals.Cache();
     final static double EPSILON = 1e-8;
 
     @Override
     public void initAndValidate() {
         // set up alpha and beta parameters (alpha = beta)
         betaPrior = new Beta();
-        final RealParameter betaShape;
         if (betaShapeInput.get() == null)
             betaShape = new RealParameter("1.0");  // default
         else
@@ -55,7 +54,9 @@ public class BirthDeathHybridization extends Distribution {
         betaPrior.betaInput.setValue(betaShape, betaPrior);
     }
 
-    private void updateParameters() {
+    // the rates are returned rather than kept in fields, so that different networks can be evaluated in parallel
+    private double[] getRates() {
+        final double lambda, mu, nu;
         if (birthRateInput.get() != null && deathRateInput.get() != null && hybridRateInput.get() != null) {
             lambda = birthRateInput.get().getValue();
             mu = deathRateInput.get().getValue();
@@ -76,44 +77,53 @@ public class BirthDeathHybridization extends Distribution {
 
         // assuming complete sampling, rho is unused
         // rho = rhoProbInput.get() == null ? 1.0 : rhoProbInput.get().getValue();
+        return new double[]{lambda, mu, nu};
     }
 
     @Override
     public double calculateLogP() {
-        final Network network = networkInput.get();
+        logP = networkLogP(networkInput.get());
+        return logP;
+    }
 
-        // sort the network nodes according to their heights in ascending order
-        List<NetworkNode> nodes = Arrays.asList(network.getAllNodes());
-        nodes.sort(hc);
+    @Override
+    public double getBetaShape() {
+        return betaShape.getValue();
+    }
+
+    @Override
+    public Network getNetwork() {
+        return networkInput.get();
+    }
+
+    @Override
+    public double networkLogP(final Network network) {
+        final LineageIntervals intervals = cachedIntervals.get(network, networkInput.get());
 
         // get current values of lambda, mu and nu
-        updateParameters();
-
-        logP = 0.0;
-        // calculate probability of the network
-        for (int i = 1; i < nodes.size(); i++) {
-            final NetworkNode node = nodes.get(i);
-            final double nodeHeight = node.getHeight();
-            final double nextHeight = nodes.get(i-1).getHeight();
-
-            if (nodeHeight > EPSILON) {  // rule out extant species
-                // number of branches in time interval (nodeHeight, nextHeight)
-                final int nBranch = network.getBranchCount((nodeHeight + nextHeight) /2.0);
-                final double totalRate = nBranch * (lambda + mu) + nu * nBranch * (nBranch -1) /2;
-                logP += totalRate * (nextHeight - nodeHeight);
-
-                // rate for a particular event at time nodeHeight
-                if (node.isReticulation()) {
-                    logP += Math.log(nu);
-                    logP += betaPrior.logDensity(node.inheritProb);
-                }
-                else if (node.isSpeciation()) {
-                    logP += Math.log(lambda);
-                }
-                else if (node.isLeaf()) {
-                    logP += Math.log(mu);
-                }
+        final double[] rates = getRates();
+        final double lambda = rates[0], mu = rates[1], nu = rates[2];
+
+        // calculate probability of the network, with the extinct species as death events
+        int nExtinct = 0;
+        for (int i = 0; i < network.leafNodeCount; i++) {
+            if (network.nodes[i].getHeight() > EPSILON)  // rule out extant species
+                nExtinct++;
+        }
+        double logP = - (lambda + mu) * intervals.lineageTime - nu * intervals.pairTime;
+        logP += intervals.nSpeciation * Math.log(lambda) + intervals.nReticulation * Math.log(nu);
+        logP += nExtinct * Math.log(mu);
+
+        // the beta prior on the gamma probs, with log density log(gamma^(a-1) * (1-gamma)^(a-1)) - log(B(a,a))
+        if (intervals.nReticulation > 0) {
+            final double a = betaShape.getValue();
+            final double logNormalizer;
+            synchronized (betaPrior) {  // the distribution is refreshed on each call
+                logNormalizer = betaPrior.logDensity(0.5) - 2 * (a - 1) * Math.log(0.5);
             }
+            logP += intervals.nReticulation * logNormalizer;
+            if (a != 1.0)
+                logP += (a - 1) * intervals.logGammaSum;
         }
 
         return logP;
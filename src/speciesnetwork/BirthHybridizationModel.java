@@ -16,7 +16,7 @@ import beast.base.inference.distribution.Beta;
  */
 
 @Description("Birth-hybridization model (i.e. no death)")
-public class BirthHybridizationModel extends Distribution {
+public class BirthHybridizationModel extends Distribution implements NetworkPrior {
     public final Input<Network> networkInput =
             new Input<>("network", "The species network.", Validate.REQUIRED);
     public final Input<RealParameter> birthRateInput =
@@ -32,10 +32,10 @@ public class BirthHybridizationModel extends Distribution {
     public final Input<RealParameter> betaShapeInput =
             new Input<>("betaShape", "Shape of the symmetric beta prior on gamma probs (default is 1).");
 
-    private static Comparator<NetworkNode> hc = new NodeHeightComparator();
-
-    private double lambda, nu;
     private Beta betaPrior;
+    private RealParameter betaShape;
+    // the sums over the time intervals of the network in the state, kept across calls
+    private final LineageIntervals.Cache cachedIntervals = new LineageIntervals.Cache();
     final static double EPSILON = 1e-8;
 
     @Override
@@ -52,7 +52,6 @@ public class BirthHybridizationModel extends Distribution {
 
         // set up alpha and beta parameters (alpha = beta)
         betaPrior = new Beta();
-        final RealParameter betaShape;
         if (betaShapeInput.get() == null)
             betaShape = new RealParameter("1.0");  // default
         else
@@ -61,7 +60,9 @@ public class BirthHybridizationModel extends Distribution {
         betaPrior.betaInput.setValue(betaShape, betaPrior);
     }
 
-    private void updateParameters() {
+    // the rates are returned rather than kept in fields, so that different networks can be evaluated in parallel
+    private double[] getRates() {
+        final double lambda, nu;
         if (birthRateInput.get() != null && hybridRateInput.get() != null) {
             lambda = birthRateInput.get().getValue();
             nu = hybridRateInput.get().getValue();
@@ -79,42 +80,47 @@ public class BirthHybridizationModel extends Distribution {
 
         // assuming complete sampling, rho is unused
         // rho = rhoProbInput.get() == null ? 1.0 : rhoProbInput.get().getValue();
+        return new double[]{lambda, nu};
     }
 
     @Override
     public double calculateLogP() {
-        final Network network = networkInput.get();
+        logP = networkLogP(networkInput.get());
+        return logP;
+    }
+
+    @Override
+    public double getBetaShape() {
+        return betaShape.getValue();
+    }
+
+    @Override
+    public Network getNetwork() {
+        return networkInput.get();
+    }
 
-        // sort the internal nodes according to their heights in ascending order
-        List<NetworkNode> nodes = Arrays.asList(network.getInternalNodesWithOrigin());
-        nodes.sort(hc);
+    @Override
+    public double networkLogP(final Network network) {
+        final LineageIntervals intervals = cachedIntervals.get(network, networkInput.get());
 
         // get current values of lambda and nu
-        updateParameters();
+        final double[] rates = getRates();
+        final double lambda = rates[0], nu = rates[1];
 
-        logP = 0.0;
         // calculate probability of the network
-        for (int i = 0; i < nodes.size(); i++) {
-            final NetworkNode node = nodes.get(i);
-            final double nodeHeight = node.getHeight();
-            final double nextHeight;
-            if (i == 0)  // the youngest internal node
-                nextHeight = 0.0;  // the tip
-            else
-                nextHeight = nodes.get(i-1).getHeight();
-            // number of branches in time interval (nodeHeight, nextHeight)
-            final int nBranch = network.getBranchCount((nodeHeight + nextHeight) /2.0);
-            final double totalRate = nBranch * lambda + nu * nBranch * (nBranch -1) /2;
-            logP += totalRate * (nextHeight - nodeHeight);
-
-            // rate for a particular event at time nodeHeight
-            if (node.isReticulation()) {
-                logP += Math.log(nu);
-                logP += betaPrior.logDensity(node.inheritProb);
-            }
-            else if (node.isSpeciation()) {
-                logP += Math.log(lambda);
+        double logP = - lambda * intervals.lineageTime - nu * intervals.pairTime;
+        logP += intervals.nSpeciation * Math.log(lambda) + intervals.nReticulation * Math.log(nu);
+
+        // the beta prior on the gamma probs, with log density log(gamma^(a-1) * (1-gamma)^(a-1)) - log(B(a,a))
+        if (intervals.nReticulation > 0) {
+            final double a = betaShape.getValue();
+            final double logNormalizer;
+            synchronized (betaPrior) {  // the distribution is refreshed on each call
+                logNormalizer = betaPrior.logDensity(0.5) - 2 * (a - 1) * Math.log(0.5);
             }
+            logP += intervals.nReticulation * logNormalizer;
+            if (a != 1.0)
+                logP += (a - 1) * intervals.logGammaSum;
         }
 
         return logP;
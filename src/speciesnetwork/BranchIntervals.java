@@ -0,0 +1,270 @@
+package speciesnetwork;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The branches of a species network as time intervals [child height, parent height], indexed for range queries.
+ * The tips, the speciation nodes and the reticulation nodes are each kept in ascending order of height. A branch is
+ * below a height if its child node is, and above a height if its parent node is, and each kind of node has a fixed
+ * number of parent and child branches, so the branches below (or above) a height and the branches alive at a time are
+ * counted by binary searches, and listed in constant time each. The orders do not depend on the topology otherwise.
+ * The index is kept up to date by the network: a node whose height is set is moved past its new neighbours, the nodes
+ * of a reticulation branch are inserted or removed when it is added or deleted, and the index of the stored network is
+ * swapped in on restore. Scaling the internal nodes by a positive factor keeps the orders.
+ */
+
+public class BranchIntervals {
+    private static final int LEAVES = 0, SPECIATIONS = 1, RETICULATIONS = 2;
+
+    private final Network network;
+    // the nodes of each kind in ascending order of height, the position of each node being its heightRank
+    private final NetworkNode[][] sorted = new NetworkNode[3][];
+    private final int[] sizes = new int[3];
+
+    BranchIntervals(Network network) {
+        this.network = network;
+        for (int g = 0; g < 3; g++)
+            sorted[g] = new NetworkNode[0];
+    }
+
+    /* rebuild from the nodes of the network */
+    void build() {
+        final int leafNodeCount = network.getLeafNodeCount();
+        final int reticulationOffset = network.getReticulationOffset();
+        sizes[LEAVES] = leafNodeCount;
+        sizes[SPECIATIONS] = reticulationOffset - leafNodeCount;
+        sizes[RETICULATIONS] = network.getNodeCount() - 1 - reticulationOffset;
+        for (int g = 0; g < 3; g++) {
+            ensureCapacity(g, sizes[g]);
+            final int offset = g == LEAVES ? 0 : g == SPECIATIONS ? leafNodeCount : reticulationOffset;
+            for (int i = 0; i < sizes[g]; i++)
+                sorted[g][i] = network.nodes[offset + i];
+            Arrays.sort(sorted[g], 0, sizes[g], Comparator.comparingDouble(NetworkNode::getHeight));
+            for (int i = 0; i < sizes[g]; i++)
+                sorted[g][i].heightRank = i;
+        }
+    }
+
+    /* copy the index of the network, for its nodes copied to the given array (such as when storing the network) */
+    void assignFrom(BranchIntervals src, NetworkNode[] copies) {
+        final int leafNodeCount = network.getLeafNodeCount();
+        final int reticulationOffset = network.getReticulationOffset();
+        for (int g = 0; g < 3; g++) {
+            sizes[g] = src.sizes[g];
+            ensureCapacity(g, sizes[g]);
+        }
+        for (int i = 0; i < network.getNodeCount() - 1; i++) {
+            final int g = i < leafNodeCount ? LEAVES : i < reticulationOffset ? SPECIATIONS : RETICULATIONS;
+            sorted[g][network.nodes[i].heightRank] = copies[i];
+        }
+    }
+
+    private void ensureCapacity(int g, int size) {
+        if (sorted[g].length < size)
+            sorted[g] = Arrays.copyOf(sorted[g], Math.max(size, 2 * sorted[g].length));
+    }
+
+    // the kind of a node in the index, or -1 if it is not in the index (such as a new node not yet added)
+    private int getGroup(NetworkNode node) {
+        final int rank = node.heightRank;
+        for (int g = 0; g < 3; g++) {
+            if (rank >= 0 && rank < sizes[g] && sorted[g][rank] == node)
+                return g;
+        }
+        return -1;
+    }
+
+    /* move the node past its new neighbours after its height changed */
+    void heightChanged(NetworkNode node) {
+        final int g = getGroup(node);
+        if (g < 0) return;
+        final NetworkNode[] nodes = sorted[g];
+        final double height = node.getHeight();
+        int i = node.heightRank;
+        while (i > 0 && nodes[i - 1].getHeight() > height) {
+            nodes[i] = nodes[i - 1];
+            nodes[i].heightRank = i;
+            i--;
+        }
+        while (i + 1 < sizes[g] && nodes[i + 1].getHeight() < height) {
+            nodes[i] = nodes[i + 1];
+            nodes[i].heightRank = i;
+            i++;
+        }
+        nodes[i] = node;
+        node.heightRank = i;
+    }
+
+    /* insert the two nodes of a reticulation branch added to the network */
+    void reticulationAdded(NetworkNode reticulationNode, NetworkNode bifurcationNode) {
+        insert(RETICULATIONS, reticulationNode);
+        insert(SPECIATIONS, bifurcationNode);
+    }
+
+    /* remove the two nodes of a reticulation branch deleted from the network */
+    void reticulationDeleted(NetworkNode reticulationNode, NetworkNode bifurcationNode) {
+        remove(RETICULATIONS, reticulationNode);
+        remove(SPECIATIONS, bifurcationNode);
+    }
+
+    private void insert(int g, NetworkNode node) {
+        ensureCapacity(g, sizes[g] + 1);
+        final NetworkNode[] nodes = sorted[g];
+        int i = upperBound(g, node.getHeight());
+        System.arraycopy(nodes, i, nodes, i + 1, sizes[g] - i);
+        nodes[i] = node;
+        sizes[g]++;
+        for (; i < sizes[g]; i++)
+            nodes[i].heightRank = i;
+    }
+
+    private void remove(int g, NetworkNode node) {
+        final NetworkNode[] nodes = sorted[g];
+        int i = node.heightRank;
+        System.arraycopy(nodes, i + 1, nodes, i, sizes[g] - i - 1);
+        nodes[--sizes[g]] = null;
+        for (; i < sizes[g]; i++)
+            nodes[i].heightRank = i;
+        node.heightRank = -1;
+    }
+
+    /**
+     * @return the number of branches whose child node is lower than height
+     */
+    public int countBelow(double height) {
+        return lowerBound(LEAVES, height) + lowerBound(SPECIATIONS, height) + 2 * lowerBound(RETICULATIONS, height);
+    }
+
+    /**
+     * @return the i-th branch whose child node is lower than height, for i < countBelow(height)
+     */
+    public int getBelow(double height, int i) {
+        for (int g = 0; g < 2; g++) {
+            final int n = lowerBound(g, height);
+            if (i < n)
+                return sorted[g][i].gammaBranchNumber;
+            i -= n;
+        }
+        final int n = lowerBound(RETICULATIONS, height);
+        return sorted[RETICULATIONS][i % n].gammaBranchNumber + i / n;
+    }
+
+    /**
+     * @return the i-th branch whose child node is lower than height other than the two given (different) branches
+     * below height, for i < countBelow(height) - 2
+     */
+    public int getBelow(double height, int i, int skipBranchNr1, int skipBranchNr2) {
+        return getBelow(height, skipIndices(i, getBelowIndex(height, skipBranchNr1),
+                                            getBelowIndex(height, skipBranchNr2)));
+    }
+
+    /**
+     * @return the index i of the branch in getBelow(height, i), for a branch whose child node is lower than height
+     */
+    public int getBelowIndex(double height, int branchNr) {
+        final NetworkNode node = network.getNode(network.getNodeNumber(branchNr));
+        final int g = getGroup(node);
+        int i = node.heightRank;
+        for (int h = 0; h < g; h++)
+            i += lowerBound(h, height);
+        if (g == RETICULATIONS && branchNr != node.gammaBranchNumber)
+            i += lowerBound(RETICULATIONS, height);
+        return i;
+    }
+
+    /**
+     * @return the number of branches whose parent node is higher than height
+     */
+    public int countAbove(double height) {
+        return (network.getOrigin().getHeight() > height ? 1 : 0) +
+                2 * (sizes[SPECIATIONS] - upperBound(SPECIATIONS, height)) +
+                (sizes[RETICULATIONS] - upperBound(RETICULATIONS, height));
+    }
+
+    /**
+     * @return the i-th branch whose parent node is higher than height, for i < countAbove(height)
+     */
+    public int getAbove(double height, int i) {
+        final NetworkNode origin = network.getOrigin();
+        if (origin.getHeight() > height) {
+            if (i == 0)
+                return origin.childBranchNumbers.get(0);
+            i--;
+        }
+        final int first = upperBound(SPECIATIONS, height);
+        final int n = sizes[SPECIATIONS] - first;
+        if (i < 2 * n)
+            return sorted[SPECIATIONS][first + i % n].childBranchNumbers.get(i / n);
+        i -= 2 * n;
+        return sorted[RETICULATIONS][upperBound(RETICULATIONS, height) + i].childBranchNumbers.get(0);
+    }
+
+    /**
+     * @return the i-th branch whose parent node is higher than height other than the two given (different) branches
+     * above height, for i < countAbove(height) - 2
+     */
+    public int getAbove(double height, int i, int skipBranchNr1, int skipBranchNr2) {
+        return getAbove(height, skipIndices(i, getAboveIndex(height, skipBranchNr1),
+                                            getAboveIndex(height, skipBranchNr2)));
+    }
+
+    /**
+     * @return the index i of the branch in getAbove(height, i), for a branch whose parent node is higher than height
+     */
+    public int getAboveIndex(double height, int branchNr) {
+        final NetworkNode child = network.getNode(network.getNodeNumber(branchNr));
+        final NetworkNode parent = child.getParentByBranch(branchNr);
+        if (parent.isOrigin())
+            return 0;
+        int i = network.getOrigin().getHeight() > height ? 1 : 0;
+        final int first = upperBound(SPECIATIONS, height);
+        final int n = sizes[SPECIATIONS] - first;
+        if (getGroup(parent) == SPECIATIONS)
+            return i + parent.childBranchNumbers.indexOf(branchNr) * n + parent.heightRank - first;
+        return i + 2 * n + parent.heightRank - upperBound(RETICULATIONS, height);
+    }
+
+    /* the i-th index, skipping two (different) indices */
+    private static int skipIndices(int i, int skip1, int skip2) {
+        if (i >= Math.min(skip1, skip2)) i++;
+        if (i >= Math.max(skip1, skip2)) i++;
+        return i;
+    }
+
+    /**
+     * @return the number of branches alive at time, i.e. child height <= time < parent height
+     */
+    public int countAlive(double time) {
+        // any branch with parent height <= time also has child height <= time
+        final int childrenBelow = upperBound(LEAVES, time) + upperBound(SPECIATIONS, time) +
+                2 * upperBound(RETICULATIONS, time);
+        final int parentsBelow = (network.getOrigin().getHeight() <= time ? 1 : 0) +
+                2 * upperBound(SPECIATIONS, time) + upperBound(RETICULATIONS, time);
+        return childrenBelow - parentsBelow;
+    }
+
+    // number of nodes of the kind lower than height
+    private int lowerBound(int g, double height) {
+        final NetworkNode[] nodes = sorted[g];
+        int low = 0, high = sizes[g];
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (nodes[middle].getHeight() < height) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    // number of nodes of the kind not higher than height
+    private int upperBound(int g, double height) {
+        final NetworkNode[] nodes = sorted[g];
+        int low = 0, high = sizes[g];
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (nodes[middle].getHeight() <= height) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
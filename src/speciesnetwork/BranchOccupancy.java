@@ -0,0 +1,123 @@
+package speciesnetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * The internal nodes of a gene tree in each branch of the species network, in ascending order of height.
+ * The index is built by following the embedding, and is valid for the edit stamps of the gene tree and the species
+ * network at that time. An operator which changes node heights but keeps every gene tree node in the same species
+ * branch and in the same order (such as the rubber band) can mark the index valid for the new state as well, so that
+ * it is valid whether the proposal is accepted or rejected.
+ */
+
+public class BranchOccupancy {
+    private static final long NONE = Long.MIN_VALUE;
+
+    // gene tree node numbers in each species branch, by branch number
+    private final Map<Integer, int[]> branchNodes = new HashMap<>();
+    // two pairs of (gene tree, species network) edit stamps for which the index is valid
+    private long treeStamp = NONE, networkStamp = NONE;
+    private long otherTreeStamp = NONE, otherNetworkStamp = NONE;
+
+    public void build(EmbeddedTree geneTree, Network speciesNetwork) {
+        final Map<Integer, List<Integer>> nodeLists = new HashMap<>();
+        final NetworkNode speciesRoot = speciesNetwork.getRoot();
+        recurseBuild(geneTree.getRoot(), speciesRoot, speciesRoot.gammaBranchNumber, geneTree.embedding, nodeLists);
+
+        final Comparator<Integer> byHeight = Comparator.comparingDouble(nr -> geneTree.getNode(nr).getHeight());
+        branchNodes.clear();
+        for (Map.Entry<Integer, List<Integer>> entry: nodeLists.entrySet()) {
+            final List<Integer> nodeList = entry.getValue();
+            nodeList.sort(byHeight);
+            final int[] nodeNrs = new int[nodeList.size()];
+            for (int i = 0; i < nodeNrs.length; i++)
+                nodeNrs[i] = nodeList.get(i);
+            branchNodes.put(entry.getKey(), nodeNrs);
+        }
+
+        treeStamp = otherTreeStamp = geneTree.getEditStamp();
+        networkStamp = otherNetworkStamp = speciesNetwork.getEditStamp();
+    }
+
+    /* follow the embedding down from the branch of the parent gene tree node to the branch of this gene tree node */
+    private void recurseBuild(final Node geneTreeNode, NetworkNode speciesNode, Integer branchNr,
+                              final Embedding embedding, final Map<Integer, List<Integer>> nodeLists) {
+        if (geneTreeNode.isLeaf()) return;
+
+        final int geneTreeNodeNr = geneTreeNode.getNr();
+        while (!speciesNode.isLeaf() && geneTreeNode.getHeight() <= speciesNode.getHeight()) {
+            branchNr = embedding.getDirection(geneTreeNodeNr, speciesNode.getTraversalNumber());
+            speciesNode = speciesNode.getChildByBranch(branchNr);
+        }
+        nodeLists.computeIfAbsent(branchNr, k -> new ArrayList<>()).add(geneTreeNodeNr);
+
+        for (Node child: geneTreeNode.getChildren())
+            recurseBuild(child, speciesNode, branchNr, embedding, nodeLists);
+    }
+
+    public boolean isValid(EmbeddedTree geneTree, Network speciesNetwork) {
+        final long tStamp = geneTree.getEditStamp();
+        final long nStamp = speciesNetwork.getEditStamp();
+        if (tStamp == otherTreeStamp && nStamp == otherNetworkStamp) {
+            // keep the state just checked as the first pair
+            otherTreeStamp = treeStamp;
+            otherNetworkStamp = networkStamp;
+            treeStamp = tStamp;
+            networkStamp = nStamp;
+        }
+        return tStamp == treeStamp && nStamp == networkStamp;
+    }
+
+    /* the index is valid for the current state as well as the state it was last checked for */
+    public void keepValid(EmbeddedTree geneTree, Network speciesNetwork) {
+        otherTreeStamp = geneTree.getEditStamp();
+        otherNetworkStamp = speciesNetwork.getEditStamp();
+    }
+
+    /**
+     * @return whether any internal node of the gene tree (including its root) is in one of the species branches
+     */
+    public boolean hasNodesIn(Collection<Integer> branchNrs) {
+        for (Integer branchNr: branchNrs) {
+            if (branchNodes.containsKey(branchNr))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return numbers of the gene tree nodes in the species branch with heights strictly between lower and upper,
+     * in ascending order of height
+     */
+    public int[] getNodes(EmbeddedTree geneTree, Integer branchNr, double lower, double upper) {
+        final int[] nodeNrs = branchNodes.get(branchNr);
+        if (nodeNrs == null)
+            return new int[0];
+        final int from = firstAbove(geneTree, nodeNrs, lower);
+        int to = from;
+        while (to < nodeNrs.length && geneTree.getNode(nodeNrs[to]).getHeight() < upper)
+            to++;
+        return Arrays.copyOfRange(nodeNrs, from, to);
+    }
+
+    // binary search for the first node higher than the given height
+    private int firstAbove(final EmbeddedTree geneTree, final int[] nodeNrs, final double height) {
+        int low = 0, high = nodeNrs.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (geneTree.getNode(nodeNrs[mid]).getHeight() > height)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+}
@@ -25,19 +25,36 @@ public class ConstantPopulation extends PopulationSizeModel {
         final RealParameter popSizes = popSizesInput.get();
         final double popSize = popSizes.getValue(speciesBranchNumber);
 
-        final int nGenes = perGenePloidy.length;
+        final int branchQ = getBranchEventCount(branchEventCounts);
+        final double branchGamma = getBranchGamma(perGenePloidy, branchCoalescentTimes, branchLineageCounts, branchEventCounts);
+        double branchLogR = 0.0;
+        for (int j = 0; j < perGenePloidy.length; j++)
+            branchLogR -= branchEventCounts[j] * Math.log(perGenePloidy[j]);
+
+        return branchLogR - (branchQ * Math.log(popSize)) - (branchGamma / popSize);
+    }
 
+    /**
+     * @return the number of coalescent events in the branch, summed over the loci
+     */
+    public static int getBranchEventCount(int[] branchEventCounts) {
         int branchQ = 0;
-        double branchLogR = 0.0;
-        double branchGamma = 0.0;
+        for (int geneK : branchEventCounts)
+            branchQ += geneK;
+        return branchQ;
+    }
 
-        for (int j = 0; j < nGenes; j++) {
+    /**
+     * @return the sum over the loci of the time intervals times the pairs of lineages, divided by the ploidy,
+     * so that the branch log probability is -q*log(N) - gamma/N + const
+     */
+    public static double getBranchGamma(double[] perGenePloidy, List<Double[]> branchCoalescentTimes,
+                                        int[] branchLineageCounts, int[] branchEventCounts) {
+        double branchGamma = 0.0;
+        for (int j = 0; j < perGenePloidy.length; j++) {
             final int geneN = branchLineageCounts[j];
             final Double[] geneCoalescentTimes = branchCoalescentTimes.get(j);
             final int geneK = branchEventCounts[j];
-            final double genePloidy = perGenePloidy[j];
-            branchLogR -= geneK * Math.log(genePloidy);
-            branchQ += geneK;
 
             double partialGamma = 0.0;
             for (int i = 0; i < geneK; i++) {
@@ -48,10 +65,9 @@ public class ConstantPopulation extends PopulationSizeModel {
                 partialGamma += (geneCoalescentTimes[geneK + 1] - geneCoalescentTimes[geneK])
                                 * (geneN - geneK) * (geneN - geneK - 1.0) / 2.0;
             }
-            branchGamma += partialGamma / genePloidy;
+            branchGamma += partialGamma / perGenePloidy[j];
         }
-
-        return branchLogR - (branchQ * Math.log(popSize)) - (branchGamma / popSize);
+        return branchGamma;
     }
 
     @Override
@@ -1,6 +1,9 @@
 package speciesnetwork;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import beast.base.core.Input;
+import beast.base.inference.Operator;
 import beast.base.inference.StateNode;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
@@ -12,6 +15,12 @@ public class EmbeddedTree extends Tree {
     public double ploidy;
     public Embedding embedding;
     private Embedding storedEmbedding;
+    // changed whenever the gene tree or its embedding is edited, and restored together with them
+    private long editStamp = -1;
+    private long storedEditStamp = -1;
+    private static final AtomicLong editStamps = new AtomicLong();
+    // the gene tree nodes in each species network branch, only rebuilt if out of date
+    private BranchOccupancy occupancy;
 
     public EmbeddedTree() {
     }
@@ -42,11 +51,37 @@ public class EmbeddedTree extends Tree {
         etree.nodeCount = nodeCount;
         etree.internalNodeCount = internalNodeCount;
         etree.leafNodeCount = leafNodeCount;
+        etree.ploidy = ploidy;
         etree.embedding = new Embedding(embedding);
         etree.storedEmbedding = new Embedding(storedEmbedding);
         return etree;
     }
 
+    /**
+     * @return a number which is different after each edit of the gene tree, and restored together with the gene tree
+     */
+    public long getEditStamp() {
+        return editStamp;
+    }
+
+    @Override
+    public void startEditing(final Operator operator) {
+        super.startEditing(operator);
+        editStamp = editStamps.incrementAndGet();
+    }
+
+    /**
+     * @return the gene tree nodes in each branch of the species network, rebuilt if the gene tree or the species
+     * network has been edited since the last call
+     */
+    public BranchOccupancy getBranchOccupancy(final Network speciesNetwork) {
+        if (occupancy == null)
+            occupancy = new BranchOccupancy();
+        if (!occupancy.isValid(this, speciesNetwork))
+            occupancy.build(this, speciesNetwork);
+        return occupancy;
+    }
+
     /**
      * copy of all values into existing tree *
      */
@@ -54,8 +89,9 @@ public class EmbeddedTree extends Tree {
     public void assignTo(final StateNode other) {
         super.assignTo(other);
         final EmbeddedTree etree = (EmbeddedTree) other;
-        etree.embedding = new Embedding(embedding);
-        etree.storedEmbedding = new Embedding(storedEmbedding);
+        etree.embedding = share(etree.embedding, embedding);
+        etree.storedEmbedding = share(etree.storedEmbedding, storedEmbedding);
+        etree.editStamp = editStamps.incrementAndGet();
     }
 
     /**
@@ -65,8 +101,9 @@ public class EmbeddedTree extends Tree {
     public void assignFrom(final StateNode other) {
         super.assignFrom(other);
         final EmbeddedTree etree = (EmbeddedTree) other;
-        embedding = new Embedding(etree.embedding);
-        storedEmbedding = new Embedding(etree.storedEmbedding);
+        embedding = share(embedding, etree.embedding);
+        storedEmbedding = share(storedEmbedding, etree.storedEmbedding);
+        editStamp = editStamps.incrementAndGet();
     }
 
     /**
@@ -76,8 +113,18 @@ public class EmbeddedTree extends Tree {
     public void assignFromFragile(final StateNode other) {
         super.assignFromFragile(other);
         final EmbeddedTree etree = (EmbeddedTree) other;
-        embedding = new Embedding(etree.embedding);
-        storedEmbedding = new Embedding(etree.storedEmbedding);
+        embedding = share(embedding, etree.embedding);
+        storedEmbedding = share(storedEmbedding, etree.storedEmbedding);
+        editStamp = editStamps.incrementAndGet();
+    }
+
+    // make target share the matrix of src, releasing the matrix that target used before
+    private static Embedding share(final Embedding target, final Embedding src) {
+        if (target == null)
+            return new Embedding(src);
+        if (target != src)
+            target.copyFrom(src);
+        return target;
     }
 
     public void assignFromTree(final StateNode other) {
@@ -91,7 +138,9 @@ public class EmbeddedTree extends Tree {
     @Override
     public void store() {
         super.store();
+        // O(1), the embedding matrix is only copied when it is modified (copy-on-write)
         storedEmbedding.copyFrom(embedding);
+        storedEditStamp = editStamp;
     }
 
     @Override
@@ -100,6 +149,9 @@ public class EmbeddedTree extends Tree {
         final Embedding tmpEmbedding = embedding;
         embedding = storedEmbedding;
         storedEmbedding = tmpEmbedding;
+        final long tmpEditStamp = editStamp;
+        editStamp = storedEditStamp;
+        storedEditStamp = tmpEditStamp;
     }
 
     @Override
@@ -119,12 +171,16 @@ public class EmbeddedTree extends Tree {
         for (int i = 0; i < nodeCount; i++) {
             final String embedStr = (String) m_nodes[i].getMetaData("embedding");
             String[] parts = embedStr.split(" ");
-            if (i == 0) embedding = new Embedding(nodeCount, parts.length);
+            if (i == 0) {
+                if (embedding != null) embedding.release();
+                embedding = new Embedding(nodeCount, parts.length);
+            }
             for(int j = 0; j < parts.length; j++) {
                 final int value = Integer.parseInt(parts[j]);
                 embedding.setDirection(i, j, value);
             }
         }
+        editStamp = editStamps.incrementAndGet();
         // System.out.println(getID() + "\n" + toString());
     }
 }
@@ -4,6 +4,7 @@ public class Embedding {
     public int geneNodeCount;
     public int traversalNodeCount;      // number of traversable species network nodes
     protected int[] embedding;          // matrix with nrow=geneNodeCount and ncol=traversalNodeCount
+    private int[] owners;               // number of embeddings sharing the matrix above (copy-on-write)
     public double probability = 1.0;    // probability of this embedding
     public double probabilitySum = 1.0; // sum of probabilities of all alternative embeddings
 
@@ -12,6 +13,7 @@ public class Embedding {
         traversalNodeCount = 1;
         embedding = new int[geneNodeCount * traversalNodeCount];
         java.util.Arrays.fill(embedding, -1);
+        owners = new int[]{1};
     }
 
     public Embedding(int gnc, int tnc) {
@@ -19,21 +21,50 @@ public class Embedding {
         traversalNodeCount = tnc;
         embedding = new int[geneNodeCount * traversalNodeCount];
         java.util.Arrays.fill(embedding, -1);
+        owners = new int[]{1};
     }
 
+    // the matrix is shared with src, and only copied when either embedding is written
     public Embedding(Embedding src) {
         geneNodeCount = src.geneNodeCount;
         traversalNodeCount = src.traversalNodeCount;
-        embedding = new int[src.embedding.length];
-        System.arraycopy(src.embedding, 0, embedding, 0, embedding.length);
+        embedding = src.embedding;
+        owners = src.owners;
+        owners[0]++;
         probability = src.probability;
         probabilitySum = src.probabilitySum;
     }
 
+    /**
+     * @return the matrix, which may be shared with other embeddings and must not be modified
+     */
     public int[] getEmbedding() {
         return embedding;
     }
 
+    /**
+     * @return true if the matrix is shared with another embedding (not yet copied)
+     */
+    public boolean isShared() {
+        return owners[0] > 1;
+    }
+
+    // detach from the shared matrix before the first write
+    private void prepareWrite() {
+        if (owners[0] > 1) {
+            owners[0]--;
+            embedding = embedding.clone();
+            owners = new int[]{1};
+        }
+    }
+
+    // drop the current matrix and start with a new one of the given length
+    private void allocate(int length) {
+        owners[0]--;
+        embedding = new int[length];
+        owners = new int[]{1};
+    }
+
     public int getDirection(int geneNode, int traversalNode) {
         final int i = (traversalNodeCount * geneNode) + traversalNode;
         return embedding[i];
@@ -41,33 +72,57 @@ public class Embedding {
 
     public void setDirection(int geneNode, int traversalNode, int value) {
         final int i = (traversalNodeCount * geneNode) + traversalNode;
+        if (embedding[i] == value) return;
+        prepareWrite();
         embedding[i] = value;
     }
 
+    // clear the directions of a single gene tree node
+    public void clearRow(int geneNode) {
+        prepareWrite();
+        final int offset = geneNode * traversalNodeCount;
+        java.util.Arrays.fill(embedding, offset, offset + traversalNodeCount, -1);
+    }
+
     public void reset(int tnc) {
         // assume that geneNodeCount is not changed and only check traversalNodeCount
-        if (traversalNodeCount != tnc) {
+        if (traversalNodeCount != tnc || owners[0] > 1) {
             traversalNodeCount = tnc;
-            embedding = new int[geneNodeCount * traversalNodeCount];
+            // no need to copy a shared matrix which will be overwritten anyway
+            allocate(geneNodeCount * traversalNodeCount);
         }
         java.util.Arrays.fill(embedding, -1);
     }
 
+    /* share the matrix of src instead of copying it, which makes storing an embedding O(1)
+       the (possibly shared) matrix is copied by whichever embedding is written first */
     public void copyFrom(Embedding src) {
-        // assume that geneNodeCount is not changed and only check traversalNodeCount
-        if (traversalNodeCount != src.traversalNodeCount) {
-            traversalNodeCount = src.traversalNodeCount;
-            embedding = new int[src.embedding.length];
+        if (embedding != src.embedding) {
+            owners[0]--;
+            embedding = src.embedding;
+            owners = src.owners;
+            owners[0]++;
         }
-        System.arraycopy(src.embedding, 0, embedding, 0, embedding.length);
+        geneNodeCount = src.geneNodeCount;
+        traversalNodeCount = src.traversalNodeCount;
         probability = src.probability;
         probabilitySum = src.probabilitySum;
     }
 
+    /* stop sharing the matrix when this embedding is dropped, so that the others are not copied needlessly
+       the embedding must not be used afterwards */
+    public void release() {
+        if (owners[0] > 0)
+            owners[0]--;
+        owners = new int[]{0};
+        embedding = null;
+    }
+
     public void mergeWith(Embedding src) {
         assert src.geneNodeCount == geneNodeCount;
         assert src.traversalNodeCount == traversalNodeCount;
 
+        prepareWrite();
         probability *= src.probability;
         probabilitySum *= src.probabilitySum;
         for (int i = 0; i < embedding.length; i++) {
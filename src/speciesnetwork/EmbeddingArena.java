@@ -0,0 +1,74 @@
+package speciesnetwork;
+
+/**
+ * A growable buffer of embedding entries (gene node, traversal node, direction), used to build a gene tree embedding
+ * without allocating a full matrix for every partial embedding. A partial embedding is a segment of entries ending at
+ * the top of the arena, so that merging the embeddings of two sibling subtrees costs nothing, and dropping or keeping
+ * an alternative embedding only touches the entries written in that subtree.
+ * The arena is not thread-safe, use one arena per thread.
+ */
+
+public class EmbeddingArena {
+    private int[] geneNodes;
+    private int[] traversalNodes;
+    private int[] directions;
+    private int size;
+
+    public EmbeddingArena() {
+        this(64);
+    }
+
+    public EmbeddingArena(int initialCapacity) {
+        geneNodes = new int[initialCapacity];
+        traversalNodes = new int[initialCapacity];
+        directions = new int[initialCapacity];
+        size = 0;
+    }
+
+    /**
+     * @return the number of entries in the arena, which is also the start of the next segment
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(int geneNode, int traversalNode, int direction) {
+        if (size == directions.length) {
+            final int newCapacity = 2 * size;
+            geneNodes = java.util.Arrays.copyOf(geneNodes, newCapacity);
+            traversalNodes = java.util.Arrays.copyOf(traversalNodes, newCapacity);
+            directions = java.util.Arrays.copyOf(directions, newCapacity);
+        }
+        geneNodes[size] = geneNode;
+        traversalNodes[size] = traversalNode;
+        directions[size] = direction;
+        size++;
+    }
+
+    /* drop all the entries from 'start' to the top */
+    public void truncate(int start) {
+        assert start >= 0 && start <= size;
+        size = start;
+    }
+
+    /* drop the entries in [to, from) by moving the segment [from, size) down to start at 'to' */
+    public void moveDown(int from, int to) {
+        assert to <= from && from <= size;
+        final int length = size - from;
+        System.arraycopy(geneNodes, from, geneNodes, to, length);
+        System.arraycopy(traversalNodes, from, traversalNodes, to, length);
+        System.arraycopy(directions, from, directions, to, length);
+        size = to + length;
+    }
+
+    /* write the entries from 'start' to the top into the embedding matrix */
+    public void applyTo(Embedding embedding, int start) {
+        for (int i = start; i < size; i++) {
+            embedding.setDirection(geneNodes[i], traversalNodes[i], directions[i]);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package speciesnetwork;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+
+/**
+ * A fast check of whether gene trees can be embedded in a species network at all.
+ * For each pair of species, the index keeps the earliest height of a species node below which both species are, at
+ * which their lineages can coalesce at the earliest. A gene tree node must be older than that height for every pair
+ * of species in its clade, and the maximum over the pairs is carried up the gene tree with one representative species
+ * of each clade, so checking a gene tree takes O(clades) without building any embedding.
+ * The index is only rebuilt when the edit stamp of the species network has changed, and the last two versions are
+ * kept, so that a rejected proposal (restoring the stamp) does not need a rebuild either.
+ * The check is necessary (but not sufficient) for a valid embedding. Not thread-safe.
+ */
+
+public class EmbeddingFeasibility {
+    private final Map<String, Integer> tipSpeciesIndex;  // gene tree tip name -> species index
+    private final Map<String, Integer> speciesIndex;     // species name -> species index
+    private final int speciesCount;
+    private final int words;  // number of longs in each bitset
+
+    // species index of each gene tree leaf, by leaf node number
+    private final Map<EmbeddedTree, int[]> geneTipSpecies = new IdentityHashMap<>();
+
+    private Network network;  // the species network of the current index
+    private long stamp = -1, otherStamp = -1;  // edit stamps of the current and the other index
+    private double[] pairHeights, otherPairHeights;  // earliest coalescent height of each pair of species
+    private long[] speciesClusters;  // species below each species network node, by node number
+    private boolean[] visited;
+
+    private double[] geneBounds;  // earliest height of each gene tree clade, by node number
+    private int[] geneSpecies;    // a species of each gene tree clade, by node number
+
+    public EmbeddingFeasibility(TaxonSet taxonSuperSet) {
+        tipSpeciesIndex = new HashMap<>();
+        speciesIndex = new HashMap<>();
+        for (Taxon species: taxonSuperSet.taxonsetInput.get()) {
+            final int index = speciesIndex.size();
+            speciesIndex.put(species.getID(), index);
+            for (Taxon geneTip: ((TaxonSet) species).taxonsetInput.get())
+                tipSpeciesIndex.put(geneTip.getID(), index);
+        }
+        speciesCount = speciesIndex.size();
+        words = (speciesCount + 63) / 64;
+        pairHeights = new double[speciesCount * speciesCount];
+        otherPairHeights = new double[speciesCount * speciesCount];
+        geneBounds = new double[0];
+        geneSpecies = new int[0];
+    }
+
+    /* index the species network as it is now, must be called after the species network is changed */
+    public void update(Network speciesNetwork) {
+        final long editStamp = speciesNetwork.getEditStamp();
+        if (speciesNetwork == network && editStamp >= 0) {
+            if (editStamp == stamp)
+                return;
+            if (editStamp == otherStamp) {  // such as after a rejected proposal
+                swap();
+                return;
+            }
+        }
+        swap();  // keep the current index as the other one
+        network = speciesNetwork;
+        stamp = editStamp;
+
+        final int nodeCount = speciesNetwork.getNodeCount();
+        if (visited == null || visited.length < nodeCount) {
+            speciesClusters = new long[nodeCount * words];
+            visited = new boolean[nodeCount];
+        }
+        Arrays.fill(speciesClusters, 0L);
+        Arrays.fill(visited, false);
+        Arrays.fill(pairHeights, Double.POSITIVE_INFINITY);
+        recurseSpeciesClusters(speciesNetwork.getOrigin());
+    }
+
+    private void swap() {
+        final double[] tmpHeights = pairHeights;
+        pairHeights = otherPairHeights;
+        otherPairHeights = tmpHeights;
+        final long tmpStamp = stamp;
+        stamp = otherStamp;
+        otherStamp = tmpStamp;
+    }
+
+    // the pairs of species from different children first meet at the node (those from the same child meet lower)
+    private void recurseSpeciesClusters(final NetworkNode speciesNode) {
+        final int nodeNr = speciesNode.getNr();
+        if (visited[nodeNr]) return;
+        visited[nodeNr] = true;
+
+        final int offset = nodeNr * words;
+        final double height = speciesNode.getHeight();
+        if (speciesNode.isLeaf()) {
+            final int index = speciesIndex.get(speciesNode.getLabel());
+            speciesClusters[offset + index / 64] |= 1L << (index % 64);
+            setPairHeight(index, index, height);
+        }
+        final NetworkNode[] children = speciesNode.getChildren().toArray(new NetworkNode[0]);
+        for (int i = 0; i < children.length; i++) {
+            recurseSpeciesClusters(children[i]);
+            final int childOffset = children[i].getNr() * words;
+            for (int j = 0; j < i; j++) {
+                final int otherOffset = children[j].getNr() * words;
+                for (int a = 0; a < speciesCount; a++) {
+                    if (!contains(childOffset, a)) continue;
+                    for (int b = 0; b < speciesCount; b++) {
+                        if (contains(otherOffset, b))
+                            setPairHeight(a, b, height);
+                    }
+                }
+            }
+            for (int k = 0; k < words; k++)
+                speciesClusters[offset + k] |= speciesClusters[childOffset + k];
+        }
+    }
+
+    private boolean contains(final int speciesOffset, final int index) {
+        return (speciesClusters[speciesOffset + index / 64] & (1L << (index % 64))) != 0;
+    }
+
+    private void setPairHeight(final int a, final int b, final double height) {
+        if (height < pairHeights[a * speciesCount + b]) {
+            pairHeights[a * speciesCount + b] = height;
+            pairHeights[b * speciesCount + a] = height;
+        }
+    }
+
+    /**
+     * @return false if the gene tree cannot be embedded in the species network given to the last call of update
+     */
+    public boolean isFeasible(EmbeddedTree geneTree) {
+        final int[] tipSpecies = geneTipSpecies.computeIfAbsent(geneTree, this::mapTipSpecies);
+        final int nodeCount = geneTree.getNodeCount();
+        if (geneBounds.length < nodeCount) {
+            geneBounds = new double[nodeCount];
+            geneSpecies = new int[nodeCount];
+        }
+        return recurseFeasible(geneTree.getRoot(), tipSpecies);
+    }
+
+    private int[] mapTipSpecies(final EmbeddedTree geneTree) {
+        final int[] tipSpecies = new int[geneTree.getLeafNodeCount()];
+        for (int i = 0; i < tipSpecies.length; i++) {
+            final Integer index = tipSpeciesIndex.get(geneTree.getNode(i).getID());
+            if (index == null)
+                throw new RuntimeException("Gene tree tip " + geneTree.getNode(i).getID() + " is not in any species!");
+            tipSpecies[i] = index;
+        }
+        return tipSpecies;
+    }
+
+    private boolean recurseFeasible(final Node geneTreeNode, final int[] tipSpecies) {
+        final int nodeNr = geneTreeNode.getNr();
+        if (geneTreeNode.isLeaf()) {
+            final int index = tipSpecies[nodeNr];
+            geneSpecies[nodeNr] = index;
+            geneBounds[nodeNr] = pairHeights[index * speciesCount + index];
+            return true;
+        }
+
+        double bound = Double.NEGATIVE_INFINITY;
+        int species = -1;
+        for (Node child: geneTreeNode.getChildren()) {
+            if (!recurseFeasible(child, tipSpecies)) return false;
+            final int childNr = child.getNr();
+            bound = Math.max(bound, geneBounds[childNr]);
+            if (species < 0)
+                species = geneSpecies[childNr];
+            else  // the two clades can only coalesce above where their species meet
+                bound = Math.max(bound, pairHeights[species * speciesCount + geneSpecies[childNr]]);
+        }
+        geneSpecies[nodeNr] = species;
+        geneBounds[nodeNr] = bound;
+
+        // the gene tree node must be older than the earliest species node below which all its species are
+        return geneTreeNode.getHeight() > bound;
+    }
+}
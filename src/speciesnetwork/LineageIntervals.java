@@ -0,0 +1,207 @@
+package speciesnetwork;
+
+import java.util.Arrays;
+
+/*
+ * The sums over the time intervals of a species network used by the network priors, kept up to date across
+ * calls. The sums only depend on the heights of the nodes and on the change in the number of branches at each node
+ * (+1 at a tip or a reticulation, -1 at a speciation or the origin), not on the topology otherwise. If the same nodes
+ * are in the network as in the last call and a few of them changed height, each of those is moved through the node
+ * order, and the sums are adjusted over the intervals between its old and new height only. Finding the changed nodes
+ * is a scan comparing the heights, without sorting or sweeping. Otherwise the sums are rebuilt from the sorted nodes.
+ * The sums of the network in the state are kept by a Cache in each prior, and those of any other network (such as a
+ * copy) are built from scratch.
+ */
+final class LineageIntervals {
+    private static final int MAX_MOVED = 4;  // more changed nodes than this are rebuilt (such as after scaling)
+    private static final int MAX_UPDATES = 1000;  // rebuild after this many updates, to bound the rounding error
+
+    double lineageTime;  // sum of k * dt over the time intervals, with k branches in an interval of length dt
+    double pairTime;     // sum of k(k-1)/2 * dt over the time intervals
+    int nSpeciation, nReticulation;
+    double logGammaSum;  // sum of log(gamma) + log(1-gamma) over the reticulation nodes
+
+    private int nodeCount = -1;
+    private int[] order = new int[0];        // node numbers in ascending order of height
+    private int[] positions = new int[0];    // position of each node number in the order
+    private int[] above = new int[0];        // number of branches just above the node at each position
+    private double[] heights = new double[0];  // height of each node number in the last call
+    private int[] deltas = new int[0];         // change in the number of branches at each node number
+    private double[] gammas = new double[0];   // gamma prob of each reticulation node number
+    private int updates;
+
+    /* the sums of the last two versions of the network in the state (usually the current and the proposed) */
+    static final class Cache {
+        private final LineageIntervals[] intervals = {new LineageIntervals(), new LineageIntervals()};
+        private final long[] stamps = {Long.MIN_VALUE, Long.MIN_VALUE};
+        private int last = 0;
+
+        /*
+         * The sums do not depend on the rates, so a proposal changing only the rates costs O(1). Each version is
+         * updated from the version it was last used for, so a proposal changing the heights of a few nodes only
+         * adjusts the sums over the intervals between their old and new heights.
+         */
+        LineageIntervals get(final Network network, final Network stateNetwork) {
+            final long stamp = network.getEditStamp();
+            if (network != stateNetwork || stamp < 0) {
+                final LineageIntervals fresh = new LineageIntervals();
+                fresh.update(network);
+                return fresh;
+            }
+
+            synchronized (intervals) {
+                if (stamps[last] != stamp) {
+                    last = 1 - last;
+                    if (stamps[last] != stamp) {
+                        intervals[last].update(network);
+                        stamps[last] = stamp;
+                    }
+                }
+                return intervals[last];
+            }
+        }
+    }
+
+    void update(final Network network) {
+        final int n = network.getNodeCount();
+        if (n != nodeCount || updates >= MAX_UPDATES) {
+            rebuild(network);
+            return;
+        }
+
+        final int[] moved = new int[MAX_MOVED];
+        int nMoved = 0;
+        for (int i = 0; i < n; i++) {
+            final NetworkNode node = network.nodes[i];
+            if (getDelta(node) != deltas[i]) {
+                rebuild(network);
+                return;
+            }
+            if (node.getHeight() != heights[i]) {
+                if (nMoved == MAX_MOVED) {
+                    rebuild(network);
+                    return;
+                }
+                moved[nMoved++] = i;
+            }
+            if (node.isReticulation() && node.inheritProb != gammas[i]) {
+                logGammaSum += logGamma(node.inheritProb) - logGamma(gammas[i]);
+                gammas[i] = node.inheritProb;
+            }
+        }
+        for (int j = 0; j < nMoved; j++)
+            move(moved[j], network.nodes[moved[j]].getHeight());
+        updates++;
+    }
+
+    // move the node to the new height through the order, changing the number of branches in the intervals passed
+    private void move(final int nodeNr, final double newHeight) {
+        final int d = deltas[nodeNr];
+        int p = positions[nodeNr];
+        double lastHeight = heights[nodeNr];
+
+        if (newHeight > lastHeight) {
+            // the intervals passed have d branches less
+            int k = above[p];
+            while (p + 1 < nodeCount && heights[order[p + 1]] < newHeight) {
+                final int other = order[p + 1];
+                addInterval(k, k - d, heights[other] - lastHeight);
+                final int kOther = above[p + 1];
+                order[p] = other;
+                positions[other] = p;
+                above[p] = kOther - d;
+                p++;
+                k = kOther;
+                lastHeight = heights[other];
+            }
+            addInterval(k, k - d, newHeight - lastHeight);
+            above[p] = k;
+        } else {
+            // the intervals passed have d branches more
+            while (p > 0 && heights[order[p - 1]] > newHeight) {
+                final int other = order[p - 1];
+                final int kBelow = above[p - 1];
+                addInterval(kBelow, kBelow + d, lastHeight - heights[other]);
+                order[p] = other;
+                positions[other] = p;
+                above[p] = kBelow + d;
+                p--;
+                lastHeight = heights[other];
+            }
+            final int kBelow = p > 0 ? above[p - 1] : 0;
+            addInterval(kBelow, kBelow + d, lastHeight - newHeight);
+            above[p] = kBelow + d;
+        }
+
+        order[p] = nodeNr;
+        positions[nodeNr] = p;
+        heights[nodeNr] = newHeight;
+    }
+
+    // an interval of length dt with kNew branches instead of kOld
+    private void addInterval(final int kOld, final int kNew, final double dt) {
+        lineageTime += (kNew - kOld) * dt;
+        pairTime += (kNew * (kNew - 1) - kOld * (kOld - 1)) / 2.0 * dt;
+    }
+
+    private void rebuild(final Network network) {
+        final NetworkNode[] sorted = sortByHeight(network);
+        final int n = sorted.length;
+        if (order.length != n) {
+            order = new int[n];
+            positions = new int[n];
+            above = new int[n];
+            heights = new double[n];
+            deltas = new int[n];
+            gammas = new double[n];
+        }
+        nodeCount = n;
+        updates = 0;
+        lineageTime = pairTime = logGammaSum = 0.0;
+        nSpeciation = nReticulation = 0;
+
+        // sweep from the tips to the origin over the nodes sorted by height
+        int nBranch = 0;  // number of branches in time interval (lastHeight, nodeHeight)
+        double lastHeight = 0.0;  // the tip
+        for (int p = 0; p < n; p++) {
+            final NetworkNode node = sorted[p];
+            final int nodeNr = node.getNr();
+            final double nodeHeight = node.getHeight();
+            lineageTime += nBranch * (nodeHeight - lastHeight);
+            pairTime += nBranch * (nBranch - 1) / 2.0 * (nodeHeight - lastHeight);
+            lastHeight = nodeHeight;
+
+            // count the event at time nodeHeight, and the number of branches above it
+            if (node.isReticulation()) {
+                nReticulation++;
+                logGammaSum += logGamma(node.inheritProb);
+                gammas[nodeNr] = node.inheritProb;
+            } else if (node.isSpeciation()) {
+                nSpeciation++;
+            }
+            deltas[nodeNr] = getDelta(node);
+            nBranch += deltas[nodeNr];
+
+            order[p] = nodeNr;
+            positions[nodeNr] = p;
+            above[p] = nBranch;
+            heights[nodeNr] = nodeHeight;
+        }
+    }
+
+    private static NetworkNode[] sortByHeight(final Network network) {
+        final NetworkNode[] sorted = network.getAllNodes();
+        Arrays.sort(sorted, (a, b) -> Double.compare(a.getHeight(), b.getHeight()));
+        return sorted;
+    }
+
+    private static int getDelta(final NetworkNode node) {
+        if (node.isReticulation() || node.isLeaf())
+            return 1;
+        return -1;  // a speciation or the origin
+    }
+
+    private static double logGamma(final double gamma) {
+        return Math.log(gamma) + Math.log(1.0 - gamma);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultiset;
@@ -31,18 +32,11 @@ public class MultispeciesCoalescent extends Distribution {
     public final Input<PopulationSizeModel> populationModelInput =
             new Input<>("populationModel", "The species network population model.", Validate.REQUIRED);
 
-    private int nGeneTrees;
+    // the statistics of the last calculation of the log probability, and of the stored state
+    private CoalescentStatistics statistics, storedStatistics;
 
-    // list of map(species branch -> [coalescent times]) for each gene
-    private final List<ListMultimap<Integer, Double>> coalescentTimes = new ArrayList<>();
-    // list of set(species branch number) counting lineages at the tipward end of each species branch
-    private final List<Multiset<Integer>> bottomLineageCounts = new ArrayList<>();
-    // sum of the log inheritance probabilities (log(Lambda), part of log[f(G|Psi)])
-    private double logGammaSum;
-
-    private final List<int[]> allLineageCounts = new ArrayList<>();
-    private final List<int[]> allEventCounts = new ArrayList<>();
-    private final List<List<Double[]>> allCoalescentTimes = new ArrayList<>();
+    // total time spent in coalescentProb, for profiling the operators
+    private final AtomicLong timeInNanos = new AtomicLong();
 
     @Override
     public void initAndValidate() {
@@ -50,7 +44,6 @@ public class MultispeciesCoalescent extends Distribution {
         // sanity check
         if (geneTrees == null)
             throw new RuntimeException("Check gene tree input!");
-        nGeneTrees = geneTrees.size();
 
         final Network speciesNetwork = speciesNetworkInput.get();
         final int speciesBranchCount = speciesNetwork.getBranchCount();
@@ -60,25 +53,175 @@ public class MultispeciesCoalescent extends Distribution {
 
     @Override
     public double calculateLogP() {
-        logP = coalescentProb();
+        final long start = System.nanoTime();
+        statistics = collectStatistics(speciesNetworkInput.get(), geneTreesInput.get());
+        logP = statistics.logProb(populationModelInput.get());
+        timeInNanos.addAndGet(System.nanoTime() - start);
         return logP;
     }
 
+    @Override
+    public void store() {
+        super.store();
+        storedStatistics = statistics;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        final CoalescentStatistics tmpStatistics = statistics;
+        statistics = storedStatistics;
+        storedStatistics = tmpStatistics;
+    }
+
     /**
      * @return the coalescent probability of gene trees embedded in the species network
      */
     public double coalescentProb() {
+        return coalescentProb(speciesNetworkInput.get(), geneTreesInput.get());
+    }
+
+    /**
+     * @return the coalescent probability of the given gene trees embedded in the given species network,
+     * which can be a subset of the loci, or a copy of the species network before it was changed.
+     * This does not change the statistics of the last calculation, and is thread-safe.
+     */
+    public double coalescentProb(final Network speciesNetwork, final List<EmbeddedTree> geneTrees) {
+        final long start = System.nanoTime();
+        final double logProb = collectStatistics(speciesNetwork, geneTrees).logProb(populationModelInput.get());
+        timeInNanos.addAndGet(System.nanoTime() - start);
+        return logProb;
+    }
+
+    /**
+     * @return the statistics of the gene trees embedded in the species network, which do not depend on the population
+     * sizes, kept from the last calculation of the log probability if neither has been edited since, otherwise collected
+     */
+    public CoalescentStatistics getStatistics() {
         final Network speciesNetwork = speciesNetworkInput.get();
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
+        if (statistics == null || !statistics.isValid(speciesNetwork, geneTrees)) {
+            final long start = System.nanoTime();
+            statistics = collectStatistics(speciesNetwork, geneTrees);
+            timeInNanos.addAndGet(System.nanoTime() - start);
+        }
+        return statistics;
+    }
+
+    /**
+     * @return the number of gene lineages at the tipward end of the species branch, summed over the loci
+     */
+    public int getBottomLineageCount(int speciesBranchNumber) {
+        return getStatistics().getBottomLineageCount(speciesBranchNumber);
+    }
+
+    /**
+     * @return the total time spent calculating the coalescent probability, in nanoseconds
+     */
+    public long getTimeInNanos() {
+        return timeInNanos.get();
+    }
+
+    /**
+     * The coalescent times, lineage counts and event counts of the gene trees in each species branch, and the log
+     * inheritance probabilities, from which the coalescent probability is calculated given the population sizes.
+     */
+    public static final class CoalescentStatistics {
+        private final Network speciesNetwork;
+        private final EmbeddedTree[] geneTrees;
+        private final long networkStamp;
+        private final long[] geneTreeStamps;
+
+        private final double[] genePloidy;
+        private final List<List<Double[]>> allCoalescentTimes = new ArrayList<>();
+        private final List<int[]> allLineageCounts = new ArrayList<>();
+        private final List<int[]> allEventCounts = new ArrayList<>();
+        // sum of the log inheritance probabilities (log(Lambda), part of log[f(G|Psi)])
+        private double logGammaSum;
+
+        private CoalescentStatistics(final Network speciesNetwork, final List<EmbeddedTree> geneTrees) {
+            this.speciesNetwork = speciesNetwork;
+            this.geneTrees = geneTrees.toArray(new EmbeddedTree[0]);
+            networkStamp = speciesNetwork.getEditStamp();
+            geneTreeStamps = new long[geneTrees.size()];
+            genePloidy = new double[geneTrees.size()];
+            for (int j = 0; j < geneTrees.size(); j++) {
+                geneTreeStamps[j] = geneTrees.get(j).getEditStamp();
+                genePloidy[j] = geneTrees.get(j).ploidy;
+            }
+        }
+
+        // whether nothing has been edited since, which is unknown if the edit stamps are not set
+        private boolean isValid(final Network network, final List<EmbeddedTree> trees) {
+            if (network != speciesNetwork || networkStamp < 0 || network.getEditStamp() != networkStamp ||
+                    trees.size() != geneTreeStamps.length)
+                return false;
+            for (int j = 0; j < geneTreeStamps.length; j++) {
+                if (trees.get(j) != geneTrees[j] || geneTreeStamps[j] < 0 ||
+                        trees.get(j).getEditStamp() != geneTreeStamps[j])
+                    return false;
+            }
+            return true;
+        }
+
+        private double logProb(final PopulationSizeModel populationModel) {
+            double logProb = logGammaSum;
+            for (int i = 0; i < allCoalescentTimes.size(); i++) {
+                logProb += populationModel.branchLogP(i, genePloidy, allCoalescentTimes.get(i),
+                                                      allLineageCounts.get(i), allEventCounts.get(i));
+            }
+            return logProb;
+        }
+
+        public double[] getGenePloidy() {
+            return genePloidy;
+        }
+
+        /**
+         * @return the sorted coalescent times of each locus in the species branch, with the branch start and end times
+         */
+        public List<Double[]> getCoalescentTimes(int speciesBranchNumber) {
+            return allCoalescentTimes.get(speciesBranchNumber);
+        }
+
+        /**
+         * @return the number of gene lineages of each locus at the tipward end of the species branch
+         */
+        public int[] getLineageCounts(int speciesBranchNumber) {
+            return allLineageCounts.get(speciesBranchNumber);
+        }
+
+        /**
+         * @return the number of coalescent events of each locus in the species branch
+         */
+        public int[] getEventCounts(int speciesBranchNumber) {
+            return allEventCounts.get(speciesBranchNumber);
+        }
+
+        /**
+         * @return the number of gene lineages at the tipward end of the species branch, summed over the loci
+         */
+        public int getBottomLineageCount(int speciesBranchNumber) {
+            int count = 0;
+            for (int lineageCount : allLineageCounts.get(speciesBranchNumber))
+                count += lineageCount;
+            return count;
+        }
+    }
+
+    private CoalescentStatistics collectStatistics(final Network speciesNetwork, final List<EmbeddedTree> geneTrees) {
+        final int nLoci = geneTrees.size();
         // SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin()); // species network should not be insane
 
         final int speciesBranchCount = speciesNetwork.getBranchCount();
         final NetworkNode speciesNetworkRoot = speciesNetwork.getRoot();
         final Integer speciesRootBranchNumber = speciesNetworkRoot.gammaBranchNumber;
 
-        coalescentTimes.clear();
-        bottomLineageCounts.clear();
-        logGammaSum = 0.0;
+        final CoalescentStatistics stats = new CoalescentStatistics(speciesNetwork, geneTrees);
+        // list of map(species branch -> [coalescent times]) for each gene
+        final List<ListMultimap<Integer, Double>> coalescentTimes = new ArrayList<>();
+        // list of set(species branch number) counting lineages at the tipward end of each species branch
+        final List<Multiset<Integer>> bottomLineageCounts = new ArrayList<>();
         // collect the coalescent times of each gene tree in each species branch, also calculate log(Lambda)
         for (EmbeddedTree geneTree : geneTrees) {
             final Embedding embedding = geneTree.embedding;
@@ -91,7 +234,7 @@ public class MultispeciesCoalescent extends Distribution {
                the case due to reticulations in the network or incomplete sampling of individuals in the gene tree. */
             try {
                 recurseCoalescentEvents(geneTreeRoot, speciesNetworkRoot, speciesRootBranchNumber, Double.POSITIVE_INFINITY,
-                                        embedding, coalescentTimesJ, bottomLineageCountsJ);
+                                        embedding, coalescentTimesJ, bottomLineageCountsJ, stats);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -101,18 +244,14 @@ public class MultispeciesCoalescent extends Distribution {
         }
 
         // reset all the counters
-        allLineageCounts.clear();
-        allEventCounts.clear();
-        allCoalescentTimes.clear();
         for (int i = 0; i < speciesBranchCount; i++) {
-            allLineageCounts.add(new int[nGeneTrees]);
-            allEventCounts.add(new int[nGeneTrees]);
-            allCoalescentTimes.add(new ArrayList<>());
+            stats.allLineageCounts.add(new int[nLoci]);
+            stats.allEventCounts.add(new int[nLoci]);
+            stats.allCoalescentTimes.add(new ArrayList<>());
         }
 
         // transpose gene-branch list of lists to branch-gene list of lists
-        final double[] genePloidy = new double[nGeneTrees];
-        for (int j = 0; j < nGeneTrees; j++) {  // gene tree "j"
+        for (int j = 0; j < nLoci; j++) {  // gene tree "j"
             for (int i = 0; i < speciesBranchCount; i++) {  // species network branch "i"
                 // number of lineages at the tipward end of species branch "i"
                 final int lineageCount = bottomLineageCounts.get(j).count(i);
@@ -136,30 +275,18 @@ public class MultispeciesCoalescent extends Distribution {
                 Arrays.sort(coalTimes);
 
                 // collect things together
-                allEventCounts.get(i)[j] = eventCount;
-                allLineageCounts.get(i)[j] = lineageCount;
-                allCoalescentTimes.get(i).add(coalTimes);
+                stats.allEventCounts.get(i)[j] = eventCount;
+                stats.allLineageCounts.get(i)[j] = lineageCount;
+                stats.allCoalescentTimes.get(i).add(coalTimes);
             }
-            genePloidy[j] = geneTrees.get(j).ploidy;
         }
 
-        // now calculate coalescent prob. by looping over the species branches
-        final PopulationSizeModel populationModel = populationModelInput.get();
-
-        double logProb = logGammaSum;
-        for (int i = 0; i < speciesBranchCount; i++) {
-            final List<Double[]> branchCoalescentTimes = allCoalescentTimes.get(i);
-            final int[] branchLineageCounts = allLineageCounts.get(i);
-            final int[] branchEventCounts = allEventCounts.get(i);
-
-            logProb += populationModel.branchLogP(i, genePloidy, branchCoalescentTimes, branchLineageCounts, branchEventCounts);
-        }
-
-        return logProb;
+        return stats;
     }
 
     private void recurseCoalescentEvents(Node geneTreeNode, NetworkNode speciesNetworkNode, Integer speciesBranchNumber, double lastHeight,
-                                         Embedding embedding, ListMultimap<Integer, Double> coalTimes, Multiset<Integer> bottomBrNrs) {
+                                         Embedding embedding, ListMultimap<Integer, Double> coalTimes, Multiset<Integer> bottomBrNrs,
+                                         CoalescentStatistics stats) {
         final double geneNodeHeight = geneTreeNode.getHeight();
         final double speciesNodeHeight = speciesNetworkNode.getHeight();
         final int geneTreeNodeNumber = geneTreeNode.getNr();
@@ -176,9 +303,9 @@ public class MultispeciesCoalescent extends Distribution {
             if (speciesNetworkNode.isReticulation()) {
                 final double gamma = speciesNetworkNode.inheritProb;
                 if (speciesNetworkNode.gammaBranchNumber.equals(speciesBranchNumber)) {
-                    logGammaSum += Math.log(gamma);
+                    stats.logGammaSum += Math.log(gamma);
                 } else {
-                    logGammaSum += Math.log(1.0 - gamma);
+                    stats.logGammaSum += Math.log(1.0 - gamma);
                 }
             }
             // move on to the descendant species node (traversal direction forward in time)
@@ -188,7 +315,7 @@ public class MultispeciesCoalescent extends Distribution {
             final NetworkNode nextSpeciesNode = speciesNetworkNode.getChildByBranch(nextSpeciesBranchNumber);
             assert nextSpeciesNode != null;
             recurseCoalescentEvents(geneTreeNode, nextSpeciesNode, nextSpeciesBranchNumber, speciesNodeHeight,
-                                    embedding, coalTimes, bottomBrNrs);
+                                    embedding, coalTimes, bottomBrNrs, stats);
         } else {
             // current gene tree node occurs above current species node
             // speciesOccupancy[geneTreeNodeNumber][speciesBranchNumber] = lastHeight - geneNodeHeight;
@@ -196,7 +323,7 @@ public class MultispeciesCoalescent extends Distribution {
             // move on to the descendant gene tree nodes (traversal direction forward in time)
             for (Node geneChildNode : geneTreeNode.getChildren()) {
                 recurseCoalescentEvents(geneChildNode, speciesNetworkNode, speciesBranchNumber, geneNodeHeight,
-                                        embedding, coalTimes, bottomBrNrs);
+                                        embedding, coalTimes, bottomBrNrs, stats);
             }
         }
     }
@@ -6,10 +6,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.HashMultiset;
 
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.inference.Operator;
 import beast.base.inference.StateNode;
 import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.TraitSet;
@@ -51,11 +55,18 @@ public class Network extends StateNode {
     private int storedReticulationNodeCount = -1;
 
     /**
-     * array of all nodes in the network
+     * array of all nodes in the network, of which the first nodeCount are used (the capacity grows geometrically)
      * the order must obey: leaf nodes | speciation nodes | reticulation nodes | origin node
      */
     protected NetworkNode[] nodes = null;
     private NetworkNode[] storedNodes = null;
+    // changed whenever the network is edited, so that indices built from it can tell whether they are out of date
+    private long editStamp = -1;
+    private long storedEditStamp = -1;
+    private static final AtomicLong editStamps = new AtomicLong();
+    // the branch intervals of the network and of the stored network, valid for the node arrays they were built for
+    private BranchIntervals intervals, storedIntervals;
+    private NetworkNode[] intervalsNodes, storedIntervalsNodes;
     private static Comparator<NetworkNode> hc = new NodeHeightComparator();
 
     // trait set which specifies leaf node times
@@ -125,8 +136,21 @@ public class Network extends StateNode {
     }
 
     public void updateRelationships() {
-        for (NetworkNode node: nodes) {
-            node.updateRelationships();
+        // number the nodes and link the two ends of each branch in one pass, rather than searching per node
+        for (int i = 0; i < nodeCount; i++) {
+            final NetworkNode node = nodes[i];
+            node.nodeNumber = i;
+            node.gammaBranchNumber = getBranchNumber(i);
+            node.children = HashMultiset.create();
+            node.parents = HashMultiset.create();
+            node.isDirty |= IS_DIRTY;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            for (Integer branchNr: nodes[i].childBranchNumbers) {
+                final NetworkNode child = nodes[getNodeNumber(branchNr)];
+                nodes[i].children.add(child);
+                child.parents.add(nodes[i]);
+            }
         }
     }
 
@@ -177,6 +201,42 @@ public class Network extends StateNode {
         }
     }
 
+    /**
+     * @return a number which is different after each edit of the network, and restored together with the network
+     */
+    public long getEditStamp() {
+        return editStamp;
+    }
+
+    @Override
+    public void startEditing(final Operator operator) {
+        super.startEditing(operator);
+        editStamp = editStamps.incrementAndGet();
+    }
+
+    /**
+     * @return the branch intervals of the network, which are kept up to date once built
+     */
+    public BranchIntervals getBranchIntervals() {
+        if (intervals == null)
+            intervals = new BranchIntervals(this);
+        if (intervalsNodes != nodes) {
+            intervals.build();
+            intervalsNodes = nodes;
+        }
+        return intervals;
+    }
+
+    private boolean hasBranchIntervals() {
+        return intervals != null && intervalsNodes == nodes;
+    }
+
+    /* keep the branch intervals in order after the height of the node is set */
+    void heightChanged(NetworkNode node) {
+        if (hasBranchIntervals())
+            intervals.heightChanged(node);
+    }
+
     public NetworkNode getOrigin() {
         return nodes[nodeCount - 1];
     }
@@ -235,14 +295,7 @@ public class Network extends StateNode {
      * @return the number of branches at the given time
      */
     public int getBranchCount(double time) {
-        int nB = 0;
-        for (NetworkNode node: nodes) {
-            for (NetworkNode child: node.getChildren()) {
-                if (node.getHeight() > time && child.getHeight() <= time)
-                    nB++;
-            }
-        }
-        return nB;
+        return getBranchIntervals().countAlive(time);
     }
 
     public NetworkNode getNode(final int idx) {
@@ -316,8 +369,8 @@ public class Network extends StateNode {
     /* set visited indicator to false for all nodes
        This is typically called before a recursive function to avoid duplicated traversal in the network */
     public void resetAllVisited() {
-        for (NetworkNode node: nodes) {
-            node.setVisited(false);
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i].setVisited(false);
         }
     }
 
@@ -357,7 +410,8 @@ public class Network extends StateNode {
 
     public double getNetworkLength() {
         double netLength = 0;
-        for (NetworkNode node: nodes) {
+        for (int i = 0; i < nodeCount; i++) {
+            final NetworkNode node = nodes[i];
             for (NetworkNode parent: node.parents) {
                 netLength += parent.height - node.height;
             }
@@ -366,8 +420,8 @@ public class Network extends StateNode {
     }
 
     public boolean isDirty() {
-        for (NetworkNode node: nodes) {
-            if (node.isDirty != IS_CLEAN) return true;
+        for (int i = 0; i < nodeCount; i++) {
+            if (nodes[i].isDirty != IS_CLEAN) return true;
         }
         return false;
     }
@@ -375,20 +429,15 @@ public class Network extends StateNode {
     @Override
     public void setEverythingDirty(final boolean isDirty) {
         setSomethingIsDirty(isDirty);
-        if (!isDirty) {
-            for(NetworkNode node : nodes) {
-                node.isDirty = IS_CLEAN;
-            }
-        } else {
-            for(NetworkNode node : nodes) {
-                node.isDirty = IS_FILTHY;
-            }
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i].isDirty = isDirty ? IS_FILTHY : IS_CLEAN;
         }
     }
 
     /* adjust node heights to no negative branch lengths exist
        This can occur if leaf heights given as traits are incompatible with the existing network. */
     public void adjustNodeHeights(NetworkNode node) {
+        intervalsNodes = null;  // the heights are set directly
         if (!node.isLeaf()) {
             for (final NetworkNode child : node.getChildren()) {
                 adjustNodeHeights(child);
@@ -404,6 +453,8 @@ public class Network extends StateNode {
 
     @Override
     public int scale(final double scale) {
+        editStamp = editStamps.incrementAndGet();  // the heights are changed
+        // the internal nodes keep their order, and the tips are not scaled, so the branch intervals stay in order
         int dof = 0;
         for (NetworkNode node : getInternalNodesWithOrigin()) {
             node.height *= scale;
@@ -470,6 +521,7 @@ public class Network extends StateNode {
             dst.nodes[i].copyFrom(src.nodes[i]);
         }
         dst.updateRelationships();
+        dst.editStamp = editStamps.incrementAndGet();
     }
 
     /**
@@ -485,6 +537,8 @@ public class Network extends StateNode {
             nodes[i].copyFrom(src.nodes[i]);
         }
         updateRelationships();
+        editStamp = editStamps.incrementAndGet();
+        intervalsNodes = null;  // the heights are copied
     }
 
     /**
@@ -506,12 +560,25 @@ public class Network extends StateNode {
         storedSpeciationNodeCount = speciationNodeCount;
         storedLeafNodeCount = leafNodeCount;
         storedReticulationNodeCount = reticulationNodeCount;
-        storedNodes = new NetworkNode[nodeCount];
+        storedEditStamp = editStamp;
+        // reuse the stored array if it is large enough
+        if (storedNodes == null || storedNodes.length < nodeCount)
+            storedNodes = new NetworkNode[nodes.length];
+        else
+            Arrays.fill(storedNodes, nodeCount, storedNodes.length, null);
 
         for (int i = 0; i < nodeCount; i++) {
             storedNodes[i] = new NetworkNode(this);
             storedNodes[i].copyFrom(nodes[i]);
         }
+        if (hasBranchIntervals()) {
+            if (storedIntervals == null)
+                storedIntervals = new BranchIntervals(this);
+            storedIntervals.assignFrom(intervals, storedNodes);
+            storedIntervalsNodes = storedNodes;
+        } else {
+            storedIntervalsNodes = null;
+        }
     }
 
     @Override
@@ -537,11 +604,22 @@ public class Network extends StateNode {
         nodes = storedNodes;
         storedNodes = tmpNodes;
 
+        final long tmpEditStamp = editStamp;
+        editStamp = storedEditStamp;
+        storedEditStamp = tmpEditStamp;
+
+        final BranchIntervals tmpIntervals = intervals;
+        intervals = storedIntervals;
+        storedIntervals = tmpIntervals;
+        final NetworkNode[] tmpIntervalsNodes = intervalsNodes;
+        intervalsNodes = storedIntervalsNodes;
+        storedIntervalsNodes = tmpIntervalsNodes;
+
         hasStartedEditing = false;
 
-        for(NetworkNode node: nodes) {
-            node.updateRelationships();
-            node.isDirty = IS_CLEAN;
+        updateRelationships();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i].isDirty = IS_CLEAN;
         }
     }
 
@@ -637,39 +715,28 @@ public class Network extends StateNode {
      */
     public void addReticulationBranch(NetworkNode reticulationNode, NetworkNode bifurcationNode,
                                       Integer retAttachBranchNr, Integer bifAttachBranchNr) {
+        editStamp = editStamps.incrementAndGet();  // the network may be a copy edited outside of an operator
         NetworkNode pickedNode1 = getNode(getNodeNumber(retAttachBranchNr));
         NetworkNode pickedNode2 = getNode(getNodeNumber(bifAttachBranchNr));
         NetworkNode parentNode1 = pickedNode1.getParentByBranch(retAttachBranchNr);
         NetworkNode parentNode2 = pickedNode2.getParentByBranch(bifAttachBranchNr);
 
-        // increase the existing reticulation branch numbers by 3
-        Integer oldRetBranchNr = retAttachBranchNr;
-        Integer oldBifBranchNr = bifAttachBranchNr;
-        for (NetworkNode node: getInternalNodes()) {
-            List<Integer> newBranchNrs = new ArrayList<>();
-            for (Integer bNr: node.childBranchNumbers) {
-                if (bNr >= leafNodeCount+speciationNodeCount) {
-                    newBranchNrs.add(bNr + 3);
-                    if (bNr.equals(oldRetBranchNr)) retAttachBranchNr += 3;
-                    if (bNr.equals(oldBifBranchNr)) bifAttachBranchNr += 3;
-                } else {
-                    newBranchNrs.add(bNr);
-                }
-            }
-            node.childBranchNumbers = newBranchNrs;
-        }
+        // increase the existing reticulation branch numbers by 3, in place in a single pass
+        final int reticulationOffset = leafNodeCount + speciationNodeCount;
+        shiftBranchNumbers(reticulationOffset, Integer.MAX_VALUE, 3);
+        if (retAttachBranchNr >= reticulationOffset) retAttachBranchNr += 3;
+        if (bifAttachBranchNr >= reticulationOffset) bifAttachBranchNr += 3;
 
         // add the two nodes to the network node array, between the speciation and reticulation nodes
-        NetworkNode[] tempNodes = new NetworkNode[nodeCount+2];
-        System.arraycopy(nodes, 0, tempNodes, 0, leafNodeCount+speciationNodeCount);
-        System.arraycopy(nodes, leafNodeCount+speciationNodeCount, tempNodes, leafNodeCount+speciationNodeCount+2, reticulationNodeCount+1);
-        tempNodes[leafNodeCount+speciationNodeCount] = bifurcationNode;
-        tempNodes[leafNodeCount+speciationNodeCount+1] = reticulationNode;
-        nodes = tempNodes;
+        final boolean hasIntervals = hasBranchIntervals();
+        insertNodes(reticulationOffset, bifurcationNode, reticulationNode);
         // update the node counts
-        nodeCount += 2;
         speciationNodeCount += 1;
         reticulationNodeCount += 1;
+        if (hasIntervals) {
+            intervals.reticulationAdded(reticulationNode, bifurcationNode);
+            intervalsNodes = nodes;  // the array may have grown
+        }
         reticulationNode.setLabel("#H" + reticulationNodeCount);
         bifurcationNode.setLabel("S" + speciationNodeCount);
 
@@ -699,6 +766,7 @@ public class Network extends StateNode {
      * @param reticuBranchNr reticulation branch number
      */
     public void deleteReticulationBranch(Integer reticuBranchNr) {
+        editStamp = editStamps.incrementAndGet();  // the network may be a copy edited outside of an operator
         // branch with reticuBranchNr is connecting hybridNode and bifurcNode
         final int hybridNodeNr = getNodeNumber(reticuBranchNr);
         NetworkNode hybridNode = getNode(hybridNodeNr);
@@ -738,29 +806,17 @@ public class Network extends StateNode {
             hNParentNode.childBranchNumbers.add(hNChildBranchNr);
         }
 
-        // remove the two nodes from the network
-        NetworkNode[] tempNodes = new NetworkNode[nodeCount-2];
-        System.arraycopy(nodes, 0, tempNodes, 0, bifurcNodeNr);
-        System.arraycopy(nodes, bifurcNodeNr+1, tempNodes, bifurcNodeNr, hybridNodeNr-bifurcNodeNr-1);
-        System.arraycopy(nodes, hybridNodeNr+1, tempNodes, hybridNodeNr-1, nodeCount-hybridNodeNr-1);
-        nodes = tempNodes;
+        // remove the two nodes from the network (the hybrid node is after the bifurcation node)
+        if (hasBranchIntervals())
+            intervals.reticulationDeleted(hybridNode, bifurcNode);
+        removeNode(hybridNodeNr);
+        removeNode(bifurcNodeNr);
         // update the node counts
-        nodeCount -= 2;
         speciationNodeCount -= 1;
         reticulationNodeCount -= 1;
 
-        for (NetworkNode node: getInternalNodesWithOrigin()) {
-            List<Integer> newBranchNrs = new ArrayList<>();
-            for (Integer bNr: node.childBranchNumbers) {
-                if (bNr > bifurcNodeNr && bNr < reticuBranchNr)
-                    newBranchNrs.add(bNr - 1);  // decreasing the child branch numbers by 1
-                else if (bNr > reticuBranchNr)
-                    newBranchNrs.add(bNr - 3);  // decreasing the child branch numbers by 3
-                else
-                    newBranchNrs.add(bNr);
-            }
-            node.childBranchNumbers = newBranchNrs;
-        }
+        shiftBranchNumbers(bifurcNodeNr + 1, reticuBranchNr, -1);  // decreasing the child branch numbers by 1
+        shiftBranchNumbers(reticuBranchNr + 1, Integer.MAX_VALUE, -3);  // decreasing the child branch numbers by 3
 
         // update the speciation and reticulation node labels
         resetInternalNodeLabels();
@@ -770,44 +826,33 @@ public class Network extends StateNode {
 
     /* add a speciation node to the nodes array */
     public void addSpeciationNode(NetworkNode sNode) {
-        NetworkNode[] tmpNodes = new NetworkNode[nodeCount + 1];
-        System.arraycopy(nodes, 0, tmpNodes, 0, leafNodeCount+speciationNodeCount);
-        System.arraycopy(nodes, leafNodeCount+speciationNodeCount, tmpNodes, leafNodeCount+speciationNodeCount+1, reticulationNodeCount+1);
+        intervalsNodes = null;  // the network is being built
         // add the node to the end of the speciation nodes and before the reticulation nodes
-        tmpNodes[leafNodeCount+speciationNodeCount] = sNode;
-        nodes = tmpNodes;
-        nodeCount++;
+        insertNodes(leafNodeCount+speciationNodeCount, sNode);
         speciationNodeCount++;
     }
 
     /* add a reticulation node to the nodes array */
     public void addReticulationNode(NetworkNode rNode) {
-        NetworkNode[] tmpNodes = new NetworkNode[nodeCount + 1];
-        System.arraycopy(nodes, 0, tmpNodes, 0, leafNodeCount+speciationNodeCount);
-        System.arraycopy(nodes, leafNodeCount+speciationNodeCount, tmpNodes, leafNodeCount+speciationNodeCount+1, reticulationNodeCount+1);
+        intervalsNodes = null;  // the network is being built
         // add the node to the end of the speciation nodes and before the reticulation nodes
-        tmpNodes[leafNodeCount+speciationNodeCount] = rNode;
-        nodes = tmpNodes;
-        nodeCount++;
+        insertNodes(leafNodeCount+speciationNodeCount, rNode);
         reticulationNodeCount++;
     }
 
     /* add a leaf node to the nodes array */
     public void addLeafNode(NetworkNode lNode) {
-        NetworkNode[] tmpNodes = new NetworkNode[nodeCount + 1];
-        System.arraycopy(nodes, 0, tmpNodes, 0, leafNodeCount);
-        System.arraycopy(nodes, leafNodeCount, tmpNodes, leafNodeCount+1, speciationNodeCount+reticulationNodeCount+1);
+        intervalsNodes = null;  // the network is being built
         // add the node to the end of the leaf nodes and before the speciation nodes
-        tmpNodes[leafNodeCount] = lNode;
-        nodes = tmpNodes;
-        nodeCount++;
+        insertNodes(leafNodeCount, lNode);
         leafNodeCount++;
     }
 
     /* delete a node from the nodes array */
     public void deleteNode(NetworkNode node) {
+        intervalsNodes = null;  // the network is being built
         int index = -1;
-        for (int i = 0; i < nodes.length; i++) {
+        for (int i = 0; i < nodeCount; i++) {
             if (nodes[i] == node) {
                 index = i;
                 break;
@@ -816,13 +861,9 @@ public class Network extends StateNode {
         if (index < 0)  // node is not in nodes[]
             return;
 
-        NetworkNode[] tmpNodes = new NetworkNode[nodeCount - 1];
-        System.arraycopy(nodes, 0, tmpNodes, 0, index);
-        System.arraycopy(nodes, index+1, tmpNodes, index, nodeCount-index-1);
-        nodes = tmpNodes;
+        removeNode(index);
 
         // decrease the node count accordingly
-        nodeCount--;
         if (index < leafNodeCount)
             leafNodeCount--;
         else if (index < leafNodeCount+speciationNodeCount)
@@ -831,6 +872,34 @@ public class Network extends StateNode {
             reticulationNodeCount--;
     }
 
+    // insert the nodes at the given index, growing the capacity of the array if needed
+    private void insertNodes(final int index, final NetworkNode... newNodes) {
+        final int n = newNodes.length;
+        if (nodeCount + n > nodes.length)
+            nodes = Arrays.copyOf(nodes, Math.max(nodeCount + n, 2 * nodes.length));
+        System.arraycopy(nodes, index, nodes, index + n, nodeCount - index);
+        System.arraycopy(newNodes, 0, nodes, index, n);
+        nodeCount += n;
+    }
+
+    // remove the node at the given index, keeping the capacity of the array
+    private void removeNode(final int index) {
+        System.arraycopy(nodes, index + 1, nodes, index, nodeCount - index - 1);
+        nodes[--nodeCount] = null;
+    }
+
+    // add delta to the child branch numbers in [from, to) of all nodes
+    private void shiftBranchNumbers(final int from, final int to, final int delta) {
+        for (int i = 0; i < nodeCount; i++) {
+            final List<Integer> branchNrs = nodes[i].childBranchNumbers;
+            for (int j = 0; j < branchNrs.size(); j++) {
+                final int bNr = branchNrs.get(j);
+                if (bNr >= from && bNr < to)
+                    branchNrs.set(j, bNr + delta);
+            }
+        }
+    }
+
     /**
      * @return true if the network has a bubble
      */
@@ -25,6 +25,9 @@ public class NetworkNode {
     // height of this node
     protected double height;
 
+    // position of this node in the branch intervals of the network, among the nodes of the same kind
+    int heightRank = -1;
+
     // inheritance probability associated with the gamma branch
     protected double inheritProb;
 
@@ -98,6 +101,7 @@ public class NetworkNode {
     protected static void copyNode(NetworkNode src, NetworkNode dst) {
         dst.label = src.label;
         dst.height = src.height;
+        dst.heightRank = src.heightRank;
         dst.inheritProb = src.inheritProb;
         dst.childBranchNumbers.clear();
         dst.childBranchNumbers.addAll(src.childBranchNumbers);
@@ -138,6 +142,8 @@ public class NetworkNode {
         for (NetworkNode child: children) {
             child.isDirty |= Network.IS_DIRTY;
         }
+        if (network != null)
+            network.heightChanged(this);
     }
 
     public void setMetaData(final String pattern, final Object value) {
@@ -163,7 +169,8 @@ public class NetworkNode {
     protected Multiset<NetworkNode> updateParents() {
         final Multiset<NetworkNode> parents = HashMultiset.create();
 
-        for (NetworkNode node: network.nodes) {
+        for (int j = 0; j < network.nodeCount; j++) {
+            final NetworkNode node = network.nodes[j];
             for (Integer i: node.childBranchNumbers) {
                 final int childNodeNumber = network.getNodeNumber(i);
                 final NetworkNode childNode = network.nodes[childNodeNumber];
@@ -188,7 +195,7 @@ public class NetworkNode {
 
     public void updateRelationships() {
         nodeNumber = -1;
-        for (int i = 0; i < network.nodes.length; i++) {
+        for (int i = 0; i < network.nodeCount; i++) {
             if (network.nodes[i] == this) {
                 nodeNumber = i;
                 break;
@@ -273,8 +280,8 @@ public class NetworkNode {
     private boolean touched = false; // this is only used inside this class
 
     private void resetAllTouched() {
-        for (NetworkNode node: network.nodes) {
-            node.touched = false;
+        for (int i = 0; i < network.nodeCount; i++) {
+            network.nodes[i].touched = false;
         }
     }
 
@@ -0,0 +1,24 @@
+package speciesnetwork;
+
+/**
+ * A prior of the species network which can be evaluated without changing the state of the distribution,
+ * so that a proposal can be screened by the prior before the posterior is calculated.
+ */
+
+public interface NetworkPrior {
+    /**
+     * @return the log prior probability of the given species network (which may be a copy of the one in the state)
+     * under the current parameters, without updating logP; must be safe to call from several threads
+     */
+    double networkLogP(Network speciesNetwork);
+
+    /**
+     * @return the species network in the state which this is the prior of
+     */
+    Network getNetwork();
+
+    /**
+     * @return the shape of the symmetric beta prior on gamma probs
+     */
+    double getBetaShape();
+}
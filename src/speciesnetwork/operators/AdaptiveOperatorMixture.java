@@ -0,0 +1,191 @@
+package speciesnetwork.operators;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+
+/**
+ * Chooses one of several operators for each move, with weights adapted to the cost of the operators.
+ * During the adaptation, each operator is re-weighted in proportion to its accepted moves per second (from the
+ * proposal until the move is accepted or rejected, including the evaluation of the posterior), and the weights are
+ * kept within [minWeight, maxWeight] with the same total as the initial weights. Wall-clock time is used, as part of
+ * the work may run in other threads. The weights are fixed after the adaptation, so that the chain after it is a
+ * mixture of the operators with constant probabilities.
+ */
+
+@Description("Choose among operators with weights adapted to their accepted moves per second during burn-in.")
+public class AdaptiveOperatorMixture extends Operator implements Loggable {
+    public final Input<List<Operator>> operatorsInput = new Input<>("operator",
+            "Operators to choose from, with their weights as the initial weights.", new ArrayList<>(), Validate.REQUIRED);
+    public final Input<Long> adaptationInput = new Input<>("adaptation",
+            "Number of moves of this operator during which the weights are adapted (default 10000).", 10000L);
+    public final Input<Integer> intervalInput = new Input<>("interval",
+            "Number of moves between updates of the weights (default 100).", 100);
+    public final Input<Double> minWeightInput = new Input<>("minWeight",
+            "Minimum weight of each operator (default 0.01 of the total weight).");
+    public final Input<Double> maxWeightInput = new Input<>("maxWeight",
+            "Maximum weight of each operator (default the total weight).");
+
+    private List<Operator> operators;
+    private double[] weights;
+    private double minWeight, maxWeight;
+
+    private long[] nMoves, nAccepted, nanos;
+    private long nTotalMoves;
+
+    private int current = -1;  // the operator of the current move, until it is accepted or rejected
+    private int last = -1;     // the operator of the last finished move
+    private long moveStart;
+
+    @Override
+    public void initAndValidate() {
+        operators = operatorsInput.get();
+        final int n = operators.size();
+        if (n == 0)
+            throw new IllegalArgumentException("At least one operator is required!");
+
+        weights = new double[n];
+        double totalWeight = 0.0;
+        for (int i = 0; i < n; i++) {
+            weights[i] = operators.get(i).getWeight();
+            totalWeight += weights[i];
+        }
+        if (!(totalWeight > 0.0))
+            throw new IllegalArgumentException("The total weight of the operators must be positive!");
+        minWeight = minWeightInput.get() == null ? 0.01 * totalWeight : minWeightInput.get();
+        maxWeight = maxWeightInput.get() == null ? totalWeight : maxWeightInput.get();
+        if (minWeight <= 0.0 || minWeight > maxWeight || n * minWeight > totalWeight || n * maxWeight < totalWeight)
+            throw new IllegalArgumentException("Invalid minWeight or maxWeight for the operator weights!");
+
+        nMoves = new long[n];
+        nAccepted = new long[n];
+        nanos = new long[n];
+    }
+
+    @Override
+    public double proposal() {
+        current = Randomizer.randomChoicePDF(weights);
+        moveStart = System.nanoTime();
+        return operators.get(current).proposal();
+    }
+
+    // the move is finished when it is accepted or rejected
+    private void finishMove(boolean accepted) {
+        if (current < 0) return;
+        nanos[current] += System.nanoTime() - moveStart;
+        nMoves[current]++;
+        if (accepted) nAccepted[current]++;
+        last = current;
+        current = -1;
+
+        nTotalMoves++;
+        if (nTotalMoves <= adaptationInput.get() && nTotalMoves % intervalInput.get() == 0)
+            updateWeights();
+    }
+
+    /* re-weight the operators in proportion to their accepted moves per second */
+    private void updateWeights() {
+        final int n = operators.size();
+        final double[] rates = new double[n];
+        double totalWeight = 0.0, totalRate = 0.0;
+        for (int i = 0; i < n; i++) {
+            totalWeight += weights[i];
+            // an operator which has not been tried yet keeps its weight
+            if (nMoves[i] == 0) return;
+            // add one acceptance so that an operator never accepted in a few moves is not dropped
+            rates[i] = (nAccepted[i] + 1.0) / (nanos[i] + 1.0);
+            totalRate += rates[i];
+        }
+
+        // scale the rates to the total weight, then clamp iteratively so that the total is kept
+        final boolean[] fixed = new boolean[n];
+        double freeWeight = totalWeight, freeRate = totalRate;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < n; i++) {
+                if (fixed[i]) continue;
+                final double weight = freeWeight * rates[i] / freeRate;
+                if (weight < minWeight || weight > maxWeight) {
+                    weights[i] = weight < minWeight ? minWeight : maxWeight;
+                    fixed[i] = true;
+                    freeWeight -= weights[i];
+                    freeRate -= rates[i];
+                    changed = true;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!fixed[i])
+                weights[i] = freeWeight * rates[i] / freeRate;
+        }
+    }
+
+    @Override
+    public void accept() {
+        finishMove(true);
+        super.accept();
+        if (last >= 0) operators.get(last).accept();
+    }
+
+    @Override
+    public void reject() {
+        finishMove(false);
+        super.reject();
+        if (last >= 0) operators.get(last).reject();
+    }
+
+    @Override
+    public void reject(int reason) {
+        finishMove(false);
+        super.reject(reason);
+        if (last >= 0) operators.get(last).reject(reason);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        // called after the move is accepted or rejected
+        if (last >= 0) operators.get(last).optimize(logAlpha);
+    }
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        final List<StateNode> stateNodes = new ArrayList<>();
+        for (Operator operator: operators)
+            stateNodes.addAll(operator.listStateNodes());
+        stateNodes.addAll(super.listStateNodes());
+        return stateNodes;
+    }
+
+    /**
+     * @return the current weight of each operator
+     */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (Operator operator: operators)
+            out.print(getID() + "." + operator.getID() + ".weight\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (double weight: weights)
+            out.print(weight + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+}
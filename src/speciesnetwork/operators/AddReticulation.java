@@ -20,8 +20,8 @@ import speciesnetwork.SanityChecks;
  * The AddReticulation and DeleteReticulation are chosen with equal prob. If there is no reticulation in the network,
  * the DeleteReticulation move is aborted.
  * Let k be the number of branches in the current network. The probability of adding this branch is (1/k)(1/k)
- * Let m be the number of reticulation branches in the proposed network. The probability of selecting the same branch to
- * remove is (1/m).
+ * Let m be the number of reticulation branches in the proposed network which are not connecting two reticulation nodes
+ * (the new branch is one of them). The probability of selecting the same branch to remove is (1/m).
  * The Hastings ratio is (1/m) / [(1/k)(1/k)(g1)(g2)(g3)] = k^2 / m, with g1 = g2 = g3 = 1 (uniform density).
  *
  * See also DeleteReticulation.
@@ -38,6 +38,9 @@ public class AddReticulation extends Operator {
 
     private int maxHybridNodes = -1;
 
+    // the reticulation branches which can be deleted in the proposed network
+    private final ReticulationCandidates candidates = ReticulationCandidates.deletable();
+
     // empty constructor to facilitate construction by XML + initAndValidate
     public AddReticulation() {
     }
@@ -63,6 +66,30 @@ public class AddReticulation extends Operator {
         // pick two branches randomly, including the root branch
         final Integer pickedBranchNr1 = Randomizer.nextInt(nBranches);
         final Integer pickedBranchNr2 = Randomizer.nextInt(nBranches);  // allow picking the same branch
+        // propose the attaching position at each branch, and the gamma prob.
+        final double w1 = Randomizer.nextDouble();
+        final double w2 = Randomizer.nextDouble();
+        final double gamma = Randomizer.nextDouble();
+
+        // start moving
+        speciesNetwork.startEditing(this);
+
+        final double logProposalRatio = addReticulation(speciesNetwork, pickedBranchNr1, pickedBranchNr2, w1, w2, gamma,
+                                                        candidates);
+
+        SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
+
+        return logProposalRatio;
+    }
+
+    /**
+     * add a reticulation branch joining two branches, at proportions w1 and w2 of their lengths above the lower ends
+     * @return the log Hastings ratio of the move, see above
+     */
+    static double addReticulation(Network speciesNetwork, Integer pickedBranchNr1, Integer pickedBranchNr2,
+                                  double w1, double w2, double gamma, ReticulationCandidates deletable) {
+        // number of branches in the current network
+        final int nBranches = speciesNetwork.getBranchCount();  // k
 
         // get the nodes associated with each branch
         final int pickedNodeNr1 = speciesNetwork.getNodeNumber(pickedBranchNr1);
@@ -72,18 +99,15 @@ public class AddReticulation extends Operator {
         NetworkNode pickedParent1 = pickedNode1.getParentByBranch(pickedBranchNr1);
         NetworkNode pickedParent2 = pickedNode2.getParentByBranch(pickedBranchNr2);
 
-        // propose the attaching position at each branch
+        // the attaching position at each branch
         final double l1, l2, l11, l21;
         l1 = pickedParent1.getHeight() - pickedNode1.getHeight();
-        l11 = l1 * Randomizer.nextDouble();
+        l11 = l1 * w1;
         l2 = pickedParent2.getHeight() - pickedNode2.getHeight();
-        l21 = l2 * Randomizer.nextDouble();
+        l21 = l2 * w2;
 
         double logProposalRatio = Math.log(l1) + Math.log(l2);  // the Jacobian
 
-        // start moving
-        speciesNetwork.startEditing(this);
-
         // create two new nodes
         NetworkNode middleNode1 = new NetworkNode(speciesNetwork);
         NetworkNode middleNode2 = new NetworkNode(speciesNetwork);
@@ -94,16 +118,14 @@ public class AddReticulation extends Operator {
         // add a branch joining the two middle nodes (picked branches)
         if (middleNode1.getHeight() < middleNode2.getHeight()) {
             speciesNetwork.addReticulationBranch(middleNode1, middleNode2, pickedBranchNr1, pickedBranchNr2);
-            middleNode1.setGammaProb(Randomizer.nextDouble());
+            middleNode1.setGammaProb(gamma);
         } else {
             speciesNetwork.addReticulationBranch(middleNode2, middleNode1, pickedBranchNr2, pickedBranchNr1);
-            middleNode2.setGammaProb(Randomizer.nextDouble());
+            middleNode2.setGammaProb(gamma);
         }
 
-        SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
-
-        // number of reticulation branches in the proposed network
-        final int nReticulationBranches = 2 * speciesNetwork.getReticulationNodeCount();  // m
+        // number of deletable reticulation branches in the proposed network
+        final int nReticulationBranches = deletable.get(speciesNetwork).size();  // m
         logProposalRatio += 2 * Math.log(nBranches) - Math.log(nReticulationBranches);
 
         return logProposalRatio;
@@ -0,0 +1,166 @@
+package speciesnetwork.operators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import beast.base.inference.Operator;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.Embedding;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.simulator.CoalescentSimulator;
+
+/*
+ * Re-simulates only the gene trees affected by a change of the species network topology.
+ * A branch is unchanged by the move if it still connects the same two nodes at the same heights. The loci with any
+ * lineage in a changed branch are re-simulated, and the embeddings of the other loci are only renumbered. As the
+ * reverse move changes the same branches, it would re-simulate the same loci, provided that each re-simulated gene
+ * tree has a lineage in a changed branch of the new network (otherwise the proposal is rejected).
+ */
+final class AffectedLoci {
+    // a branch identified by its nodes (which are kept by the operators) and their heights
+    private static final class Branch {
+        private final NetworkNode parent, child;
+        private final boolean isSecond;  // the second parent branch of a reticulation node
+        private final double parentHeight, childHeight;
+
+        private Branch(NetworkNode child, Integer branchNr) {
+            this.child = child;
+            this.parent = child.getParentByBranch(branchNr);
+            this.isSecond = child.isReticulation() && !child.gammaBranchNumber.equals(branchNr);
+            this.parentHeight = parent.getHeight();
+            this.childHeight = child.getHeight();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Branch)) return false;
+            final Branch b = (Branch) o;
+            return parent == b.parent && child == b.child && isSecond == b.isSecond &&
+                   parentHeight == b.parentHeight && childHeight == b.childHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(child) * 31 + System.identityHashCode(parent) + (isSecond ? 1 : 0);
+        }
+    }
+
+    private final Network oldNetwork;      // copy of the network before the move, with the same numbering
+    private final NetworkNode[] oldNodes;  // nodes of the network by node number before the move
+    private final int oldLeafNodeCount;
+    private final Map<Branch, Integer> oldBranches;
+
+    /* take a snapshot of the species network before the move */
+    AffectedLoci(Network speciesNetwork) {
+        oldNetwork = speciesNetwork.copy();
+        oldNodes = speciesNetwork.getAllNodes();
+        oldLeafNodeCount = speciesNetwork.getLeafNodeCount();
+        oldBranches = getBranches(speciesNetwork);
+    }
+
+    private static Map<Branch, Integer> getBranches(Network speciesNetwork) {
+        final Map<Branch, Integer> branches = new HashMap<>();
+        for (NetworkNode node: speciesNetwork.getAllNodesExceptOrigin()) {
+            branches.put(new Branch(node, node.gammaBranchNumber), node.gammaBranchNumber);
+            if (node.isReticulation())
+                branches.put(new Branch(node, node.gammaBranchNumber + 1), node.gammaBranchNumber + 1);
+        }
+        return branches;
+    }
+
+    /**
+     * re-simulate the affected loci after the move, and renumber the embeddings of the others
+     * @return the log Hastings ratio of the re-simulated gene trees, or negative infinity if the move is rejected
+     */
+    double resimulate(Operator operator, Network speciesNetwork, List<EmbeddedTree> geneTrees,
+                      MultispeciesCoalescent MSNC, CoalescentSimulator geneTreesSimulator) {
+        final Map<Branch, Integer> newBranches = getBranches(speciesNetwork);
+        // the changed branches before and after the move, and the new numbers of the unchanged branches
+        final Set<Integer> oldChangedBrNrs = new HashSet<>(oldBranches.values());
+        final Set<Integer> newChangedBrNrs = new HashSet<>();
+        final Map<Integer, Integer> branchNrMap = new HashMap<>();
+        for (Map.Entry<Branch, Integer> entry: newBranches.entrySet()) {
+            final Integer oldBrNr = oldBranches.get(entry.getKey());
+            if (oldBrNr == null) {
+                newChangedBrNrs.add(entry.getValue());
+            } else {
+                oldChangedBrNrs.remove(oldBrNr);
+                branchNrMap.put(oldBrNr, entry.getValue());
+            }
+        }
+
+        final List<Integer> affected = new ArrayList<>();
+        final List<EmbeddedTree> affectedTrees = new ArrayList<>();
+        final int traversalNodeCount = speciesNetwork.getInternalNodeCount();
+        for (int j = 0; j < geneTrees.size(); j++) {
+            final EmbeddedTree geneTree = geneTrees.get(j);
+            geneTree.startEditing(operator);
+            if (hasLineageIn(geneTree, oldChangedBrNrs, oldNetwork)) {
+                affected.add(j);
+                affectedTrees.add(geneTree);
+            } else {
+                renumberEmbedding(geneTree.embedding, branchNrMap, traversalNodeCount);
+            }
+        }
+        if (affected.isEmpty())
+            return 0.0;
+
+        // calculate coalescent prob. of current gene trees in current species network
+        double logProposalRatio = MSNC.coalescentProb(oldNetwork, affectedTrees);
+
+        // update gene trees (simulate random gene trees under MSNC)
+        geneTreesSimulator.simulate(affected);
+        geneTreesSimulator.popSizesInput.get().getCurrentEditable(operator);  // hack to let state&node properly stored
+        for (EmbeddedTree geneTree: affectedTrees) {
+            // the reverse move must re-simulate this locus as well
+            if (!hasLineageIn(geneTree, newChangedBrNrs, speciesNetwork))
+                return Double.NEGATIVE_INFINITY;
+            geneTree.embedding.probabilitySum = Double.NaN;
+        }
+
+        // calculate coalescent prob. of new gene trees in new species network
+        logProposalRatio -= MSNC.coalescentProb(speciesNetwork, affectedTrees);
+
+        return logProposalRatio;
+    }
+
+    /* check if any lineage of the gene tree is in one of the species branches */
+    private static boolean hasLineageIn(EmbeddedTree geneTree, Set<Integer> branchNrs, Network speciesNetwork) {
+        if (branchNrs.isEmpty())
+            return false;
+        // a lineage entering the branch from the parent species node
+        for (int direction: geneTree.embedding.getEmbedding()) {
+            if (direction >= 0 && branchNrs.contains(direction))
+                return true;
+        }
+        // otherwise a lineage in the branch ends at a gene tree node in it, such as the gene tree root in the root
+        // branch, or in a lower branch if the locus lacks some species
+        return geneTree.getBranchOccupancy(speciesNetwork).hasNodesIn(branchNrs);
+    }
+
+    /* the embedding only traverses unchanged branches, whose nodes may be renumbered by the move */
+    private void renumberEmbedding(Embedding embedding, Map<Integer, Integer> branchNrMap, int traversalNodeCount) {
+        final int oldTraversalNodeCount = embedding.traversalNodeCount;
+        final int[] oldMatrix = embedding.getEmbedding().clone();
+        final double probability = embedding.probability;
+        embedding.reset(traversalNodeCount);
+        for (int g = 0; g < embedding.geneNodeCount; g++) {
+            for (int t = 0; t < oldTraversalNodeCount; t++) {
+                final int direction = oldMatrix[g * oldTraversalNodeCount + t];
+                if (direction >= 0) {
+                    final int newTraversalNr = oldNodes[t + oldLeafNodeCount].getTraversalNumber();
+                    embedding.setDirection(g, newTraversalNr, branchNrMap.get(direction));
+                }
+            }
+        }
+        // the inheritance probabilities are unchanged, but there may be other embeddings in the new network
+        embedding.probability = probability;
+        embedding.probabilitySum = Double.NaN;
+    }
+}
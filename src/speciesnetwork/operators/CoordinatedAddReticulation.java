@@ -26,8 +26,8 @@ import speciesnetwork.simulator.CoalescentSimulator;
  * The AddReticulation and DeleteReticulation are chosen with equal prob. If there is no reticulation in the network,
  * the DeleteReticulation move is aborted.
  * Let k be the number of branches in the current network. The probability of adding this branch is (1/k)(1/k)
- * Let m be the number of reticulation branches in the proposed network. The probability of selecting the same branch to
- * remove is (1/m).
+ * Let m be the number of reticulation branches in the proposed network which are not connecting two reticulation nodes
+ * (the new branch is one of them). The probability of selecting the same branch to remove is (1/m).
  * The Hastings ratio is (1/m) / [(1/k)(1/k)(g1)(g2)(g3)] = k^2 / m, with g1 = g2 = g3 = 1 (uniform density).
  *
  * See also DeleteReticulation.
@@ -47,6 +47,11 @@ public class CoordinatedAddReticulation extends Operator {
             new Input<>("MSNC", "The multispecies network coalescent.", Validate.REQUIRED);
     public final Input<CoalescentSimulator> coalSimulatorInput = new Input<>("coalescentSimulator",
             "Simulate gene trees given the species network.", Validate.REQUIRED);
+    public final Input<Boolean> affectedLociOnlyInput = new Input<>("affectedLociOnly", "Only re-simulate the gene " +
+            "trees with lineages in the branches changed by this move, and keep the others (default false).", false);
+
+    // the reticulation branches which can be deleted in the proposed network
+    private final ReticulationCandidates candidates = ReticulationCandidates.deletable();
 
     @Override
     public void initAndValidate() {
@@ -81,9 +86,13 @@ public class CoordinatedAddReticulation extends Operator {
 
         double logProposalRatio = Math.log(l1) + Math.log(l2);  // the Jacobian
 
+        // remember the network branches before the move if only the affected loci are re-simulated
+        final AffectedLoci affectedLoci = affectedLociOnlyInput.get() ? new AffectedLoci(speciesNetwork) : null;
+
         // calculate coalescent prob. of current gene trees in current species network
         final MultispeciesCoalescent MSNC = MSNCInput.get();
-        logProposalRatio += MSNC.coalescentProb();
+        if (affectedLoci == null)
+            logProposalRatio += MSNC.coalescentProb();
 
         // start moving species network
         speciesNetwork.startEditing(this);
@@ -106,10 +115,14 @@ public class CoordinatedAddReticulation extends Operator {
 
         SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
 
-        // number of reticulation branches in the proposed network
-        final int nReticulationBranches = 2 * speciesNetwork.getReticulationNodeCount();  // m
+        // number of deletable reticulation branches in the proposed network
+        final int nReticulationBranches = candidates.get(speciesNetwork).size();  // m
         logProposalRatio += 2 * Math.log(nBranches) - Math.log(nReticulationBranches);
 
+        if (affectedLoci != null)
+            return logProposalRatio + affectedLoci.resimulate(this, speciesNetwork, geneTreesInput.get(),
+                                                              MSNC, coalSimulatorInput.get());
+
         // update gene trees (simulate random gene trees under MSNC)
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
         for (EmbeddedTree geneTree : geneTrees) {
@@ -16,14 +16,14 @@ import speciesnetwork.SanityChecks;
 import speciesnetwork.simulator.CoalescentSimulator;
 
 /**
- * This proposal deletes a reticulation branch from the species network. If there is no reticulation, or if the branch
- * is connecting two reticulation nodes, this is aborted. The two branches at each connecting point are joined,
+ * This proposal deletes a reticulation branch from the species network. If there is no reticulation, this is aborted.
+ * A branch connecting two reticulation nodes is never picked. The two branches at each connecting point are joined,
  * resulting branches with length l1 and l2 respectively. The gamma prob r is removed.
  * The Jacobian is 1 / (l1 * l2).
  *
  * The AddReticulation and DeleteReticulation are chosen with equal prob.
- * Let m be the number of reticulation branches in the current network. The probability of selecting the this branch to
- * remove is 1/m.
+ * Let m be the number of reticulation branches in the current network which are not connecting two reticulation nodes.
+ * The probability of selecting the this branch to remove is 1/m.
  * Let k be the number of branches in the proposed network. The probability of adding this branch is (1/k)(1/k)
  * The Hastings ratio is (1/k)(1/k)(1)(1)(1) / (1/m) = m / k^2.
  *
@@ -44,6 +44,11 @@ public class CoordinatedDeleteReticulation extends Operator {
             new Input<>("MSNC", "The multispecies network coalescent.", Validate.REQUIRED);
     public final Input<CoalescentSimulator> coalSimulatorInput = new Input<>("coalescentSimulator",
             "Simulate gene trees given the species network.", Validate.REQUIRED);
+    public final Input<Boolean> affectedLociOnlyInput = new Input<>("affectedLociOnly", "Only re-simulate the gene " +
+            "trees with lineages in the branches changed by this move, and keep the others (default false).", false);
+
+    // the reticulation branches which can be deleted in the current network
+    private final ReticulationCandidates candidates = ReticulationCandidates.deletable();
 
     @Override
     public void initAndValidate() {
@@ -54,20 +59,19 @@ public class CoordinatedDeleteReticulation extends Operator {
         final Network speciesNetwork = speciesNetworkInput.get();
         SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
 
-        final int nHybridNodes = speciesNetwork.getReticulationNodeCount();
-        if (nHybridNodes == 0)  // there is no reticulation branch to delete
+        // only the branches not connecting two reticulation nodes can be deleted
+        final List<Integer> candidateBrNrs = candidates.get(speciesNetwork);
+        if (candidateBrNrs.isEmpty())  // there is no reticulation branch to delete
             return Double.NEGATIVE_INFINITY;
-        // number of reticulation branches in the current network
-        final int nReticulationBranches = 2 * nHybridNodes;  // m'
+        // number of deletable reticulation branches in the current network
+        final int nReticulationBranches = candidateBrNrs.size();  // m'
 
         // pick a reticulation branch randomly
-        final Integer hybridBranchNr = Randomizer.nextInt(nReticulationBranches) + speciesNetwork.getReticulationOffset();
+        final Integer hybridBranchNr = candidateBrNrs.get(Randomizer.nextInt(nReticulationBranches));
         final int hybridNodeNr = speciesNetwork.getNodeNumber(hybridBranchNr);
         // branch with hybridBranchNr is connecting hybridNode and parentNode
         NetworkNode hybridNode = speciesNetwork.getNode(hybridNodeNr);
         NetworkNode parentNode = hybridNode.getParentByBranch(hybridBranchNr);
-        if (parentNode.isReticulation())  // cannot delete a branch connecting two reticulation nodes
-            return Double.NEGATIVE_INFINITY;
 
         // get the parent node and another child node of parentNode
         final Integer pNParentBranchNr = parentNode.gammaBranchNumber;
@@ -101,9 +105,13 @@ public class CoordinatedDeleteReticulation extends Operator {
         }
         double logProposalRatio = - Math.log(l1) - Math.log(l2);
 
+        // remember the network branches before the move if only the affected loci are re-simulated
+        final AffectedLoci affectedLoci = affectedLociOnlyInput.get() ? new AffectedLoci(speciesNetwork) : null;
+
         // calculate coalescent prob. of current gene trees in current species network
         final MultispeciesCoalescent MSNC = MSNCInput.get();
-        logProposalRatio += MSNC.coalescentProb();
+        if (affectedLoci == null)
+            logProposalRatio += MSNC.coalescentProb();
 
         // start moving species network
         speciesNetwork.startEditing(this);
@@ -117,6 +125,10 @@ public class CoordinatedDeleteReticulation extends Operator {
         final int nBranches = speciesNetwork.getBranchCount();  // k'
         logProposalRatio += Math.log(nReticulationBranches) - 2 * Math.log(nBranches);
 
+        if (affectedLoci != null)
+            return logProposalRatio + affectedLoci.resimulate(this, speciesNetwork, geneTreesInput.get(),
+                                                              MSNC, coalSimulatorInput.get());
+
         // update gene trees (simulate random gene trees under MSNC)
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
         for (EmbeddedTree geneTree : geneTrees) {
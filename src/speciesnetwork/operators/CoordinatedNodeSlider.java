@@ -1,7 +1,6 @@
 package speciesnetwork.operators;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import beast.base.core.Description;
@@ -12,7 +11,7 @@ import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
 import beast.base.evolution.tree.Node;
 import speciesnetwork.EmbeddedTree;
-import speciesnetwork.Embedding;
+import speciesnetwork.BranchOccupancy;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
 import speciesnetwork.SanityChecks;
@@ -79,6 +78,13 @@ public class CoordinatedNodeSlider extends Operator {
                 newHeight = 2.0 * upper - newHeight;
         }
 
+        // index the gene tree nodes in each species branch, before the network is changed
+        // moving the origin does not change any gene tree
+        final List<EmbeddedTree> geneTrees = geneTreesInput.get();
+        final BranchOccupancy[] occupancies = new BranchOccupancy[geneTrees.size()];
+        for (int j = 0; j < occupancies.length && !pickedNode.isOrigin(); j++)
+            occupancies[j] = geneTrees.get(j).getBranchOccupancy(speciesNetwork);
+
         // update the new node height
         if (pickedNode.isOrigin()) {
             final RealParameter originTime = originInput.get();
@@ -92,7 +98,7 @@ public class CoordinatedNodeSlider extends Operator {
 
         // update gene tree node heights, return proposal ratio of this update
         // this move does not break gene tree embeddings thus no need to rebuild
-        return updateRubberBand(pickedNode, oldHeight, newHeight, lower, upper);
+        return updateRubberBand(pickedNode, oldHeight, newHeight, lower, upper, occupancies);
     }
 
     private boolean outsideBounds(final double value, final RealParameter param) {
@@ -104,88 +110,58 @@ public class CoordinatedNodeSlider extends Operator {
 
     /**
      * The RubberBand algorithm of Rannala & Yang, 2003 (Appendix Step 4)
+     * only the gene tree nodes in the branches right above and below the network node are visited
      */
     protected double updateRubberBand(NetworkNode networkNode, final double oldHeight, final double newHeight,
-                                      final double lower, final double upper) {
+                                      final double lower, final double upper, final BranchOccupancy[] occupancies) {
+        final Network speciesNetwork = speciesNetworkInput.get();
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
 
+        // the gene tree node heights in the parent branches are changed relative to 'upper'
+        final List<Integer> parentBrNrs = new ArrayList<>();
+        if (networkNode.isSpeciation()) {
+            parentBrNrs.add(networkNode.gammaBranchNumber);
+        } else if (networkNode.isReticulation()) {
+            parentBrNrs.add(networkNode.gammaBranchNumber);
+            parentBrNrs.add(networkNode.gammaBranchNumber + 1);
+        } else {
+            return 0.0;
+        }
+        // and those in the child branches are changed relative to 'lower'
+        final List<Integer> childBrNrs = networkNode.childBranchNumbers;
+
         int m = 0;  // # gene node heights changed relative to 'upper'
         int n = 0;  // # gene node heights changed relative to 'lower'
-        if (networkNode.isSpeciation()) {
-            final Integer speciesBrNr = networkNode.gammaBranchNumber;
-            final NetworkNode parentNode = networkNode.getParentByBranch(speciesBrNr);
-            for (EmbeddedTree geneTree : geneTrees) {
-                Embedding embedding = geneTree.embedding;
-                geneTree.startEditing(this);  // *all* gene trees will be edited
-                // update the gene tree node heights
-                for (Node gNode : geneTree.getInternalNodes()) {
+        for (int j = 0; j < geneTrees.size(); j++) {
+            final EmbeddedTree geneTree = geneTrees.get(j);
+            final BranchOccupancy occupancy = occupancies[j];
+            geneTree.startEditing(this);  // *all* gene trees will be edited
+            // update the gene tree node heights
+            for (Integer brNr : parentBrNrs) {
+                for (int gNodeNr : occupancy.getNodes(geneTree, brNr, oldHeight, upper)) {
+                    final Node gNode = geneTree.getNode(gNodeNr);
                     final double gNodeHeight = gNode.getHeight();
-                    if (oldHeight <= gNodeHeight && gNodeHeight < upper) {
-                        if (networkNode.isRoot() ||
-                            isWithinChildBranch(parentNode, Collections.singletonList(speciesBrNr), gNode, embedding, upper)) {
-                            // update the node height relative to 'upper'
-                            final double gNewNodeHeight = upper - (upper - gNodeHeight) * (upper - newHeight) / (upper - oldHeight);
-                            gNode.setHeight(gNewNodeHeight);
-                            m++;
-                        }
-                    } else if (lower < gNodeHeight && gNodeHeight < oldHeight) {
-                        if (isWithinChildBranch(networkNode, networkNode.childBranchNumbers, gNode, embedding, oldHeight)) {
-                            // update the node height relative to 'lower'
-                            final double gNewNodeHeight = lower + (gNodeHeight - lower) * (newHeight - lower) / (oldHeight - lower);
-                            gNode.setHeight(gNewNodeHeight);
-                            n++;
-                        }
-                    }
+                    // update the node height relative to 'upper'
+                    final double gNewNodeHeight = upper - (upper - gNodeHeight) * (upper - newHeight) / (upper - oldHeight);
+                    gNode.setHeight(gNewNodeHeight);
+                    m++;
                 }
             }
-        }
-        else if (networkNode.isReticulation()) {
-            final Integer snLeftBrNr = networkNode.gammaBranchNumber;
-            final Integer snRightBrNr = networkNode.gammaBranchNumber + 1;
-            final NetworkNode parentLNode = networkNode.getParentByBranch(snLeftBrNr);
-            final NetworkNode parentRNode = networkNode.getParentByBranch(snRightBrNr);
-            for (EmbeddedTree geneTree : geneTrees) {
-                Embedding embedding = geneTree.embedding;
-                geneTree.startEditing(this);  // *all* gene trees will be edited
-                // update the gene tree node heights
-                for (Node gNode : geneTree.getInternalNodes()) {
+            for (Integer brNr : childBrNrs) {
+                for (int gNodeNr : occupancy.getNodes(geneTree, brNr, lower, oldHeight)) {
+                    final Node gNode = geneTree.getNode(gNodeNr);
                     final double gNodeHeight = gNode.getHeight();
-                    if (oldHeight <= gNodeHeight && gNodeHeight < upper) {
-                        if (isWithinChildBranch(parentLNode, Collections.singletonList(snLeftBrNr),  gNode, embedding, parentLNode.getHeight()) ||
-                            isWithinChildBranch(parentRNode, Collections.singletonList(snRightBrNr), gNode, embedding, parentRNode.getHeight())) {
-                            // update the node height relative to 'upper'
-                            final double gNewNodeHeight = upper - (upper - gNodeHeight) * (upper - newHeight) / (upper - oldHeight);
-                            gNode.setHeight(gNewNodeHeight);
-                            m++;
-                        }
-                    } else if (lower < gNodeHeight && gNodeHeight < oldHeight) {
-                        if (isWithinChildBranch(networkNode, networkNode.childBranchNumbers, gNode, embedding, oldHeight)) {
-                            // update the node height relative to 'lower'
-                            final double gNewNodeHeight = lower + (gNodeHeight - lower) * (newHeight - lower) / (oldHeight - lower);
-                            gNode.setHeight(gNewNodeHeight);
-                            n++;
-                        }
-                    }
+                    // update the node height relative to 'lower'
+                    final double gNewNodeHeight = lower + (gNodeHeight - lower) * (newHeight - lower) / (oldHeight - lower);
+                    gNode.setHeight(gNewNodeHeight);
+                    n++;
                 }
             }
+            // the gene tree nodes stay in the same branches and in the same order
+            occupancy.keepValid(geneTree, speciesNetwork);
         }
 
         return m * Math.log((upper - newHeight)/(upper - oldHeight)) +
                n * Math.log((newHeight - lower)/(oldHeight - lower));
     }
-
-    /* check if a gene tree node is within certain child branches of the network node */
-    private boolean isWithinChildBranch(NetworkNode snNode, List<Integer> childBrNrs, Node gNode,
-                                        Embedding embedding, final double upper) {
-        final int traversalNodeNr = snNode.getTraversalNumber();
-        int withinBrNr;
-        Node treNode = gNode;
-        do {
-            withinBrNr = embedding.getDirection(treNode.getNr(), traversalNodeNr);
-            treNode = treNode.getParent();
-        }
-        while (withinBrNr < 0 && treNode != null && treNode.getHeight() < upper);
-
-        return childBrNrs.contains(withinBrNr);
-    }
 }
@@ -8,6 +8,7 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.Operator;
 import beast.base.util.Randomizer;
+import speciesnetwork.BranchIntervals;
 import speciesnetwork.EmbeddedTree;
 import speciesnetwork.MultispeciesCoalescent;
 import speciesnetwork.Network;
@@ -38,6 +39,8 @@ public class CoordinatedRelocateBranch extends Operator {
             new Input<>("MSNC", "The multispecies network coalescent.", Validate.REQUIRED);
     public final Input<CoalescentSimulator> coalSimulatorInput = new Input<>("coalescentSimulator",
             "Simulate gene trees given the species network.", Validate.REQUIRED);
+    public final Input<Boolean> affectedLociOnlyInput = new Input<>("affectedLociOnly", "Only re-simulate the gene " +
+            "trees with lineages in the branches changed by this move, and keep the others (default false).", false);
 
     @Override
     public void initAndValidate() {
@@ -48,9 +51,12 @@ public class CoordinatedRelocateBranch extends Operator {
         final Network speciesNetwork = speciesNetworkInput.get();
         SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
 
+        // remember the network branches before the move if only the affected loci are re-simulated
+        final AffectedLoci affectedLoci = affectedLociOnlyInput.get() ? new AffectedLoci(speciesNetwork) : null;
+
         // calculate coalescent prob. of current gene trees in current species network
         final MultispeciesCoalescent MSNC = MSNCInput.get();
-        double logProposalRatio = MSNC.coalescentProb();
+        double logProposalRatio = affectedLoci == null ? MSNC.coalescentProb() : 0.0;
 
         // start moving species network
         speciesNetwork.startEditing(this);
@@ -75,8 +81,24 @@ public class CoordinatedRelocateBranch extends Operator {
             final NetworkNode pNP = pN.getParentByBranch(pNpNPBranchNr);  // pNP: another parent of pN
             final Integer pNpCBranchNr = pN.childBranchNumbers.get(0);
             final NetworkNode pC = pN.getChildByBranch(pNpCBranchNr);     // pC: (only) child of pN
-            // upper and lower bounds for the backward move
-            final double bounds = pNP.getHeight() - pC.getHeight();
+            // upper and lower bounds for the backward move, which must also stay below a reticulation node pP
+            final double bounds = (pP.isReticulation() ? Math.min(pNP.getHeight(), pP.getHeight()) : pNP.getHeight())
+                                  - pC.getHeight();
+
+            // the candidate branches to attach to are those below pP if pP is a reticulation node (or all branches),
+            // except the two parent branches of pN, which are below pP unless the branch between them has zero
+            // length; they are picked before pN is detached, which does not change the child node of any branch
+            final BranchIntervals intervals = speciesNetwork.getBranchIntervals();
+            final double highest = pP.isSpeciation() ? Double.POSITIVE_INFINITY : pP.getHeight();
+            final boolean pNBelow = pN.getHeight() < highest;
+            final int nCandidates = intervals.countBelow(highest) - (pNBelow ? 2 : 0);
+            if (nCandidates <= 0)
+                return Double.NEGATIVE_INFINITY;
+
+            // pick a candidate branch randomly
+            rIndex = Randomizer.nextInt(nCandidates);
+            final Integer attachBranchNr = pNBelow ? intervals.getBelow(highest, rIndex, pickedBranchNr, pNpNPBranchNr)
+                                                   : intervals.getBelow(highest, rIndex);
 
             // join pC and pNP with a single branch
             pNP.childBranchNumbers.remove(pNpNPBranchNr);
@@ -85,26 +107,12 @@ public class CoordinatedRelocateBranch extends Operator {
             pNP.updateRelationships();
             pC.updateRelationships();
 
-            // look for all the candidate branches to attach to
-            List<Integer> candidateBrNrs = new ArrayList<>();
-            for (NetworkNode node : speciesNetwork.getAllNodesExceptOrigin()) {
-                if (node != pN && (pP.isSpeciation() || node.getHeight() < pP.getHeight())) {
-                    candidateBrNrs.add(node.gammaBranchNumber);
-                    if (node.isReticulation())
-                        candidateBrNrs.add(node.gammaBranchNumber + 1);
-                }
-            }
-            if (candidateBrNrs.size() == 0)
-                return Double.NEGATIVE_INFINITY;
-
-            // pick a candidate branch randomly
-            rIndex = Randomizer.nextInt(candidateBrNrs.size());
-            final Integer attachBranchNr = candidateBrNrs.get(rIndex);
             final int aCNodeNr = speciesNetwork.getNodeNumber(attachBranchNr);
             final NetworkNode aC = speciesNetwork.getNode(aCNodeNr);      // aC: child at attaching branch
             final NetworkNode aP = aC.getParentByBranch(attachBranchNr);  // aP: parent at attaching branch
 
-            final double upper = aP.getHeight();
+            // pN cannot be moved above a reticulation node pP, so only propose the heights below it
+            final double upper = pP.isReticulation() ? Math.min(aP.getHeight(), pP.getHeight()) : aP.getHeight();
             final double lower = aC.getHeight();
             // propose an attachment height
             final double newHeight = lower + (upper - lower) * Randomizer.nextDouble();
@@ -122,7 +130,7 @@ public class CoordinatedRelocateBranch extends Operator {
                 aC.updateRelationships();
             }
             else if (pP.isReticulation()) {
-                // cannot move in this case
+                // cannot move in this case (not proposed any more, except for a tie of heights)
                 return Double.NEGATIVE_INFINITY;
             }
             else {
@@ -178,8 +186,27 @@ public class CoordinatedRelocateBranch extends Operator {
             final NetworkNode pNC = pN.getChildByBranch(pNpNCBranchNr);   // pNC: another child of pN
             final Integer pNpPBranchNr = pN.gammaBranchNumber;
             final NetworkNode pP = pN.getParentByBranch(pNpPBranchNr);    // pP: (only) parent of pN
-            // upper and lower bounds for the backward move
-            final double bounds = pP.getHeight() - pNC.getHeight();
+            // upper and lower bounds for the backward move, which must also stay above a speciation node pC
+            final double bounds = pP.getHeight()
+                                  - (pC.isReticulation() ? pNC.getHeight() : Math.max(pNC.getHeight(), pC.getHeight()));
+
+            // the candidate branches to attach to are those above pC if pC is a speciation node (or all branches),
+            // except the picked branch and the parent branch of pN, which are above pC; they are picked before pN is
+            // detached, which moves the top of branch pNpNCBranchNr from pN to pP, still above pC (if the branch
+            // between pN and pC has zero length, the picked branch and branch pNpNCBranchNr are not above pC before
+            // the move, and the latter takes the place of the parent branch of pN if that is above pC)
+            final BranchIntervals intervals = speciesNetwork.getBranchIntervals();
+            final double lowest = pC.isReticulation() ? Double.NEGATIVE_INFINITY : pC.getHeight();
+            final boolean pNAbove = pN.getHeight() > lowest;
+            final int nCandidates = intervals.countAbove(lowest) - (pNAbove ? 2 : 0);
+            if (nCandidates <= 0)
+                return Double.NEGATIVE_INFINITY;
+
+            // pick a candidate branch randomly
+            rIndex = Randomizer.nextInt(nCandidates);
+            final int aboveBranchNr = pNAbove ? intervals.getAbove(lowest, rIndex, pickedBranchNr, pNpPBranchNr)
+                                              : intervals.getAbove(lowest, rIndex);
+            final Integer attachBranchNr = !pNAbove && aboveBranchNr == pNpPBranchNr ? pNpNCBranchNr : aboveBranchNr;
 
             // join pP and pNC with a single branch
             pP.childBranchNumbers.remove(pNpPBranchNr);
@@ -188,28 +215,13 @@ public class CoordinatedRelocateBranch extends Operator {
             pP.updateRelationships();
             pNC.updateRelationships();
 
-            // look for all the candidate branches to attach to
-            List<Integer> candidateBrNrs = new ArrayList<>();
-            for (NetworkNode node : speciesNetwork.getInternalNodesWithOrigin()) {
-                if (pC.isReticulation() || node.getHeight() > pC.getHeight()) {
-                    for (Integer childBrNr : node.childBranchNumbers) {
-                        if (!childBrNr.equals(pickedBranchNr) && !childBrNr.equals(pNpPBranchNr))
-                            candidateBrNrs.add(childBrNr);
-                    }
-                }
-            }
-            if (candidateBrNrs.size() == 0)
-                return Double.NEGATIVE_INFINITY;
-
-            // pick a candidate branch randomly
-            rIndex = Randomizer.nextInt(candidateBrNrs.size());
-            final Integer attachBranchNr = candidateBrNrs.get(rIndex);
             final int aCNodeNr = speciesNetwork.getNodeNumber(attachBranchNr);
             final NetworkNode aC = speciesNetwork.getNode(aCNodeNr);      // aC: child at attaching branch
             final NetworkNode aP = aC.getParentByBranch(attachBranchNr);  // aP: parent at attaching branch
 
+            // pN cannot be moved below a speciation node pC, so only propose the heights above it
             final double upper = aP.getHeight();
-            final double lower = aC.getHeight();
+            final double lower = pC.isReticulation() ? aC.getHeight() : Math.max(aC.getHeight(), pC.getHeight());
             // propose an attachment height
             final double newHeight = lower + (upper - lower) * Randomizer.nextDouble();
 
@@ -226,7 +238,7 @@ public class CoordinatedRelocateBranch extends Operator {
                 aC.updateRelationships();
             }
             else if (!pC.isReticulation()) {
-                // cannot move in this case
+                // cannot move in this case (not proposed any more, except for a tie of heights)
                 return Double.NEGATIVE_INFINITY;
             }
             else {
@@ -270,6 +282,10 @@ public class CoordinatedRelocateBranch extends Operator {
 
         SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
 
+        if (affectedLoci != null)
+            return logProposalRatio + affectedLoci.resimulate(this, speciesNetwork, geneTreesInput.get(),
+                                                              MSNC, coalSimulatorInput.get());
+
         // update gene trees (simulate random gene trees under MSNC)
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
         for (EmbeddedTree geneTree : geneTrees) {
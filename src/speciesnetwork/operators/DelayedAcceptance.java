@@ -0,0 +1,135 @@
+package speciesnetwork.operators;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkPrior;
+
+/**
+ * Two-stage (delayed) acceptance of the moves of another operator. Let the posterior be p = p1 * p2, where p1 is the
+ * cheap network prior and p2 is everything else. The proposal is first accepted with prob. min(1, r1), where
+ * r1 = p1(y) q(x|y) / [p1(x) q(y|x)], and rejected otherwise before the posterior is calculated. If it passes, the
+ * Hastings ratio returned is 1 / [p1(y) / p1(x)], so that the MCMC accepts it with prob. min(1, p2(y) / p2(x)).
+ * The overall acceptance prob. min(1, r1) * min(1, r2) satisfies detailed balance. The network prior must be part of
+ * the posterior. A Gibbs move (with an infinite Hastings ratio) is always accepted, so it skips both stages.
+ */
+
+@Description("Accept or reject the moves of another operator by the species network prior first, " +
+             "and only calculate the rest of the posterior for the moves passing the first stage.")
+public class DelayedAcceptance extends Operator {
+    public final Input<Network> speciesNetworkInput =
+            new Input<>("speciesNetwork", "The species network (default is the one of the priors).");
+    public final Input<Operator> operatorInput =
+            new Input<>("operator", "The operator making the moves.", Validate.REQUIRED);
+    public final Input<List<Distribution>> priorsInput = new Input<>("prior", "The species network prior(s) for " +
+            "the first stage, such as the birth-hybridization model.", new ArrayList<>(), Validate.REQUIRED);
+
+    private Operator operator;
+    private Network speciesNetwork;
+    private final List<NetworkPrior> priors = new ArrayList<>();
+
+    private long nFirstStageRejected;
+
+    @Override
+    public void initAndValidate() {
+        operator = operatorInput.get();
+        priors.clear();
+        for (Distribution prior: priorsInput.get()) {
+            if (!(prior instanceof NetworkPrior))
+                throw new IllegalArgumentException(prior.getID() + " cannot be used as a species network prior " +
+                        "in the first stage!");
+            priors.add((NetworkPrior) prior);
+        }
+        speciesNetwork = speciesNetworkInput.get();
+        for (NetworkPrior prior: priors) {
+            if (speciesNetwork == null)
+                speciesNetwork = prior.getNetwork();
+            else if (prior.getNetwork() != speciesNetwork)
+                throw new IllegalArgumentException("The species network priors must be of the same species network!");
+        }
+    }
+
+    private double getLogPrior() {
+        double logPrior = 0.0;
+        for (NetworkPrior prior: priors)
+            logPrior += prior.networkLogP(speciesNetwork);
+        return logPrior;
+    }
+
+    @Override
+    public double proposal() {
+        final double oldLogPrior = getLogPrior();
+
+        final double logHR = operator.proposal();
+        if (logHR == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+        if (logHR == Double.POSITIVE_INFINITY)
+            return Double.POSITIVE_INFINITY;  // a Gibbs move, accepted without calculating the posterior
+
+        // the first stage, by the network prior only
+        final double logPriorRatio = getLogPrior() - oldLogPrior;
+        final double logR1 = logPriorRatio + logHR;
+        if (logR1 < 0.0 && Math.log(Randomizer.nextDouble()) >= logR1) {
+            nFirstStageRejected++;
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // the second stage, by the rest of the posterior
+        return -logPriorRatio;
+    }
+
+    /**
+     * @return the number of moves rejected in the first stage
+     */
+    public long getFirstStageRejectedCount() {
+        return nFirstStageRejected;
+    }
+
+    @Override
+    public void accept() {
+        super.accept();
+        operator.accept();
+    }
+
+    @Override
+    public void reject() {
+        super.reject();
+        operator.reject();
+    }
+
+    @Override
+    public void reject(int reason) {
+        super.reject(reason);
+        operator.reject(reason);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        operator.optimize(logAlpha);
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return operator.getCoercableParameterValue();
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        operator.setCoercableParameterValue(value);
+    }
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        final List<StateNode> stateNodes = new ArrayList<>(operator.listStateNodes());
+        stateNodes.addAll(super.listStateNodes());
+        return stateNodes;
+    }
+}
@@ -1,5 +1,7 @@
 package speciesnetwork.operators;
 
+import java.util.List;
+
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
@@ -10,14 +12,14 @@ import speciesnetwork.NetworkNode;
 import speciesnetwork.SanityChecks;
 
 /**
- * This proposal deletes a reticulation branch from the species network. If there is no reticulation, or if the branch
- * is connecting two reticulation nodes, this is aborted. The two branches at each connecting point are joined,
+ * This proposal deletes a reticulation branch from the species network. If there is no reticulation, this is aborted.
+ * A branch connecting two reticulation nodes is never picked. The two branches at each connecting point are joined,
  * resulting branches with length l1 and l2 respectively. The gamma prob r is removed.
  * The Jacobian is 1 / (l1 * l2).
  *
  * The AddReticulation and DeleteReticulation are chosen with equal prob.
- * Let m be the number of reticulation branches in the current network. The probability of selecting the this branch to
- * remove is 1/m.
+ * Let m be the number of reticulation branches in the current network which are not connecting two reticulation nodes.
+ * The probability of selecting the this branch to remove is 1/m.
  * Let k be the number of branches in the proposed network. The probability of adding this branch is (1/k)(1/k)
  * The Hastings ratio is (1/k)(1/k)(1)(1)(1) / (1/m) = m / k^2.
  *
@@ -31,6 +33,9 @@ public class DeleteReticulation extends Operator {
     public final Input<Network> speciesNetworkInput =
             new Input<>("speciesNetwork", "The species network.", Validate.REQUIRED);
 
+    // the reticulation branches which can be deleted in the current network
+    private final ReticulationCandidates candidates = ReticulationCandidates.deletable();
+
     // empty constructor to facilitate construction by XML + initAndValidate
     public DeleteReticulation() {
     }
@@ -44,21 +49,35 @@ public class DeleteReticulation extends Operator {
         final Network speciesNetwork = speciesNetworkInput.get();
         SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
 
-        final int nHybridNodes = speciesNetwork.getReticulationNodeCount();
-        if (nHybridNodes == 0)  // there is no reticulation branch to delete
+        // only the branches not connecting two reticulation nodes can be deleted
+        final List<Integer> candidateBrNrs = candidates.get(speciesNetwork);
+        if (candidateBrNrs.isEmpty())  // there is no reticulation branch to delete
             return Double.NEGATIVE_INFINITY;
-
-        // number of reticulation branches in the current network
-        final int nReticulationBranches = 2 * nHybridNodes;  // m'
+        // number of deletable reticulation branches in the current network
+        final int nReticulationBranches = candidateBrNrs.size();  // m'
 
         // pick a reticulation branch randomly
-        final Integer hybridBranchNr = Randomizer.nextInt(nReticulationBranches) + speciesNetwork.getReticulationOffset();
+        final Integer hybridBranchNr = candidateBrNrs.get(Randomizer.nextInt(nReticulationBranches));
+
+        // start moving
+        speciesNetwork.startEditing(this);
+
+        final double logProposalRatio = deleteReticulation(speciesNetwork, hybridBranchNr, nReticulationBranches);
+
+        SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
+
+        return logProposalRatio;
+    }
+
+    /**
+     * delete a reticulation branch, which is one of the nReticulationBranches deletable branches
+     * @return the log Hastings ratio of the move, see above
+     */
+    static double deleteReticulation(Network speciesNetwork, Integer hybridBranchNr, int nReticulationBranches) {
         final int hybridNodeNr = speciesNetwork.getNodeNumber(hybridBranchNr);
         // branch with hybridBranchNr is connecting hybridNode and parentNode
         NetworkNode hybridNode = speciesNetwork.getNode(hybridNodeNr);
         NetworkNode parentNode = hybridNode.getParentByBranch(hybridBranchNr);
-        if (parentNode.isReticulation())  // cannot delete a branch connecting two reticulation nodes
-            return Double.NEGATIVE_INFINITY;
 
         // get the parent node and another child node of parentNode
         final Integer pNParentBranchNr = parentNode.gammaBranchNumber;
@@ -92,14 +111,9 @@ public class DeleteReticulation extends Operator {
         }
         double logProposalRatio = - Math.log(l1) - Math.log(l2);
 
-        // start moving
-        speciesNetwork.startEditing(this);
-
         // delete the reticulation branch
         speciesNetwork.deleteReticulationBranch(hybridBranchNr);
 
-        SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
-
         // number of branches in the proposed network
         final int nBranches = speciesNetwork.getBranchCount();  // k'
         logProposalRatio += Math.log(nReticulationBranches) - 2 * Math.log(nBranches);
@@ -1,5 +1,7 @@
 package speciesnetwork.operators;
 
+import java.util.List;
+
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
@@ -18,6 +20,9 @@ public class FlipReticulation extends Operator {
     public final Input<Network> speciesNetworkInput =
             new Input<>("speciesNetwork", "The species network.", Validate.REQUIRED);
 
+    // the reticulation branches which can be flipped in the current and the proposed network
+    private final ReticulationCandidates candidates = ReticulationCandidates.flippable();
+
     // empty constructor to facilitate construction by XML + initAndValidate
     public FlipReticulation() {
     }
@@ -31,18 +36,18 @@ public class FlipReticulation extends Operator {
         final Network speciesNetwork = speciesNetworkInput.get();
         SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
 
-        final int nHybridNodes = speciesNetwork.getReticulationNodeCount();
-        if (nHybridNodes == 0)  // there is no reticulation branch to flip
+        // only the branches not connecting two reticulation nodes, not in a bubble, and with room to flip
+        final List<Integer> candidateBrNrs = candidates.get(speciesNetwork);
+        if (candidateBrNrs.isEmpty())  // there is no reticulation branch to flip
             return Double.NEGATIVE_INFINITY;
+        final int nCandidates = candidateBrNrs.size();
 
         // pick a reticulation branch randomly
-        final Integer hybridBranchNr = Randomizer.nextInt(2 * nHybridNodes) + speciesNetwork.getReticulationOffset();
+        final Integer hybridBranchNr = candidateBrNrs.get(Randomizer.nextInt(nCandidates));
         final int hybridNodeNr = speciesNetwork.getNodeNumber(hybridBranchNr);
         // branch with hybridBranchNr is connecting hybridNode and parentNode
         NetworkNode hybridNode = speciesNetwork.getNode(hybridNodeNr);
         NetworkNode parentNode = hybridNode.getParentByBranch(hybridBranchNr);
-        if (parentNode.isReticulation())  // cannot flip a branch connecting two reticulation nodes
-            return Double.NEGATIVE_INFINITY;
 
         // get the parent node and another child node of parentNode
         final Integer pNParentBranchNr = parentNode.gammaBranchNumber;
@@ -64,16 +69,10 @@ public class FlipReticulation extends Operator {
             hNParentBranchNr = hybridNode.gammaBranchNumber;
         NetworkNode hNParentNode = hybridNode.getParentByBranch(hNParentBranchNr);
 
-        // do not deal with bubble
-        if (parentNode == hNParentNode && hybridNode == pNChildNode)
-            return Double.NEGATIVE_INFINITY;
-
         final double hNParentHeight = hNParentNode.getHeight();
         final double pNChildHeight = pNChildNode.getHeight();
         final double hNChildHeight = hNChildNode.getHeight();
         final double lower = Math.max(pNChildHeight, hNChildHeight);
-        if (hNParentHeight <= lower)  // cannot flip
-            return Double.NEGATIVE_INFINITY;
         // new speciation node height
         final double spHeight = lower + (hNParentHeight - lower) * Randomizer.nextDouble();
 
@@ -84,8 +83,8 @@ public class FlipReticulation extends Operator {
 
         // calculate proposal ratio
         final double upperB = Math.min(parentNode.getHeight(), hNParentHeight);
-        final double logProposalRatio = Math.log(hNParentHeight - lower) + Math.log(upperF - pNChildHeight)
-                                      - Math.log(pNParentHeight - lower) - Math.log(upperB - hNChildHeight);
+        double logProposalRatio = Math.log(hNParentHeight - lower) + Math.log(upperF - pNChildHeight)
+                                - Math.log(pNParentHeight - lower) - Math.log(upperB - hNChildHeight);
 
         //start moving
         speciesNetwork.startEditing(this);
@@ -109,6 +108,9 @@ public class FlipReticulation extends Operator {
 
         SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
 
+        // the branch is picked from the candidates in the current network, and flipped back from those in the proposed
+        logProposalRatio += Math.log(nCandidates) - Math.log(candidates.get(speciesNetwork).size());
+
         return logProposalRatio;
     }
 }
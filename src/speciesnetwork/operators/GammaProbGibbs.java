@@ -0,0 +1,77 @@
+package speciesnetwork.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.MultispeciesCoalescent.CoalescentStatistics;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+import speciesnetwork.NetworkPrior;
+
+/**
+ * Gibbs sampling of the gamma probs of all the reticulation nodes. Given the embeddings, the MSNC contributes
+ * c1*log(gamma) + c2*log(1-gamma) for each reticulation node, where c1 and c2 are the numbers of gene lineages
+ * traversing the gamma branch and the other parent branch (the lineages at the tipward ends of the two branches).
+ * With the symmetric beta(a, a) prior of the birth-hybridization models, the full conditional is beta(a+c1, a+c2).
+ * The shape a is read from the given network prior, which must be the only prior on the gamma probs in the posterior.
+ * The counts are taken from the statistics kept by the MSNC from its last calculation.
+ */
+
+@Description("Draw the gamma probs of all reticulation nodes from their beta full conditionals.")
+public class GammaProbGibbs extends Operator {
+    public final Input<Network> speciesNetworkInput =
+            new Input<>("speciesNetwork", "The species network.", Validate.REQUIRED);
+    public final Input<MultispeciesCoalescent> MSNCInput = new Input<>("MSNC",
+            "The multispecies network coalescent of all the gene trees.", Validate.REQUIRED);
+    public final Input<Distribution> networkPriorInput = new Input<>("networkPrior", "The birth-hybridization " +
+            "prior of the species network, whose beta prior on gamma probs is used.", Validate.REQUIRED);
+
+    private NetworkPrior networkPrior;
+
+    @Override
+    public void initAndValidate() {
+        final Network speciesNetwork = speciesNetworkInput.get();
+        if (MSNCInput.get().speciesNetworkInput.get() != speciesNetwork)
+            throw new IllegalArgumentException("The MSNC must use the given species network!");
+
+        final Distribution prior = networkPriorInput.get();
+        if (!(prior instanceof NetworkPrior) || ((NetworkPrior) prior).getNetwork() != speciesNetwork)
+            throw new IllegalArgumentException(prior.getID() + " must be a birth-hybridization prior of " +
+                    "the given species network!");
+        networkPrior = (NetworkPrior) prior;
+    }
+
+    @Override
+    public double proposal() {
+        final Network speciesNetwork = speciesNetworkInput.get();
+
+        final int nReticulations = speciesNetwork.getReticulationNodeCount();
+        if (nReticulations == 0)  // no reticulation
+            return Double.NEGATIVE_INFINITY;
+
+        final double a = networkPrior.getBetaShape();
+
+        // the lineages in each branch for the current embeddings, which do not depend on the gamma probs
+        final CoalescentStatistics stats = MSNCInput.get().getStatistics();
+
+        speciesNetwork.startEditing(this);
+
+        for (NetworkNode node : speciesNetwork.getReticulationNodes()) {
+            final int c1 = stats.getBottomLineageCount(node.gammaBranchNumber);
+            final int c2 = stats.getBottomLineageCount(node.gammaBranchNumber + 1);
+            // beta(a+c1, a+c2) as the ratio of two gamma variables
+            final double x1 = Randomizer.nextGamma(a + c1, 1.0);
+            final double x2 = Randomizer.nextGamma(a + c2, 1.0);
+            final double newGamma = x1 / (x1 + x2);
+            if (newGamma <= 0.0 || newGamma >= 1.0)  // underflow with tiny shapes
+                return Double.NEGATIVE_INFINITY;
+            node.setGammaProb(newGamma);
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,243 @@
+package speciesnetwork.operators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+import speciesnetwork.ConstantPopulation;
+import speciesnetwork.EmbeddedTree;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.Network;
+import speciesnetwork.NetworkPrior;
+import speciesnetwork.SanityChecks;
+import speciesnetwork.utils.WorkerPool;
+
+/**
+ * Multiple-try version of AddReticulation and DeleteReticulation, which are chosen with equal prob.
+ * K candidate moves y1..yK are proposed from the current network x as in the single moves, each is applied to a copy
+ * of x and weighted by w(y|x) = p(y) q(x|y) / q(y|x), where p is the species network prior and q(x|y) / q(y|x) is the
+ * Hastings ratio of the single move. One candidate y is selected with prob. proportional to its weight. Then K-1
+ * candidates of the opposite move are proposed from y, and together with x they are weighted the same way.
+ * The Hastings ratio is q(x|y) / q(y|x) * w(x|y) / w(y|x) * sum_j w(yj|x) / sum_j w(xj|y) (generalized MTM, see
+ * Liu, Liang and Wong 2000; Pandolfi et al. 2010), which is valid for any positive weights. The copies are weighted in
+ * parallel if useThreads is true, while the candidates are drawn from the chain's random number generator in order.
+ *
+ * If the MSNC is given, p also includes the coalescent probability of the gene trees, with copies of them embedded in
+ * each weighed network z by RebuildEmbedding, drawing from a random stream seeded by z and by a seed drawn once per
+ * move. The weights are thus fixed functions of the networks within a move (a random choice of the kernel, which does
+ * not depend on the state), including the weight of x. The population sizes must not be per branch, as the number of
+ * branches changes. Either way, this operator should be combined into RebuildEmbedding to re-embed the gene trees of
+ * the state after the move.
+ */
+
+@Description("Add or delete a reticulation branch, selecting among multiple candidates weighted by the network prior " +
+             "and optionally the MSNC.")
+public class MultipleTryReticulation extends Operator {
+    public final Input<Network> speciesNetworkInput =
+            new Input<>("speciesNetwork", "The species network.", Validate.REQUIRED);
+    public final Input<List<Distribution>> priorsInput = new Input<>("prior", "The species network prior(s) used " +
+            "in the weights of the candidates, such as the birth-hybridization model.", new ArrayList<>(), Validate.REQUIRED);
+    public final Input<MultispeciesCoalescent> MSNCInput = new Input<>("MSNC", "The multispecies network " +
+            "coalescent, to include the probability of the gene trees re-embedded in each candidate in the weights.");
+    public final Input<Integer> maxReticulationInput =
+            new Input<>("maxReticulation", "Maximum number of reticulation nodes.");
+    public final Input<Integer> triesInput =
+            new Input<>("tries", "Number of candidates proposed in each direction (default 4).", 4);
+    public final Input<Boolean> useThreadsInput = new Input<>("useThreads",
+            "Weight the candidates in parallel (default false).", false);
+    public final Input<Integer> threadsInput = new Input<>("threads",
+            "Number of threads to use if useThreads is true (default is the number of available processors).");
+
+    private final List<NetworkPrior> priors = new ArrayList<>();
+    private int maxHybridNodes = -1;
+    private int nTries;
+    private int nThreads;
+    private MultispeciesCoalescent MSNC;
+    private Map<String, String> tipSpecies;
+
+    // the reticulation branches which can be deleted in the current network
+    private final ReticulationCandidates candidates = ReticulationCandidates.deletable();
+
+    /* a candidate add (branches, attaching proportions and gamma) or delete (branch) move */
+    private static final class Candidate {
+        Integer branchNr1, branchNr2;
+        double w1, w2, gamma;
+        int nDeletable;  // number of deletable branches in the network before deleting
+    }
+
+    @Override
+    public void initAndValidate() {
+        priors.clear();
+        for (Distribution prior: priorsInput.get()) {
+            if (!(prior instanceof NetworkPrior))
+                throw new IllegalArgumentException(prior.getID() + " cannot be used as a species network prior " +
+                        "in the weights!");
+            priors.add((NetworkPrior) prior);
+        }
+        if (maxReticulationInput.get() != null)
+            maxHybridNodes = maxReticulationInput.get();
+        nTries = triesInput.get();
+        if (nTries < 1)
+            throw new IllegalArgumentException("Number of tries must be positive!");
+        if (!useThreadsInput.get())
+            nThreads = 1;
+        else if (threadsInput.get() != null)
+            nThreads = threadsInput.get();
+        else
+            nThreads = WorkerPool.defaultThreadCount();
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive!");
+
+        MSNC = MSNCInput.get();
+        if (MSNC != null) {
+            if (MSNC.speciesNetworkInput.get() != speciesNetworkInput.get())
+                throw new IllegalArgumentException("The MSNC must be of the same species network!");
+            if (MSNC.populationModelInput.get() instanceof ConstantPopulation)
+                throw new IllegalArgumentException("Cannot weigh the candidates by the MSNC with per-branch " +
+                        "population sizes!");
+            tipSpecies = RebuildEmbedding.mapGeneTipSpecies(speciesNetworkInput.get().taxonSetInput.get());
+        }
+    }
+
+    @Override
+    public double proposal() {
+        final Network speciesNetwork = speciesNetworkInput.get();
+        SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
+
+        final boolean add = Randomizer.nextBoolean();
+        final Candidate[] forward;
+        if (add) {
+            final int nHybridNodes = speciesNetwork.getReticulationNodeCount();
+            if (maxHybridNodes > 0 && nHybridNodes >= maxHybridNodes)  // prevent too many reticulations
+                return Double.NEGATIVE_INFINITY;
+            forward = drawAdds(speciesNetwork, nTries);
+        } else {
+            if (candidates.get(speciesNetwork).isEmpty())
+                return Double.NEGATIVE_INFINITY;
+            forward = drawDeletes(speciesNetwork, nTries);
+        }
+
+        // the seed of the embeddings of the gene trees in the weighed networks, the same for both directions
+        final long seed = MSNC == null ? 0 : Randomizer.nextLong();
+
+        // weight the candidates from x, and select one of them
+        final double[] logHRs = new double[nTries];
+        final double[] logWeights = weigh(speciesNetwork, forward, add, logHRs, seed);
+        final double logForwardSum = logSumExp(logWeights, nTries);
+        if (logForwardSum == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+        final int selected = select(logWeights, logForwardSum);
+        final double logHR = logHRs[selected];
+        final double logForwardWeight = logWeights[selected];
+        final double logTargetX = getLogTarget(speciesNetwork, seed);
+
+        // start moving
+        speciesNetwork.startEditing(this);
+        apply(speciesNetwork, forward[selected], add);
+        SanityChecks.checkNetworkSanity(speciesNetwork.getOrigin());
+
+        // weight the reverse candidates from y, including x
+        final Candidate[] backward = add ? drawDeletes(speciesNetwork, nTries - 1) : drawAdds(speciesNetwork, nTries - 1);
+        final double[] backLogWeights = new double[nTries];
+        System.arraycopy(weigh(speciesNetwork, backward, !add, new double[nTries - 1], seed), 0,
+                         backLogWeights, 0, nTries - 1);
+        final double logBackwardWeight = logTargetX - logHR;  // w(x|y) = p(x) q(y|x) / q(x|y)
+        backLogWeights[nTries - 1] = logBackwardWeight;
+        final double logBackwardSum = logSumExp(backLogWeights, nTries);
+
+        return logHR + logBackwardWeight - logForwardWeight + logForwardSum - logBackwardSum;
+    }
+
+    private Candidate[] drawAdds(Network speciesNetwork, int n) {
+        final int nBranches = speciesNetwork.getBranchCount();
+        final Candidate[] adds = new Candidate[n];
+        for (int j = 0; j < n; j++) {
+            adds[j] = new Candidate();
+            adds[j].branchNr1 = Randomizer.nextInt(nBranches);
+            adds[j].branchNr2 = Randomizer.nextInt(nBranches);
+            adds[j].w1 = Randomizer.nextDouble();
+            adds[j].w2 = Randomizer.nextDouble();
+            adds[j].gamma = Randomizer.nextDouble();
+        }
+        return adds;
+    }
+
+    private Candidate[] drawDeletes(Network speciesNetwork, int n) {
+        final List<Integer> candidateBrNrs = candidates.get(speciesNetwork);
+        final Candidate[] deletes = new Candidate[n];
+        for (int j = 0; j < n; j++) {
+            deletes[j] = new Candidate();
+            deletes[j].branchNr1 = candidateBrNrs.get(Randomizer.nextInt(candidateBrNrs.size()));
+            deletes[j].nDeletable = candidateBrNrs.size();
+        }
+        return deletes;
+    }
+
+    /* apply the candidate move, and return the log Hastings ratio of the single move */
+    private static double apply(Network speciesNetwork, Candidate candidate, boolean add) {
+        if (add)
+            return AddReticulation.addReticulation(speciesNetwork, candidate.branchNr1, candidate.branchNr2,
+                    candidate.w1, candidate.w2, candidate.gamma, ReticulationCandidates.deletable());
+        else
+            return DeleteReticulation.deleteReticulation(speciesNetwork, candidate.branchNr1, candidate.nDeletable);
+    }
+
+    /* the log weights of the candidate moves, each applied to a copy of the network; logHRs are also filled in */
+    private double[] weigh(Network speciesNetwork, Candidate[] moves, boolean add, double[] logHRs, long seed) {
+        final double[] logWeights = new double[moves.length];
+        WorkerPool.run(nThreads, moves.length, j -> {
+            final Network copy = speciesNetwork.copy();
+            logHRs[j] = apply(copy, moves[j], add);
+            logWeights[j] = getLogTarget(copy, seed) + logHRs[j];
+        });
+        return logWeights;
+    }
+
+    /* the network prior, and the MSNC of copies of the gene trees embedded in the network if it is given */
+    private double getLogTarget(Network network, long seed) {
+        double logTarget = 0.0;
+        for (NetworkPrior prior: priors)
+            logTarget += prior.networkLogP(network);
+        if (MSNC == null || logTarget == Double.NEGATIVE_INFINITY)
+            return logTarget;
+
+        // the embeddings only depend on the network (its string gives the topology in branch order, the branch
+        // lengths and the inheritance probs) and the seed, so the weight of a network is the same in both directions
+        final SplittableRandom random = new SplittableRandom(seed ^ network.toString().hashCode());
+        final List<EmbeddedTree> geneTrees = new ArrayList<>();
+        for (EmbeddedTree geneTree: MSNC.geneTreesInput.get()) {
+            final EmbeddedTree copy = new EmbeddedTree(geneTree.getRoot().copy());
+            copy.ploidy = geneTree.ploidy;
+            if (!RebuildEmbedding.rebuildEmbedding(network, copy, tipSpecies, random::nextDouble))
+                return Double.NEGATIVE_INFINITY;
+            geneTrees.add(copy);
+        }
+        return logTarget + MSNC.coalescentProb(network, geneTrees);
+    }
+
+    private static double logSumExp(double[] logValues, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < n; j++)
+            max = Math.max(max, logValues[j]);
+        if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+            return max;
+        double sum = 0.0;
+        for (int j = 0; j < n; j++)
+            sum += Math.exp(logValues[j] - max);
+        return max + Math.log(sum);
+    }
+
+    private static int select(double[] logWeights, double logSum) {
+        final double[] probs = new double[logWeights.length];
+        for (int j = 0; j < logWeights.length; j++)
+            probs[j] = Math.exp(logWeights[j] - logSum);
+        return Randomizer.randomChoicePDF(probs);
+    }
+}
@@ -0,0 +1,70 @@
+package speciesnetwork.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import speciesnetwork.ConstantPopulation;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.MultispeciesCoalescent.CoalescentStatistics;
+
+/**
+ * Gibbs sampling of the population sizes of ConstantPopulation. With independent inverse-gamma(alpha, beta) priors,
+ * and the coalescent log probability -q*log(N) - gamma/N + const in each branch, the full conditional of the population
+ * size N of a branch is inverse-gamma(alpha + q, beta + gamma). The statistics q and gamma are computed from those
+ * kept by the MSNC from its last calculation, which are only collected again if the trees have been edited since.
+ * The inverse-gamma priors must be the only prior on the population sizes in the posterior.
+ */
+
+@Description("Draw all the constant population sizes from their inverse-gamma full conditionals.")
+public class PopSizeGibbsOperator extends Operator {
+    public final Input<ConstantPopulation> populationModelInput = new Input<>("populationModel",
+            "The constant population size model.", Validate.REQUIRED);
+    public final Input<MultispeciesCoalescent> MSNCInput = new Input<>("MSNC",
+            "The multispecies network coalescent using the population model.", Validate.REQUIRED);
+    public final Input<RealParameter> invgammaShapeInput = new Input<>("alpha",
+            "Shape of the inverse gamma prior on population sizes.", Validate.REQUIRED);
+    public final Input<RealParameter> invgammaScaleInput = new Input<>("beta",
+            "Scale of the inverse gamma prior on population sizes.", Validate.REQUIRED);
+    public final Input<RealParameter> invgammaMeanInput = new Input<>("mean",
+            "Mean of the inverse gamma prior on population sizes.", Validate.XOR, invgammaScaleInput);
+
+    @Override
+    public void initAndValidate() {
+        if (MSNCInput.get().populationModelInput.get() != populationModelInput.get())
+            throw new IllegalArgumentException("The MSNC must use the given population model!");
+    }
+
+    @Override
+    public double proposal() {
+        final ConstantPopulation populationModel = populationModelInput.get();
+        final RealParameter popSizes = populationModel.popSizesInput.get();
+
+        final double alpha = invgammaShapeInput.get().getValue();
+        final double beta;
+        if (invgammaScaleInput.get() != null)
+            beta = invgammaScaleInput.get().getValue();
+        else
+            beta = invgammaMeanInput.get().getValue() * (alpha - 1.0);
+
+        // the statistics of each branch for the current state, which do not depend on the population sizes
+        final CoalescentStatistics stats = MSNCInput.get().getStatistics();
+        final double[] genePloidy = stats.getGenePloidy();
+
+        for (int i = 0; i < popSizes.getDimension(); i++) {
+            final int[] eventCounts = stats.getEventCounts(i);
+            final double shape = alpha + ConstantPopulation.getBranchEventCount(eventCounts);
+            final double scale = beta + ConstantPopulation.getBranchGamma(genePloidy, stats.getCoalescentTimes(i),
+                                                                          stats.getLineageCounts(i), eventCounts);
+            // 1/N ~ gamma(shape, rate = scale)
+            final double newPopSize = scale / Randomizer.nextGamma(shape, 1.0);
+            if (newPopSize < popSizes.getLower() || newPopSize > popSizes.getUpper())
+                return Double.NEGATIVE_INFINITY;
+            popSizes.setValue(i, newPopSize);
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,218 @@
+package speciesnetwork.operators;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import speciesnetwork.MultispeciesCoalescent;
+import speciesnetwork.utils.WorkerPool;
+
+/**
+ * Wraps an operator and measures the cost of its moves. A move lasts from the proposal until it is accepted or
+ * rejected, and so includes the evaluation of the posterior by the MCMC. The time spent in the multispecies coalescent
+ * and in rebuilding the embeddings is measured by those objects themselves and counted here if given.
+ * The allocated memory is that of the calling thread and of the worker threads of WorkerPool, which are only used by
+ * one move at a time.
+ */
+
+@Description("Measure the time, the allocated memory and the acceptance of another operator, and log them.")
+public class ProfiledOperator extends Operator implements Loggable {
+    public final Input<Operator> operatorInput =
+            new Input<>("operator", "The operator to be profiled.", Validate.REQUIRED);
+    public final Input<MultispeciesCoalescent> MSNCInput = new Input<>("MSNC",
+            "The multispecies network coalescent, to measure the time spent in it.");
+    public final Input<RebuildEmbedding> rebuildEmbeddingInput = new Input<>("rebuildEmbedding",
+            "The embedding operator, to measure the time spent in it (default is the profiled operator if it is one).");
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private Operator operator;
+    private MultispeciesCoalescent MSNC;
+    private RebuildEmbedding rebuildEmbedding;
+    private boolean measureBytes;
+
+    // the counters at the start of the current move, and the end time of its proposal
+    private boolean inMove = false;
+    private long moveStart, proposalEnd, msncStart, rebuildStart;
+    private long[] threadIdsStart, bytesStart;  // the allocated bytes of the threads at the start of the move
+
+    private long nMoves, nAccepted;
+    private long proposalNanos, evaluationNanos, msncNanos, rebuildNanos, allocatedBytes;
+
+    @Override
+    public void initAndValidate() {
+        operator = operatorInput.get();
+        MSNC = MSNCInput.get();
+        rebuildEmbedding = rebuildEmbeddingInput.get();
+        if (rebuildEmbedding == null && operator instanceof RebuildEmbedding)
+            rebuildEmbedding = (RebuildEmbedding) operator;
+        // only available in some JVMs (such as HotSpot)
+        measureBytes = threadBean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported() &&
+                ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemoryEnabled();
+    }
+
+    @Override
+    public double proposal() {
+        msncStart = MSNC == null ? 0 : MSNC.getTimeInNanos();
+        rebuildStart = rebuildEmbedding == null ? 0 : rebuildEmbedding.getTimeInNanos();
+        if (measureBytes) {
+            threadIdsStart = getThreadIds();
+            bytesStart = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadIdsStart);
+        }
+        moveStart = System.nanoTime();
+
+        final double logHR = operator.proposal();
+
+        proposalEnd = System.nanoTime();
+        inMove = true;
+        return logHR;
+    }
+
+    // the calling thread and the worker threads
+    private static long[] getThreadIds() {
+        final long[] workerIds = WorkerPool.getThreadIds();
+        final long[] ids = new long[workerIds.length + 1];
+        ids[0] = Thread.currentThread().getId();
+        System.arraycopy(workerIds, 0, ids, 1, workerIds.length);
+        return ids;
+    }
+
+    // the bytes allocated by the threads since the start of the move, counting threads started since from zero
+    private long getAllocatedBytesSinceStart() {
+        final long[] ids = getThreadIds();
+        final long[] bytes = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] < 0) continue;  // no longer alive
+            long start = 0;
+            if (i < threadIdsStart.length && threadIdsStart[i] == ids[i] && bytesStart[i] >= 0)
+                start = bytesStart[i];  // the ids are only appended, so the same thread has the same position
+            total += bytes[i] - start;
+        }
+        return total;
+    }
+
+    // the move is finished when it is accepted or rejected
+    private void finishMove(boolean accepted) {
+        if (!inMove) return;
+        inMove = false;
+
+        final long end = System.nanoTime();
+        nMoves++;
+        if (accepted) nAccepted++;
+        proposalNanos += proposalEnd - moveStart;
+        evaluationNanos += end - proposalEnd;
+        if (MSNC != null)
+            msncNanos += MSNC.getTimeInNanos() - msncStart;
+        if (rebuildEmbedding != null)
+            rebuildNanos += rebuildEmbedding.getTimeInNanos() - rebuildStart;
+        if (measureBytes)
+            allocatedBytes += getAllocatedBytesSinceStart();
+    }
+
+    @Override
+    public void accept() {
+        finishMove(true);
+        super.accept();
+        operator.accept();
+    }
+
+    @Override
+    public void reject() {
+        finishMove(false);
+        super.reject();
+        operator.reject();
+    }
+
+    @Override
+    public void reject(int reason) {
+        finishMove(false);
+        super.reject(reason);
+        operator.reject(reason);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        operator.optimize(logAlpha);
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return operator.getCoercableParameterValue();
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        operator.setCoercableParameterValue(value);
+    }
+
+    @Override
+    public double getTargetAcceptanceProbability() {
+        return operator.getTargetAcceptanceProbability();
+    }
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        final List<StateNode> stateNodes = new ArrayList<>(operator.listStateNodes());
+        stateNodes.addAll(super.listStateNodes());
+        return stateNodes;
+    }
+
+    public long getMoveCount() {
+        return nMoves;
+    }
+
+    public long getAcceptedCount() {
+        return nAccepted;
+    }
+
+    /**
+     * @return the total time of the finished moves (proposal and evaluation), in nanoseconds
+     */
+    public long getTimeInNanos() {
+        return proposalNanos + evaluationNanos;
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        final String id = getID() == null ? operator.getID() : getID();
+        out.print(id + ".moves\t" + id + ".acceptance\t" + id + ".proposalTime\t" + id + ".evaluationTime\t");
+        if (MSNC != null)
+            out.print(id + ".MSNCTime\t");
+        if (rebuildEmbedding != null)
+            out.print(id + ".rebuildTime\t");
+        if (measureBytes)
+            out.print(id + ".allocatedBytes\t");
+        out.print(id + ".acceptedPerSecond\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        // the times (in milliseconds) and the allocated bytes are averaged over the moves
+        final double moves = Math.max(nMoves, 1);
+        out.print(nMoves + "\t" + nAccepted / moves + "\t" + proposalNanos / moves / 1e6 + "\t" +
+                  evaluationNanos / moves / 1e6 + "\t");
+        if (MSNC != null)
+            out.print(msncNanos / moves / 1e6 + "\t");
+        if (rebuildEmbedding != null)
+            out.print(rebuildNanos / moves / 1e6 + "\t");
+        if (measureBytes)
+            out.print(allocatedBytes / moves + "\t");
+        final long totalNanos = getTimeInNanos();
+        out.print((totalNanos > 0 ? nAccepted / (totalNanos / 1e9) : 0.0) + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+}
@@ -1,6 +1,7 @@
 package speciesnetwork.operators;
 
 import java.util.*;
+import java.util.function.DoubleSupplier;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
@@ -16,8 +17,11 @@ import beast.base.evolution.tree.Node;
 import beast.base.util.Randomizer;
 import speciesnetwork.EmbeddedTree;
 import speciesnetwork.Embedding;
+import speciesnetwork.EmbeddingArena;
+import speciesnetwork.EmbeddingFeasibility;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
+import speciesnetwork.utils.WorkerPool;
 
 /**
  * @author Huw Ogilvie
@@ -34,29 +38,102 @@ public class RebuildEmbedding extends Operator {
     public final Input<Operator> operatorInput = new Input<>("operator",
             "Tree/Network operator to combine into RebuildEmbedding.");
 
-    // heirs are the gene tree leaf numbers below each gene tree node or species network node
-    private Multimap<Node, Integer> geneNodeHeirs;
-    private Multimap<NetworkNode, Integer> speciesNodeHeirs;
-    private int geneNodeCount;
-    private int traversalNodeCount;
+    public final Input<Boolean> useThreadsInput = new Input<>("useThreads", "Rebuild the embeddings of different " +
+            "loci in parallel, each locus drawing from its own random stream derived from the chain's random number " +
+            "generator, so that the result does not depend on the number of threads (default false).", false);
+    public final Input<Integer> threadsInput = new Input<>("threads",
+            "Number of threads to use if useThreads is true (default is the number of available processors).");
+
+    public final Input<Boolean> localInput = new Input<>("local", "Only re-embed the smallest clade of each gene " +
+            "tree which contains all the gene tree nodes changed by the operator, keeping the embedding of the rest " +
+            "of the gene tree. The operator must not change the species network (default false).", false);
+
+    private boolean useThreads;
+    private int nThreads;
+    private boolean local;
+    // the gene trees which can be changed by the operator, if local is true
+    private List<EmbeddedTree> operatedTrees;
+    // map of gene tree tip names to species names, which is fixed during the analysis
+    private Map<String, String> geneTipSpecies;
+    // cheap check to reject the operation before rebuilding the embedding if a gene tree cannot be embedded at all
+    private EmbeddingFeasibility feasibility;
+
+    // time spent in the proposals, excluding the combined operator, for profiling
+    private long timeInNanos, operatorNanos;
+
+    // working space for rebuilding the embedding of a locus, one per thread, reused across loci and proposals
+    private static final ThreadLocal<LocusRebuilder> rebuilders = ThreadLocal.withInitial(LocusRebuilder::new);
 
     @Override
     public void initAndValidate() {
-        // nLoci = geneTreesInput.get().size();
-        geneNodeHeirs = HashMultimap.create();
-        speciesNodeHeirs = HashMultimap.create();
+        useThreads = useThreadsInput.get();
+        if (threadsInput.get() != null)
+            nThreads = threadsInput.get();
+        else
+            nThreads = WorkerPool.defaultThreadCount();
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive!");
+
+        local = localInput.get();
+        if (local) {
+            final Operator op = operatorInput.get();
+            if (op == null)
+                throw new IllegalArgumentException("An operator is required to rebuild the embedding locally!");
+            final List<StateNode> opStateNodes = op.listStateNodes();
+            if (opStateNodes.contains(speciesNetworkInput.get()))
+                throw new IllegalArgumentException("Cannot rebuild the embedding locally if " + op.getID() +
+                                                   " changes the species network!");
+            operatedTrees = new ArrayList<>();
+            for (EmbeddedTree geneTree: geneTreesInput.get()) {
+                if (opStateNodes.contains(geneTree))
+                    operatedTrees.add(geneTree);
+            }
+        }
     }
 
     @Override
     public double proposal() {
+        final long start = System.nanoTime();
+        operatorNanos = 0;
+        try {
+            return local ? localProposal() : fullProposal();
+        } finally {
+            timeInNanos += System.nanoTime() - start - operatorNanos;
+        }
+    }
+
+    /**
+     * @return the total time spent rebuilding the embeddings (excluding the combined operator), in nanoseconds
+     */
+    public long getTimeInNanos() {
+        return timeInNanos;
+    }
+
+    private double operate() {
+        final long start = System.nanoTime();
+        final double logHR = operatorInput.get().proposal();
+        operatorNanos = System.nanoTime() - start;
+        return logHR;
+    }
+
+    private double fullProposal() {
+
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
+        // the probability sums are out of date after local rebuilds, update them before the operation
+        for (final EmbeddedTree geneTree: geneTrees) {
+            if (Double.isNaN(geneTree.embedding.probabilitySum) &&
+                    !rebuilders.get().score(speciesNetworkInput.get(), geneTree, getGeneTipSpecies()))
+                throw new RuntimeException("Invalid embedding of gene tree " + geneTree.getID() + "!");
+        }
 
         // make the operation if possible
         double operatorLogHR = 0.0;
         if (operatorInput.get() != null) {
-            operatorLogHR = operatorInput.get().proposal();
+            operatorLogHR = operate();
             if (operatorLogHR == Double.NEGATIVE_INFINITY)
                 return Double.NEGATIVE_INFINITY;
+            if (!isFeasible(geneTrees))
+                return Double.NEGATIVE_INFINITY;
         }
 
         // Tell BEAST that *all* gene trees will be edited
@@ -79,6 +156,33 @@ public class RebuildEmbedding extends Operator {
         return operatorLogHR + embeddingLogHR;
     }
 
+    /* re-embed only the clades changed by the operator, the Hastings ratio involves the changed clades only */
+    private double localProposal() {
+        // remember the gene trees as they are before the operation
+        final GeneTreeSnapshot[] snapshots = new GeneTreeSnapshot[operatedTrees.size()];
+        for (int j = 0; j < snapshots.length; j++)
+            snapshots[j] = new GeneTreeSnapshot(operatedTrees.get(j));
+
+        final double operatorLogHR = operate();
+        if (operatorLogHR == Double.NEGATIVE_INFINITY || !isFeasible(operatedTrees))
+            return Double.NEGATIVE_INFINITY;
+
+        final Network speciesNetwork = speciesNetworkInput.get();
+        final LocusRebuilder rebuilder = rebuilders.get();
+        double embeddingLogHR = 0.0;
+        for (int j = 0; j < snapshots.length; j++) {
+            final EmbeddedTree geneTree = operatedTrees.get(j);
+            geneTree.startEditing(this);
+            final double logHR = rebuilder.rebuildChanged(speciesNetwork, geneTree, snapshots[j],
+                                                          getGeneTipSpecies(), Randomizer::nextDouble);
+            if (logHR == Double.NEGATIVE_INFINITY)
+                return Double.NEGATIVE_INFINITY;
+            embeddingLogHR += logHR;
+        }
+
+        return operatorLogHR + embeddingLogHR;
+    }
+
     @Override
     public List<StateNode> listStateNodes() {
         List<StateNode> stateNodes = new ArrayList<>();
@@ -94,140 +198,447 @@ public class RebuildEmbedding extends Operator {
     public boolean rebuildEmbedding() {
         final List<EmbeddedTree> geneTrees = geneTreesInput.get();
         final Network speciesNetwork = speciesNetworkInput.get();
-        traversalNodeCount = speciesNetwork.getInternalNodeCount();
+        final int traversalNodeCount = speciesNetwork.getInternalNodeCount();
+        final Map<String, String> tipSpecies = getGeneTipSpecies();
 
-        for (EmbeddedTree geneTree: geneTrees) {
-            geneNodeCount = geneTree.getNodeCount();
-            getNodeHeirs(speciesNetwork, geneTree);
+        if (!useThreads) {
+            final LocusRebuilder rebuilder = rebuilders.get();
+            for (EmbeddedTree geneTree: geneTrees) {
+                if (!rebuilder.rebuild(speciesNetwork, geneTree, traversalNodeCount, tipSpecies, Randomizer::nextDouble))
+                    return false;
+            }
+            return true;
+        }
 
-            final Embedding newEmbedding = recurseRebuild(geneTree.getRoot(), speciesNetwork.getRoot());
-            if (newEmbedding == null) return false;
+        // the gene trees are independent given the species network, so rebuild them in parallel
+        // the random streams are split off in locus order, thus the result does not depend on the number of threads
+        final int nLoci = geneTrees.size();
+        final SplittableRandom[] streams = WorkerPool.splitStreams(Randomizer.nextLong(), nLoci);
+        final boolean[] isValid = new boolean[nLoci];
+        WorkerPool.run(nThreads, nLoci, j -> isValid[j] = rebuilders.get().rebuild(speciesNetwork, geneTrees.get(j),
+                traversalNodeCount, tipSpecies, streams[j]::nextDouble));
 
-            geneTree.embedding = newEmbedding;
+        for (boolean valid: isValid) {
+            if (!valid) return false;
         }
-
         return true;
     }
 
-    private void getNodeHeirs(final Network speciesNetwork, final EmbeddedTree geneTree) {
-        // map of species network tip names to species network tip nodes
-        final Map<String, NetworkNode> speciesTipMap = new HashMap<>();
-        for (NetworkNode speciesNode: speciesNetwork.getLeafNodes()) {
-            final String speciesName = speciesNode.getLabel();
-            speciesTipMap.put(speciesName, speciesNode);
+    /**
+     * @return false if any of the gene trees cannot be embedded in the current species network
+     */
+    public boolean isFeasible(final List<EmbeddedTree> geneTrees) {
+        if (feasibility == null)
+            feasibility = new EmbeddingFeasibility(speciesNetworkInput.get().taxonSetInput.get());
+        feasibility.update(speciesNetworkInput.get());
+        for (EmbeddedTree geneTree: geneTrees) {
+            if (!feasibility.isFeasible(geneTree))
+                return false;
         }
+        return true;
+    }
+
+    private synchronized Map<String, String> getGeneTipSpecies() {
+        if (geneTipSpecies == null)
+            geneTipSpecies = mapGeneTipSpecies(speciesNetworkInput.get().taxonSetInput.get());
+        return geneTipSpecies;
+    }
 
-        // map of gene tree tip names to species network tip nodes
-        final Map<String, NetworkNode> geneTipMap = new HashMap<>();
-        final TaxonSet taxonSuperSet = speciesNetwork.taxonSetInput.get();
+    /**
+     * @return map of gene tree tip names to species names
+     */
+    public static Map<String, String> mapGeneTipSpecies(final TaxonSet taxonSuperSet) {
+        final Map<String, String> tipSpecies = new HashMap<>();
         for (Taxon species: taxonSuperSet.taxonsetInput.get()) {
-            final String speciesName = species.getID();
-            final NetworkNode speciesNode = speciesTipMap.get(speciesName);
             final TaxonSet speciesTaxonSet = (TaxonSet) species;
-            for (Taxon geneTip: speciesTaxonSet.taxonsetInput.get()) {
-                final String gTipName = geneTip.getID();
-                geneTipMap.put(gTipName, speciesNode);
-            }
-        }
-
-        geneNodeHeirs.clear();
-        speciesNodeHeirs.clear();
-        for (final Node geneLeaf: geneTree.getExternalNodes()) {
-            final int gLeafNr = geneLeaf.getNr();
-            final String gLeafName = geneLeaf.getID();
-            final NetworkNode speciesLeaf = geneTipMap.get(gLeafName);
-            // the heir for each gene leaf node is itself
-            geneNodeHeirs.put(geneLeaf, gLeafNr);
-            // the heirs for each species leaf node is the associated gene leaf nodes
-            speciesNodeHeirs.put(speciesLeaf, gLeafNr);
-        }
-        // then map heirs for all internal nodes, recursively
-        recurseGeneHeirs(geneTree.getRoot());
-        recurseSpeciesHeirs(speciesNetwork.getRoot());
+            for (Taxon geneTip: speciesTaxonSet.taxonsetInput.get())
+                tipSpecies.put(geneTip.getID(), species.getID());
+        }
+        return tipSpecies;
     }
 
-    private void recurseGeneHeirs(final Node gTreeNode) {
-        for (Node child : gTreeNode.getChildren()) {
-            recurseGeneHeirs(child);
-            geneNodeHeirs.putAll(gTreeNode, geneNodeHeirs.get(child));
-        }
+    /**
+     * Rebuild the embedding of a gene tree in the given species network (which may be a copy of the one in the
+     * state), drawing from the given random source. Safe to call from several threads.
+     * @return false if the gene tree cannot be embedded in the species network
+     */
+    public static boolean rebuildEmbedding(final Network speciesNetwork, final EmbeddedTree geneTree,
+                                           final Map<String, String> tipSpecies, final DoubleSupplier random) {
+        return rebuilders.get().rebuild(speciesNetwork, geneTree, speciesNetwork.getInternalNodeCount(),
+                                        tipSpecies, random);
     }
 
-    private void recurseSpeciesHeirs(final NetworkNode sNetNode) {
-        for (NetworkNode child: sNetNode.getChildren()) {
-            recurseSpeciesHeirs(child);
-            speciesNodeHeirs.putAll(sNetNode, speciesNodeHeirs.get(child));
+    /*
+     * The parents, children and heights of the gene tree nodes before an operation.
+     */
+    private static final class GeneTreeSnapshot {
+        private final int[] parents;
+        private final int[] lefts;
+        private final int[] rights;
+        private final double[] heights;
+
+        private GeneTreeSnapshot(final EmbeddedTree geneTree) {
+            final int nodeCount = geneTree.getNodeCount();
+            parents = new int[nodeCount];
+            lefts = new int[nodeCount];
+            rights = new int[nodeCount];
+            heights = new double[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                final Node node = geneTree.getNode(i);
+                parents[i] = node.isRoot() ? -1 : node.getParent().getNr();
+                lefts[i] = node.isLeaf() ? -1 : node.getLeft().getNr();
+                rights[i] = node.isLeaf() ? -1 : node.getRight().getNr();
+                heights[i] = node.getHeight();
+            }
+        }
+
+        private boolean isChanged(final Node node) {
+            final int nodeNr = node.getNr();
+            final int parentNr = node.isRoot() ? -1 : node.getParent().getNr();
+            return parents[nodeNr] != parentNr || heights[nodeNr] != node.getHeight();
+        }
+
+        private boolean isAncestor(final int ancestorNr, int nodeNr) {
+            while (nodeNr >= 0 && nodeNr != ancestorNr)
+                nodeNr = parents[nodeNr];
+            return nodeNr == ancestorNr;
+        }
+
+        private int getRootNr() {
+            int nodeNr = 0;
+            while (parents[nodeNr] >= 0)
+                nodeNr = parents[nodeNr];
+            return nodeNr;
+        }
+
+        // copy of the clade below nodeNr as it was, with the same node numbers
+        private Node copyClade(final EmbeddedTree geneTree, final int nodeNr) {
+            final Node node = new Node();
+            node.setNr(nodeNr);
+            node.setHeight(heights[nodeNr]);
+            if (lefts[nodeNr] < 0) {
+                node.setID(geneTree.getNode(nodeNr).getID());
+            } else {
+                node.addChild(copyClade(geneTree, lefts[nodeNr]));
+                node.addChild(copyClade(geneTree, rights[nodeNr]));
+            }
+            return node;
         }
     }
 
-    // recursive, return value is a possible gene tree embedding, return null if no valid embedding
-    private Embedding recurseRebuild(final Node geneTreeNode, final NetworkNode speciesNetworkNode) {
-        if (geneTreeNode.isLeaf() && speciesNetworkNode.isLeaf()) {
-            // reached the gene tree tip and species tip (height >= 0)
-            return new Embedding(geneNodeCount, traversalNodeCount);
-        }
-        else if (geneTreeNode.getHeight() <= speciesNetworkNode.getHeight()) {
-            // current gene tree node occurs in a descendant branch of current species node
-            final int geneTreeNodeNr = geneTreeNode.getNr();
-            final int traversalNodeNr = speciesNetworkNode.getTraversalNumber();
-            final Collection<Integer> requiredHeirs = geneNodeHeirs.get(geneTreeNode);
-
-            // there are at most two possible embeddings for this gene lineage
-            final Embedding[] altEmbeddings = new Embedding[2];
-            double probSum = 0.0;
-            int i = 0;
-            for (Integer childBranchNr: speciesNetworkNode.childBranchNumbers) {
-                final NetworkNode childSpeciesNode = speciesNetworkNode.getChildByBranch(childBranchNr);
-                if (speciesNodeHeirs.get(childSpeciesNode).containsAll(requiredHeirs)) {
-                    // a valid embedding is possible, move on to find out
-                    altEmbeddings[i] = recurseRebuild(geneTreeNode, childSpeciesNode);
-                    if (altEmbeddings[i] == null) return null;
-
-                    // the lineage passes through current species node and goes to this species child branch (forward in time)
-                    altEmbeddings[i].setDirection(geneTreeNodeNr, traversalNodeNr, childBranchNr);
-
-                    // deal with traversal probabilities
-                    if (childSpeciesNode.isReticulation()) {
-                        double childGamma;
-                        if (childSpeciesNode.gammaBranchNumber.equals(childBranchNr))
-                            childGamma = childSpeciesNode.getGammaProb();
-                        else
-                            childGamma = 1.0 - childSpeciesNode.getGammaProb();
-                        altEmbeddings[i].probability *= childGamma;
-                        altEmbeddings[i].probabilitySum *= childGamma;
-                    }
+    /*
+     * Rebuilds the embedding of one gene tree, holding the working space which is not shared between threads.
+     */
+    private static final class LocusRebuilder {
+        // heirs are the gene tree leaf numbers below each gene tree node or species network node
+        private final Multimap<Node, Integer> geneNodeHeirs = HashMultimap.create();
+        private final Multimap<NetworkNode, Integer> speciesNodeHeirs = HashMultimap.create();
+        private final Map<String, NetworkNode> speciesTipMap = new HashMap<>();
+        // pool of embedding entries
+        private final EmbeddingArena arena = new EmbeddingArena();
+        // source of uniform random numbers for the current locus
+        private DoubleSupplier random;
+        // if not null, follow this embedding instead of sampling a new one
+        private Embedding reference;
+        // probabilities of the partial embedding built by the last call of recurseRebuild
+        private double rebuiltProbability;
+        private double rebuiltProbabilitySum;
 
-                    probSum += altEmbeddings[i].probabilitySum;
-                    i++;
-                }
+        private boolean rebuild(final Network speciesNetwork, final EmbeddedTree geneTree, final int traversalNodeCount,
+                                final Map<String, String> tipSpecies, final DoubleSupplier random) {
+            this.random = random;
+            this.reference = null;
+            if (!rebuildLineages(speciesNetwork, Collections.singletonList(geneTree.getRoot()),
+                                 speciesNetwork.getRoot(), tipSpecies))
+                return false;
+
+            // write the new embedding into the existing matrix (a single allocation if the matrix is shared)
+            final Embedding newEmbedding = geneTree.embedding;
+            newEmbedding.reset(traversalNodeCount);
+            arena.applyTo(newEmbedding, 0);
+            newEmbedding.probability = rebuiltProbability;
+            newEmbedding.probabilitySum = rebuiltProbabilitySum;
+            return true;
+        }
+
+        /* recalculate the probability and probability sum of the current embedding */
+        private boolean score(final Network speciesNetwork, final EmbeddedTree geneTree,
+                              final Map<String, String> tipSpecies) {
+            final Embedding embedding = geneTree.embedding;
+            this.reference = embedding;
+            if (!rebuildLineages(speciesNetwork, Collections.singletonList(geneTree.getRoot()),
+                                 speciesNetwork.getRoot(), tipSpecies))
+                return false;
+
+            this.reference = null;
+            embedding.probability = rebuiltProbability;
+            embedding.probabilitySum = rebuiltProbabilitySum;
+            return true;
+        }
+
+        /* re-embed the smallest clade which contains all the nodes changed since the snapshot was taken
+           the rows of the other gene tree nodes are kept, the probability sum of the embedding is then out of date
+           return the log Hastings ratio, or negative infinity if there is no valid embedding */
+        private double rebuildChanged(final Network speciesNetwork, final EmbeddedTree geneTree,
+                                      final GeneTreeSnapshot snapshot, final Map<String, String> tipSpecies,
+                                      final DoubleSupplier random) {
+            final List<Node> changedNodes = new ArrayList<>();
+            for (Node node: geneTree.getNodesAsArray()) {
+                if (snapshot.isChanged(node))
+                    changedNodes.add(node);
             }
-            if (i == 0 || probSum == 0.0) return null;  // for a valid embedding, should never go here
+            if (changedNodes.isEmpty())
+                return 0.0;
 
-            // propose the embedding proportional to its probability
-            final double u = Randomizer.nextDouble() * probSum;
-            if (u < altEmbeddings[0].probabilitySum) {
-                altEmbeddings[0].probabilitySum = probSum;
-                return altEmbeddings[0];
+            final Embedding embedding = geneTree.embedding;
+            final Node cladeRoot = getCladeRoot(changedNodes, snapshot);
+            // the lineages to re-embed, before and after the operation, and the species node they start from
+            final List<Node> oldLineages = new ArrayList<>();
+            final List<Node> newLineages = new ArrayList<>();
+            final NetworkNode speciesNode;
+            if (cladeRoot == null) {
+                // the root is changed, re-embed the whole gene tree
+                oldLineages.add(snapshot.copyClade(geneTree, snapshot.getRootNr()));
+                newLineages.add(geneTree.getRoot());
+                speciesNode = speciesNetwork.getRoot();
             } else {
-                altEmbeddings[1].probabilitySum = probSum;
-                return altEmbeddings[1];
-            }
-        }
-        else {
-            // current gene tree node occurs above current species node
-            // embed both children of gene tree node in this species network branch
-            Embedding embedding = null;
-            for (Node childTreeNode : geneTreeNode.getChildren()) {
-                 Embedding childEmbedding = recurseRebuild(childTreeNode, speciesNetworkNode);
-                 if (childEmbedding == null) {
-                     return null;
-                 } else if (embedding == null) {
-                     embedding = childEmbedding;
-                 } else {
-                     embedding.mergeWith(childEmbedding);
-                 }
-            }
-            return embedding;
+                final int cladeRootNr = cladeRoot.getNr();
+                oldLineages.add(snapshot.copyClade(geneTree, snapshot.lefts[cladeRootNr]));
+                oldLineages.add(snapshot.copyClade(geneTree, snapshot.rights[cladeRootNr]));
+                newLineages.addAll(cladeRoot.getChildren());
+                speciesNode = getSpeciesNodeBelow(speciesNetwork, cladeRoot, embedding);
+            }
+
+            // probability of the old embedding of the clade, following the rows which are still in the matrix
+            this.reference = embedding;
+            if (!rebuildLineages(speciesNetwork, oldLineages, speciesNode, tipSpecies))
+                throw new RuntimeException("Invalid embedding of gene tree " + geneTree.getID() + "!");
+            final double oldProbability = rebuiltProbability;
+            final double oldProbabilitySum = rebuiltProbabilitySum;
+
+            // then sample a new embedding of the clade
+            this.reference = null;
+            this.random = random;
+            if (!rebuildLineages(speciesNetwork, newLineages, speciesNode, tipSpecies))
+                return Double.NEGATIVE_INFINITY;
+
+            // the changed clade consists of the same nodes before and after the operation
+            for (Node lineage: newLineages) {
+                for (Node node: lineage.getAllChildNodesAndSelf())
+                    embedding.clearRow(node.getNr());
+            }
+            arena.applyTo(embedding, 0);
+            if (cladeRoot == null) {
+                embedding.probability = rebuiltProbability;
+                embedding.probabilitySum = rebuiltProbabilitySum;
+            } else {
+                embedding.probability *= rebuiltProbability / oldProbability;
+                embedding.probabilitySum = Double.NaN;
+            }
+
+            return Math.log(oldProbability) - Math.log(oldProbabilitySum)
+                    - Math.log(rebuiltProbability) + Math.log(rebuiltProbabilitySum);
+        }
+
+        /* the lowest unchanged node which is an ancestor of all the changed nodes, both before and after the operation
+           return null if there is no such node */
+        private Node getCladeRoot(final List<Node> changedNodes, final GeneTreeSnapshot snapshot) {
+            Node cladeRoot = changedNodes.get(0);
+            for (Node node: changedNodes) {
+                while (cladeRoot != null && !isAncestor(cladeRoot, node))
+                    cladeRoot = cladeRoot.getParent();
+            }
+            while (cladeRoot != null && (snapshot.isChanged(cladeRoot) ||
+                                         !isAncestorBefore(cladeRoot, changedNodes, snapshot)))
+                cladeRoot = cladeRoot.getParent();
+            return cladeRoot;
+        }
+
+        private boolean isAncestor(final Node ancestor, Node node) {
+            while (node != null && node != ancestor)
+                node = node.getParent();
+            return node == ancestor;
+        }
+
+        private boolean isAncestorBefore(final Node ancestor, final List<Node> nodes, final GeneTreeSnapshot snapshot) {
+            for (Node node: nodes) {
+                if (!snapshot.isAncestor(ancestor.getNr(), node.getNr()))
+                    return false;
+            }
+            return true;
+        }
+
+        /* follow the embedding from the root down to the species network branch in which geneTreeNode is */
+        private NetworkNode getSpeciesNodeBelow(final Network speciesNetwork, final Node geneTreeNode,
+                                                final Embedding embedding) {
+            final Deque<Node> ancestors = new ArrayDeque<>();
+            for (Node node = geneTreeNode; node != null; node = node.getParent())
+                ancestors.push(node);
+
+            NetworkNode speciesNode = speciesNetwork.getRoot();
+            for (Node node: ancestors) {
+                while (!speciesNode.isLeaf() && node.getHeight() <= speciesNode.getHeight()) {
+                    final int branchNr = embedding.getDirection(node.getNr(), speciesNode.getTraversalNumber());
+                    speciesNode = speciesNode.getChildByBranch(branchNr);
+                }
+            }
+            return speciesNode;
+        }
+
+        /* embed the given gene lineages starting from the species network branch above speciesNode
+           the entries are in the arena and the probabilities in rebuiltProbability and rebuiltProbabilitySum */
+        private boolean rebuildLineages(final Network speciesNetwork, final List<Node> lineages,
+                                        final NetworkNode speciesNode, final Map<String, String> tipSpecies) {
+            getNodeHeirs(speciesNetwork, lineages, tipSpecies);
+
+            arena.clear();
+            double probability = 1.0;
+            double probabilitySum = 1.0;
+            for (Node lineage: lineages) {
+                if (!recurseRebuild(lineage, speciesNode)) return false;
+                probability *= rebuiltProbability;
+                probabilitySum *= rebuiltProbabilitySum;
+            }
+            rebuiltProbability = probability;
+            rebuiltProbabilitySum = probabilitySum;
+            return true;
+        }
+
+        /* the heirs of the species network nodes only include the gene tree leaves below the given lineages */
+        private void getNodeHeirs(final Network speciesNetwork, final List<Node> lineages,
+                                  final Map<String, String> tipSpecies) {
+            // map of species network tip names to species network tip nodes
+            speciesTipMap.clear();
+            for (NetworkNode speciesNode: speciesNetwork.getLeafNodes()) {
+                speciesTipMap.put(speciesNode.getLabel(), speciesNode);
+            }
+
+            geneNodeHeirs.clear();
+            speciesNodeHeirs.clear();
+            for (Node lineage: lineages) {
+                recurseGeneHeirs(lineage, tipSpecies);
+            }
+            recurseSpeciesHeirs(speciesNetwork.getRoot());
+        }
+
+        private void recurseGeneHeirs(final Node gTreeNode, final Map<String, String> tipSpecies) {
+            if (gTreeNode.isLeaf()) {
+                final int gLeafNr = gTreeNode.getNr();
+                final NetworkNode speciesLeaf = speciesTipMap.get(tipSpecies.get(gTreeNode.getID()));
+                // the heir for each gene leaf node is itself
+                geneNodeHeirs.put(gTreeNode, gLeafNr);
+                // the heirs for each species leaf node is the associated gene leaf nodes
+                speciesNodeHeirs.put(speciesLeaf, gLeafNr);
+                return;
+            }
+            for (Node child : gTreeNode.getChildren()) {
+                recurseGeneHeirs(child, tipSpecies);
+                geneNodeHeirs.putAll(gTreeNode, geneNodeHeirs.get(child));
+            }
+        }
+
+        private void recurseSpeciesHeirs(final NetworkNode sNetNode) {
+            for (NetworkNode child: sNetNode.getChildren()) {
+                recurseSpeciesHeirs(child);
+                speciesNodeHeirs.putAll(sNetNode, speciesNodeHeirs.get(child));
+            }
+        }
+
+        /* recursive, build a possible gene tree embedding as the entries from the arena size at entry to the arena top,
+           the probabilities of which are in rebuiltProbability and rebuiltProbabilitySum
+           return false if no valid embedding */
+        private boolean recurseRebuild(final Node geneTreeNode, final NetworkNode speciesNetworkNode) {
+            if (geneTreeNode.isLeaf() && speciesNetworkNode.isLeaf()) {
+                // reached the gene tree tip and species tip (height >= 0)
+                rebuiltProbability = 1.0;
+                rebuiltProbabilitySum = 1.0;
+                return true;
+            }
+            else if (geneTreeNode.getHeight() <= speciesNetworkNode.getHeight()) {
+                // current gene tree node occurs in a descendant branch of current species node
+                final int geneTreeNodeNr = geneTreeNode.getNr();
+                final int traversalNodeNr = speciesNetworkNode.getTraversalNumber();
+                final Collection<Integer> requiredHeirs = geneNodeHeirs.get(geneTreeNode);
+
+                // there are at most two possible embeddings for this gene lineage, stored one after another in the arena
+                int start0 = -1, start1 = -1;
+                int branch0 = -1, branch1 = -1;
+                double prob0 = 0.0, prob1 = 0.0;
+                double probSum0 = 0.0, probSum1 = 0.0;
+                int i = 0;
+                for (Integer childBranchNr: speciesNetworkNode.childBranchNumbers) {
+                    final NetworkNode childSpeciesNode = speciesNetworkNode.getChildByBranch(childBranchNr);
+                    if (speciesNodeHeirs.get(childSpeciesNode).containsAll(requiredHeirs)) {
+                        // a valid embedding is possible, move on to find out
+                        final int start = arena.size();
+                        if (!recurseRebuild(geneTreeNode, childSpeciesNode)) return false;
+
+                        // the lineage passes through current species node and goes to this species child branch (forward in time)
+                        arena.add(geneTreeNodeNr, traversalNodeNr, childBranchNr);
+
+                        // deal with traversal probabilities
+                        double childGamma = 1.0;
+                        if (childSpeciesNode.isReticulation()) {
+                            if (childSpeciesNode.gammaBranchNumber.equals(childBranchNr))
+                                childGamma = childSpeciesNode.getGammaProb();
+                            else
+                                childGamma = 1.0 - childSpeciesNode.getGammaProb();
+                        }
+
+                        if (i == 0) {
+                            start0 = start;
+                            branch0 = childBranchNr;
+                            prob0 = rebuiltProbability * childGamma;
+                            probSum0 = rebuiltProbabilitySum * childGamma;
+                        } else {
+                            start1 = start;
+                            branch1 = childBranchNr;
+                            prob1 = rebuiltProbability * childGamma;
+                            probSum1 = rebuiltProbabilitySum * childGamma;
+                        }
+                        i++;
+                    }
+                }
+                final double probSum = probSum0 + probSum1;
+                if (i == 0 || probSum == 0.0) return false;  // for a valid embedding, should never go here
+
+                final boolean keepFirst;
+                if (reference != null) {
+                    // follow the reference embedding
+                    final int direction = reference.getDirection(geneTreeNodeNr, traversalNodeNr);
+                    if (direction != branch0 && (i < 2 || direction != branch1)) return false;
+                    keepFirst = direction == branch0;
+                } else {
+                    // propose the embedding proportional to its probability
+                    keepFirst = random.getAsDouble() * probSum < probSum0;
+                }
+                if (keepFirst) {
+                    // drop the second alternative (if any) on top of the first
+                    if (i == 2) arena.truncate(start1);
+                    rebuiltProbability = prob0;
+                } else {
+                    // drop the first alternative by moving the second one down
+                    arena.moveDown(start1, start0);
+                    rebuiltProbability = prob1;
+                }
+                rebuiltProbabilitySum = probSum;
+                return true;
+            }
+            else {
+                // current gene tree node occurs above current species node
+                // embed both children of gene tree node in this species network branch
+                // the embeddings of the children are adjacent in the arena, thus merged already
+                double probability = 1.0;
+                double probabilitySum = 1.0;
+                for (Node childTreeNode : geneTreeNode.getChildren()) {
+                    if (!recurseRebuild(childTreeNode, speciesNetworkNode)) return false;
+                    probability *= rebuiltProbability;
+                    probabilitySum *= rebuiltProbabilitySum;
+                }
+                rebuiltProbability = probability;
+                rebuiltProbabilitySum = probabilitySum;
+                return true;
+            }
         }
     }
 }
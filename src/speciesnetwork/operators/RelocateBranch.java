@@ -1,13 +1,11 @@
 package speciesnetwork.operators;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.Operator;
 import beast.base.util.Randomizer;
+import speciesnetwork.BranchIntervals;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
 import speciesnetwork.SanityChecks;
@@ -68,6 +66,21 @@ public class RelocateBranch extends Operator {
             // upper and lower bounds for the backward move
             final double bounds = pNP.getHeight() - pC.getHeight();
 
+            // the candidate branches to attach to are those below pP if pP is a reticulation node (or all branches),
+            // except the two parent branches of pN, which are below pP unless the branch between them has zero
+            // length; they are picked before pN is detached, which does not change the child node of any branch
+            final BranchIntervals intervals = speciesNetwork.getBranchIntervals();
+            final double highest = pP.isSpeciation() ? Double.POSITIVE_INFINITY : pP.getHeight();
+            final boolean pNBelow = pN.getHeight() < highest;
+            final int nCandidates = intervals.countBelow(highest) - (pNBelow ? 2 : 0);
+            if (nCandidates <= 0)
+                return Double.NEGATIVE_INFINITY;
+
+            // pick a candidate branch randomly
+            rIndex = Randomizer.nextInt(nCandidates);
+            final Integer attachBranchNr = pNBelow ? intervals.getBelow(highest, rIndex, pickedBranchNr, pNpNPBranchNr)
+                                                   : intervals.getBelow(highest, rIndex);
+
             // join pC and pNP with a single branch
             pNP.childBranchNumbers.remove(pNpNPBranchNr);
             pNP.childBranchNumbers.add(pNpCBranchNr);
@@ -75,21 +88,6 @@ public class RelocateBranch extends Operator {
             pNP.updateRelationships();
             pC.updateRelationships();
 
-            // look for all the candidate branches to attach to
-            List<Integer> candidateBrNrs = new ArrayList<>();
-            for (NetworkNode node : speciesNetwork.getAllNodesExceptOrigin()) {
-                if (node != pN && (pP.isSpeciation() || node.getHeight() < pP.getHeight())) {
-                    candidateBrNrs.add(node.gammaBranchNumber);
-                    if (node.isReticulation())
-                        candidateBrNrs.add(node.gammaBranchNumber + 1);
-                }
-            }
-            if (candidateBrNrs.size() == 0)
-                return Double.NEGATIVE_INFINITY;
-
-            // pick a candidate branch randomly
-            rIndex = Randomizer.nextInt(candidateBrNrs.size());
-            final Integer attachBranchNr = candidateBrNrs.get(rIndex);
             final int aCNodeNr = speciesNetwork.getNodeNumber(attachBranchNr);
             final NetworkNode aC = speciesNetwork.getNode(aCNodeNr);      // aC: child at attaching branch
             final NetworkNode aP = aC.getParentByBranch(attachBranchNr);  // aP: parent at attaching branch
@@ -171,6 +169,24 @@ public class RelocateBranch extends Operator {
             // upper and lower bounds for the backward move
             final double bounds = pP.getHeight() - pNC.getHeight();
 
+            // the candidate branches to attach to are those above pC if pC is a speciation node (or all branches),
+            // except the picked branch and the parent branch of pN, which are above pC; they are picked before pN is
+            // detached, which moves the top of branch pNpNCBranchNr from pN to pP, still above pC (if the branch
+            // between pN and pC has zero length, the picked branch and branch pNpNCBranchNr are not above pC before
+            // the move, and the latter takes the place of the parent branch of pN if that is above pC)
+            final BranchIntervals intervals = speciesNetwork.getBranchIntervals();
+            final double lowest = pC.isReticulation() ? Double.NEGATIVE_INFINITY : pC.getHeight();
+            final boolean pNAbove = pN.getHeight() > lowest;
+            final int nCandidates = intervals.countAbove(lowest) - (pNAbove ? 2 : 0);
+            if (nCandidates <= 0)
+                return Double.NEGATIVE_INFINITY;
+
+            // pick a candidate branch randomly
+            rIndex = Randomizer.nextInt(nCandidates);
+            final int aboveBranchNr = pNAbove ? intervals.getAbove(lowest, rIndex, pickedBranchNr, pNpPBranchNr)
+                                              : intervals.getAbove(lowest, rIndex);
+            final Integer attachBranchNr = !pNAbove && aboveBranchNr == pNpPBranchNr ? pNpNCBranchNr : aboveBranchNr;
+
             // join pP and pNC with a single branch
             pP.childBranchNumbers.remove(pNpPBranchNr);
             pP.childBranchNumbers.add(pNpNCBranchNr);
@@ -178,22 +194,6 @@ public class RelocateBranch extends Operator {
             pP.updateRelationships();
             pNC.updateRelationships();
 
-            // look for all the candidate branches to attach to
-            List<Integer> candidateBrNrs = new ArrayList<>();
-            for (NetworkNode node : speciesNetwork.getInternalNodesWithOrigin()) {
-                if (pC.isReticulation() || node.getHeight() > pC.getHeight()) {
-                    for (Integer childBrNr : node.childBranchNumbers) {
-                        if (!childBrNr.equals(pickedBranchNr) && !childBrNr.equals(pNpPBranchNr))
-                            candidateBrNrs.add(childBrNr);
-                    }
-                }
-            }
-            if (candidateBrNrs.size() == 0)
-                return Double.NEGATIVE_INFINITY;
-
-            // pick a candidate branch randomly
-            rIndex = Randomizer.nextInt(candidateBrNrs.size());
-            final Integer attachBranchNr = candidateBrNrs.get(rIndex);
             final int aCNodeNr = speciesNetwork.getNodeNumber(attachBranchNr);
             final NetworkNode aC = speciesNetwork.getNode(aCNodeNr);      // aC: child at attaching branch
             final NetworkNode aP = aC.getParentByBranch(attachBranchNr);  // aP: parent at attaching branch
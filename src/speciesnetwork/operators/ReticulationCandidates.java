@@ -0,0 +1,86 @@
+package speciesnetwork.operators;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import speciesnetwork.Network;
+import speciesnetwork.NetworkNode;
+
+/*
+ * The reticulation branches which can be deleted (or flipped) in the species network.
+ * The candidates are kept for the last two versions of the network (identified by the edit stamp), which are usually
+ * the current and the proposed network, so they are only searched again after the network is changed by another move.
+ * Not thread-safe.
+ */
+final class ReticulationCandidates {
+    private final boolean flip;
+
+    private final long[] stamps = {Long.MIN_VALUE, Long.MIN_VALUE};
+    @SuppressWarnings("unchecked")
+    private final List<Integer>[] branchNrs = new List[]{new ArrayList<>(), new ArrayList<>()};
+    private int last = 0;  // index of the most recently searched version
+
+    private ReticulationCandidates(boolean flip) {
+        this.flip = flip;
+    }
+
+    /* branches whose parent is not a reticulation node */
+    static ReticulationCandidates deletable() {
+        return new ReticulationCandidates(false);
+    }
+
+    /* deletable branches which are not in a bubble, and whose direction can be flipped given the node heights */
+    static ReticulationCandidates flippable() {
+        return new ReticulationCandidates(true);
+    }
+
+    /**
+     * @return the candidate branch numbers in the network as it is now, which must not be modified
+     */
+    List<Integer> get(Network speciesNetwork) {
+        final long stamp = speciesNetwork.getEditStamp();
+        if (stamps[last] == stamp)
+            return branchNrs[last];
+        if (stamps[1 - last] == stamp) {
+            last = 1 - last;
+            return branchNrs[last];
+        }
+
+        // replace the older version
+        last = 1 - last;
+        stamps[last] = stamp;
+        final List<Integer> candidates = branchNrs[last];
+        candidates.clear();
+        for (NetworkNode hybridNode: speciesNetwork.getReticulationNodes()) {
+            if (isCandidate(hybridNode, hybridNode.gammaBranchNumber))
+                candidates.add(hybridNode.gammaBranchNumber);
+            if (isCandidate(hybridNode, hybridNode.gammaBranchNumber + 1))
+                candidates.add(hybridNode.gammaBranchNumber + 1);
+        }
+        return candidates;
+    }
+
+    private boolean isCandidate(NetworkNode hybridNode, Integer hybridBranchNr) {
+        final NetworkNode parentNode = hybridNode.getParentByBranch(hybridBranchNr);
+        if (parentNode.isReticulation())  // a branch connecting two reticulation nodes
+            return false;
+        if (!flip)
+            return true;
+
+        final NetworkNode pNChildNode;
+        if (parentNode.childBranchNumbers.get(0).equals(hybridBranchNr))
+            pNChildNode = parentNode.getChildByBranch(parentNode.childBranchNumbers.get(1));
+        else
+            pNChildNode = parentNode.getChildByBranch(parentNode.childBranchNumbers.get(0));
+        final NetworkNode hNChildNode = hybridNode.getChildByBranch(hybridNode.childBranchNumbers.get(0));
+        final NetworkNode hNParentNode;
+        if (hybridNode.gammaBranchNumber.equals(hybridBranchNr))
+            hNParentNode = hybridNode.getParentByBranch(hybridNode.gammaBranchNumber + 1);
+        else
+            hNParentNode = hybridNode.getParentByBranch(hybridNode.gammaBranchNumber);
+
+        if (parentNode == hNParentNode && hybridNode == pNChildNode)  // a bubble
+            return false;
+        return hNParentNode.getHeight() > Math.max(pNChildNode.getHeight(), hNChildNode.getHeight());
+    }
+}
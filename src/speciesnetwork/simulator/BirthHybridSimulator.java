@@ -3,6 +3,7 @@ package speciesnetwork.simulator;
 import java.io.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.SplittableRandom;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -13,6 +14,7 @@ import beast.base.evolution.alignment.TaxonSet;
 import beast.base.util.Randomizer;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
+import speciesnetwork.utils.WorkerPool;
 
 /**
  * @author Chi Zhang
@@ -31,12 +33,54 @@ public class BirthHybridSimulator extends Runnable {
             new Input<>("birthRate", "Speciation rate, lambda.", Validate.REQUIRED);
     public final Input<RealParameter> hybridRateInput =
             new Input<>("hybridRate", "Hybridization rate, nu.", Validate.REQUIRED);
-    // public final Input<Integer> nHybridizationInput = new Input<>("nHybrid", "Number of Hybridization.");
+    public final Input<Integer> nHybridizationInput = new Input<>("nHybrid", "Number of hybridizations to condition " +
+            "on, together with the number of species in the taxon set (default no such condition).");
+    public final Input<Integer> maxLineagesInput = new Input<>("maxLineages", "Maximum number of lineages at any " +
+            "time when conditioning on the number of species only, which must exclude a negligible probability of " +
+            "the paths exceeding it (default is 2 * number of species + 10, doubled until the paths exceeding it " +
+            "are negligible).");
 
     public final Input<String> outputFileNameInput =
             new Input<>("outputFileName", "If provided, write to this file rather than to standard out.");
     public final Input<Integer> iterationsInput =
             new Input<>("iterations", "Number of iterations to simulate (default is 1).");
+    public final Input<Boolean> useThreadsInput = new Input<>("useThreads", "Simulate the iterations in parallel, " +
+            "each drawing from its own random stream derived from the seed, so that the output does not depend on the " +
+            "number of threads (default false).", false);
+    public final Input<Integer> threadsInput =
+            new Input<>("threads", "Number of threads to use if useThreads is true (default is the number of available processors).");
+    public final Input<Long> seedInput = new Input<>("seed", "Seed of the random streams if useThreads is true " +
+            "(default is drawn from the chain's random number generator).");
+
+    // the number of networks with a bubble rejected before giving up
+    private static final int MAX_BUBBLE_REJECTIONS = 10000;
+    // the log of the probability of the number of species gained by doubling the cap on the number of lineages,
+    // below which the paths exceeding the cap are negligible
+    private static final double LINEAGE_CAP_TOLERANCE = 1e-7;
+    private static final int MAX_LINEAGE_CAP = 10000;
+
+    /* the chain of the number of lineages with a cap, for the rates, times and numbers of lineages it was found for */
+    private static final class LineageCountChain {
+        final double lambda, nu, startTime;
+        final int k0, numTips;
+        final ConditionedCountChain chain;
+
+        LineageCountChain(double lambda, double nu, double startTime, int k0, int numTips, ConditionedCountChain chain) {
+            this.lambda = lambda;
+            this.nu = nu;
+            this.startTime = startTime;
+            this.k0 = k0;
+            this.numTips = numTips;
+            this.chain = chain;
+        }
+
+        boolean isFor(double lambda, double nu, double startTime, int k0, int numTips) {
+            return this.lambda == lambda && this.nu == nu && this.startTime == startTime && this.k0 == k0 &&
+                   this.numTips == numTips;
+        }
+    }
+    // the chain last used, kept as the cap is found by solving the chain several times (shared by the worker threads)
+    private volatile LineageCountChain lineageCountChain;
 
     @Override
     public void initAndValidate() {
@@ -64,15 +108,41 @@ public class BirthHybridSimulator extends Runnable {
             nrOfIterations = 1;
         else
             nrOfIterations = iterationsInput.get();
-        for (int iteration = 1; iteration <= nrOfIterations; iteration++) {
-            out.println("tree SIM_" + iteration + " =" + simulate().toString() + ";");
+        if (useThreadsInput.get()) {
+            // simulate each iteration into a network of its own, and print them in order
+            final SplittableRandom[] streams = WorkerPool.splitStreams(getSeed(seedInput.get()), nrOfIterations);
+            WorkerPool.runOrdered(getThreadCount(threadsInput.get()), nrOfIterations,
+                    i -> "tree SIM_" + (i+1) + " =" + simulate(new Network(), RandomSource.of(streams[i])).toString() + ";",
+                    out::println);
+        } else {
+            for (int iteration = 1; iteration <= nrOfIterations; iteration++) {
+                out.println("tree SIM_" + iteration + " =" + simulate().toString() + ";");
+            }
         }
         out.println("End;");
+
+        if (out != System.out)
+            out.close();
+    }
+
+    static long getSeed(Long seed) {
+        return seed == null ? Randomizer.nextLong() : seed;
+    }
+
+    static int getThreadCount(Integer threads) {
+        final int nThreads = threads == null ? WorkerPool.defaultThreadCount() : threads;
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive!");
+        return nThreads;
     }
 
     protected Network simulate() {
-        Network speciesNetwork = speciesNetworkInput.get();
-        TaxonSet speciesTaxa = speciesNetwork.taxonSetInput.get();
+        return simulate(speciesNetworkInput.get(), RandomSource.RANDOMIZER);
+    }
+
+    /* simulate into the given network, which can be a new one for each replicate, drawing from the given source */
+    Network simulate(Network speciesNetwork, RandomSource random) {
+        TaxonSet speciesTaxa = speciesNetworkInput.get().taxonSetInput.get();
         List<String> speciesNames = new ArrayList<>();
 
         final int numTips;  // number of extant species (-1 for no such condition)
@@ -82,37 +152,42 @@ public class BirthHybridSimulator extends Runnable {
         } else {
             numTips = -1;
         }
-        final int numHybrid = -1; // number of hybridization (-1 for no such condition)
+        // number of hybridization (-1 for no such condition)
+        final int numHybrid = nHybridizationInput.get() == null ? -1 : nHybridizationInput.get();
+        if (numHybrid >= 0 && numTips < 0)
+            throw new IllegalArgumentException("The number of hybridizations can only be conditioned on together " +
+                    "with the number of species (taxon set)!");
 
         if (numTips < 0) {
-            simulate(speciesNetwork);
+            simulateForward(speciesNetwork, random);
         }
         else if (numHybrid < 0) {  // condition on numTips
-            do {  // simulate until we get the desired condition (caution!)
-               simulate(speciesNetwork);
-            } while (speciesNetwork.getLeafNodeCount() != numTips);
-            // set the tip labels to match the taxa labels
-            for (int i = 0; i < numTips; i++) {
-                NetworkNode leaf = speciesNetwork.getNode(i);
-                leaf.setLabel(speciesNames.get(i));
-            }
+            simulateConditioned(speciesNetwork, numTips, -1, random);
         }
-        /* else {  // condition on numTips and numHybrid, and no bubble in this case
-            do {  // simulate until we get the desired condition (caution!)
-                simulate(speciesNetwork);
-            } while (speciesNetwork.getLeafNodeCount() != numTips ||
-                    speciesNetwork.getReticulationNodeCount() != numHybrid || speciesNetwork.hasBubble());
+        else {  // condition on numTips and numHybrid, and no bubble in this case
+            if (numTips == 1 && numHybrid == 1)
+                throw new IllegalArgumentException("Every network with one species and one hybridization has a " +
+                        "bubble!");
+            int attempts = 0;
+            do {  // bubbles are rare, thus rejected
+                if (++attempts > MAX_BUBBLE_REJECTIONS)
+                    throw new RuntimeException("Cannot simulate a species network with " + numTips + " species and " +
+                            numHybrid + " hybridizations without a bubble in " + MAX_BUBBLE_REJECTIONS + " attempts!");
+                simulateConditioned(speciesNetwork, numTips, numHybrid, random);
+            } while (speciesNetwork.hasBubble());
+        }
+        if (numTips >= 0) {
             // set the tip labels to match the taxa labels
             for (int i = 0; i < numTips; i++) {
                 NetworkNode leaf = speciesNetwork.getNode(i);
                 leaf.setLabel(speciesNames.get(i));
             }
-        } */
+        }
 
         return speciesNetwork;
     }
 
-    private void simulate(Network speciesNetwork) {
+    private void simulateForward(Network speciesNetwork, RandomSource random) {
         final double lambda = birthRateInput.get().getValue();
         final double nu = hybridRateInput.get().getValue();
 
@@ -123,13 +198,7 @@ public class BirthHybridSimulator extends Runnable {
             timeOrigin = tmrcaInput.get().getValue() + 1.0 / lambda;
 
         // set the initial states
-        speciesNetwork.makeDummy();
-        final NetworkNode origin = speciesNetwork.getOrigin();
-        origin.setHeight(timeOrigin);
-        final NetworkNode root = new NetworkNode(speciesNetwork);
-        speciesNetwork.addSpeciationNode(root);
-        origin.getChildren().add(root);
-        root.getParents().add(origin);
+        final NetworkNode root = initNetwork(speciesNetwork, timeOrigin);
 
         final List<NetworkNode> networkNodeList = new ArrayList<>();
         networkNodeList.add(root);
@@ -146,59 +215,210 @@ public class BirthHybridSimulator extends Runnable {
                 waitingTime = 1.0 / lambda;
                 atRoot = false;
             } else {
-                waitingTime = Randomizer.nextExponential(totalRate);
+                waitingTime = random.nextExponential(totalRate);
             }
             currentTime -= waitingTime;
 
             if (currentTime > 0.0) {
-                int rnd;
-                if (Randomizer.nextDouble() <= k*lambda/totalRate) {
-                    // speciation event, pick a random branch to split
-                    rnd = Randomizer.nextInt(k);
-                    final NetworkNode pNode = networkNodeList.get(rnd);
-                    networkNodeList.remove(pNode);
-                    pNode.setHeight(currentTime);
-
-                    final NetworkNode cNode1 = new NetworkNode(speciesNetwork);
-                    final NetworkNode cNode2 = new NetworkNode(speciesNetwork);
-                    speciesNetwork.addSpeciationNode(cNode1);
-                    speciesNetwork.addSpeciationNode(cNode2);
-                    networkNodeList.add(cNode1);
-                    networkNodeList.add(cNode2);
-
-                    pNode.getChildren().add(cNode1);
-                    pNode.getChildren().add(cNode2);
-                    cNode1.getParents().add(pNode);
-                    cNode2.getParents().add(pNode);
-                } else {
-                    // hybridization event, pick two branches to join
-                    rnd = Randomizer.nextInt(k);
-                    final NetworkNode pNode1 = networkNodeList.get(rnd);
-                    networkNodeList.remove(pNode1);
-                    rnd = Randomizer.nextInt(k-1);
-                    final NetworkNode pNode2 = networkNodeList.get(rnd);
-                    networkNodeList.remove(pNode2);
-                    speciesNetwork.deleteNode(pNode1);
-                    speciesNetwork.deleteNode(pNode2);
-                    speciesNetwork.addReticulationNode(pNode1);  // use pNode1 as the hybrid node
-                    pNode1.setHeight(currentTime);
-                    pNode1.setGammaProb(Randomizer.nextDouble());
-
-                    final NetworkNode cNode = new NetworkNode(speciesNetwork);
-                    speciesNetwork.addSpeciationNode(cNode);
-                    networkNodeList.add(cNode);
-
-                    pNode1.getParents().addAll(pNode2.getParents());
-                    for (NetworkNode parent: pNode2.getParents()) {
-                        parent.getChildren().remove(pNode2);
-                        parent.getChildren().add(pNode1);
-                    }
-                    pNode1.getChildren().add(cNode);
-                    cNode.getParents().add(pNode1);
+                if (random.nextDouble() <= k*lambda/totalRate)
+                    speciate(speciesNetwork, networkNodeList, currentTime, random);
+                else
+                    hybridize(speciesNetwork, networkNodeList, currentTime, random);
+            }
+        }
+
+        finish(speciesNetwork, networkNodeList);
+    }
+
+    /*
+     * Simulate conditioned on the number of extant species, and optionally on the number of hybridizations, without
+     * rejection. The number of lineages through time is a Markov chain (k -> k+1 at rate k*lambda, k -> k-1 at rate
+     * k(k-1)/2*nu), whose path is sampled conditioned on the end state. Given the path, the branches involved in each
+     * event are uniform as in the unconditioned process. With a number of hybridizations, the state is the numbers of
+     * speciations and hybridizations so far, which is finite; otherwise the number of lineages is capped, and the path
+     * is then conditioned on not exceeding it as well. As hybridizations can bring the number of lineages back down
+     * from above the cap, the cap is doubled until the probability of the number of species no longer changes, so that
+     * the paths excluded by it are negligible.
+     */
+    private void simulateConditioned(Network speciesNetwork, int numTips, int numHybrid, RandomSource random) {
+        final double lambda = birthRateInput.get().getValue();
+        final double nu = hybridRateInput.get().getValue();
+
+        final double timeOrigin;
+        if (originInput.get() != null)
+            timeOrigin = originInput.get().getValue();
+        else
+            timeOrigin = tmrcaInput.get().getValue() + 1.0 / lambda;
+
+        final NetworkNode root = initNetwork(speciesNetwork, timeOrigin);
+        final List<NetworkNode> networkNodeList = new ArrayList<>();
+        networkNodeList.add(root);
+
+        final double startTime;
+        if (originInput.get() == null) {  // the root speciation at tmrca
+            startTime = timeOrigin - 1.0 / lambda;
+            speciate(speciesNetwork, networkNodeList, startTime, random);
+        } else {
+            startTime = timeOrigin;
+        }
+        final int k0 = networkNodeList.size();
+
+        final ConditionedCountChain.Path path;
+        if (numHybrid < 0) {
+            // state k-1 for k lineages
+            path = getLineageCountChain(lambda, nu, startTime, k0, numTips)
+                    .sample(k0 - 1, numTips - 1, startTime, random);
+        } else {
+            final int numSpeciation = numTips - k0 + numHybrid;
+            if (numSpeciation < 0)
+                throw new IllegalArgumentException("Cannot have " + numTips + " species with " + numHybrid +
+                        " hybridizations!");
+            // state s*(numHybrid+1)+j after s speciations and j hybridizations, with k0+s-j lineages
+            final int nStates = (numSpeciation + 1) * (numHybrid + 1);
+            final double[] exitRates = new double[nStates];
+            final int[] speciationTo = new int[nStates], hybridizationTo = new int[nStates];
+            final double[] speciationRates = new double[nStates], hybridizationRates = new double[nStates];
+            for (int s = 0; s <= numSpeciation; s++) {
+                for (int j = 0; j <= numHybrid; j++) {
+                    final int i = s * (numHybrid + 1) + j;
+                    final int k = Math.max(k0 + s - j, 0);  // no lineages in unreachable states
+                    speciationRates[i] = k * lambda;
+                    hybridizationRates[i] = 0.5 * k * (k-1) * nu;
+                    exitRates[i] = speciationRates[i] + hybridizationRates[i];
+                    speciationTo[i] = s < numSpeciation ? i + numHybrid + 1 : -1;
+                    hybridizationTo[i] = j < numHybrid && k > 1 ? i + 1 : -1;
                 }
             }
+            path = new ConditionedCountChain(exitRates, speciationTo, speciationRates, hybridizationTo,
+                                             hybridizationRates).sample(0, nStates - 1, startTime, random);
+        }
+        if (path == null)
+            throw new RuntimeException("Cannot simulate a species network with " + numTips + " species" +
+                    (numHybrid < 0 ? "" : " and " + numHybrid + " hybridizations") + " in the given time!");
+
+        for (int i = 0; i < path.heights.length; i++) {
+            if (path.isHybridization[i])
+                hybridize(speciesNetwork, networkNodeList, path.heights[i], random);
+            else
+                speciate(speciesNetwork, networkNodeList, path.heights[i], random);
+        }
+
+        finish(speciesNetwork, networkNodeList);
+    }
+
+    /*
+     * the chain of the number of lineages from k0 lineages at startTime to numTips lineages at present, with a cap
+     * excluding a negligible probability of the paths exceeding it
+     */
+    private ConditionedCountChain getLineageCountChain(double lambda, double nu, double startTime, int k0, int numTips) {
+        final LineageCountChain last = lineageCountChain;
+        if (last != null && last.isFor(lambda, nu, startTime, k0, numTips))
+            return last.chain;
+
+        int maxLineages = maxLineagesInput.get() == null ? 2 * numTips + 10 : maxLineagesInput.get();
+        if (maxLineages < Math.max(numTips, k0))
+            throw new IllegalArgumentException("maxLineages is smaller than the number of species!");
+        ConditionedCountChain chain = newLineageCountChain(lambda, nu, maxLineages);
+        double logProb = chain.logProbability(k0 - 1, numTips - 1, startTime);
+        while (true) {
+            // the paths exceeding the cap, but not twice the cap, add to the probability of the number of species
+            final ConditionedCountChain larger = newLineageCountChain(lambda, nu, 2 * maxLineages);
+            final double largerLogProb = larger.logProbability(k0 - 1, numTips - 1, startTime);
+            if (!(largerLogProb - logProb > LINEAGE_CAP_TOLERANCE))
+                break;
+            if (maxLineagesInput.get() != null)
+                throw new IllegalArgumentException("maxLineages = " + maxLineages + " excludes the paths exceeding " +
+                        "it, which have a non-negligible probability! Increase it or leave it to the default.");
+            if (2 * maxLineages > MAX_LINEAGE_CAP)
+                throw new RuntimeException("Cannot bound the number of lineages below " + MAX_LINEAGE_CAP + "!");
+            maxLineages *= 2;
+            chain = larger;
+            logProb = largerLogProb;
+        }
+
+        lineageCountChain = new LineageCountChain(lambda, nu, startTime, k0, numTips, chain);
+        return chain;
+    }
+
+    // the number of lineages k with state k-1, and no speciation from maxLineages lineages
+    private static ConditionedCountChain newLineageCountChain(double lambda, double nu, int maxLineages) {
+        final double[] exitRates = new double[maxLineages];
+        final int[] speciationTo = new int[maxLineages], hybridizationTo = new int[maxLineages];
+        final double[] speciationRates = new double[maxLineages], hybridizationRates = new double[maxLineages];
+        for (int k = 1; k <= maxLineages; k++) {
+            speciationRates[k-1] = k * lambda;
+            hybridizationRates[k-1] = 0.5 * k * (k-1) * nu;
+            exitRates[k-1] = speciationRates[k-1] + hybridizationRates[k-1];
+            speciationTo[k-1] = k < maxLineages ? k : -1;
+            hybridizationTo[k-1] = k > 1 ? k-2 : -1;
+        }
+        return new ConditionedCountChain(exitRates, speciationTo, speciationRates, hybridizationTo, hybridizationRates);
+    }
+
+    // set the initial states, and return the root
+    private NetworkNode initNetwork(Network speciesNetwork, double timeOrigin) {
+        speciesNetwork.makeDummy();
+        final NetworkNode origin = speciesNetwork.getOrigin();
+        origin.setHeight(timeOrigin);
+        final NetworkNode root = new NetworkNode(speciesNetwork);
+        speciesNetwork.addSpeciationNode(root);
+        origin.getChildren().add(root);
+        root.getParents().add(origin);
+        return root;
+    }
+
+    // speciation event, pick a random branch to split
+    private void speciate(Network speciesNetwork, List<NetworkNode> networkNodeList, double currentTime,
+                          RandomSource random) {
+        final int k = networkNodeList.size();
+        final int rnd = random.nextInt(k);
+        final NetworkNode pNode = networkNodeList.get(rnd);
+        networkNodeList.remove(pNode);
+        pNode.setHeight(currentTime);
+
+        final NetworkNode cNode1 = new NetworkNode(speciesNetwork);
+        final NetworkNode cNode2 = new NetworkNode(speciesNetwork);
+        speciesNetwork.addSpeciationNode(cNode1);
+        speciesNetwork.addSpeciationNode(cNode2);
+        networkNodeList.add(cNode1);
+        networkNodeList.add(cNode2);
+
+        pNode.getChildren().add(cNode1);
+        pNode.getChildren().add(cNode2);
+        cNode1.getParents().add(pNode);
+        cNode2.getParents().add(pNode);
+    }
+
+    // hybridization event, pick two branches to join
+    private void hybridize(Network speciesNetwork, List<NetworkNode> networkNodeList, double currentTime,
+                           RandomSource random) {
+        final int k = networkNodeList.size();
+        int rnd = random.nextInt(k);
+        final NetworkNode pNode1 = networkNodeList.get(rnd);
+        networkNodeList.remove(pNode1);
+        rnd = random.nextInt(k-1);
+        final NetworkNode pNode2 = networkNodeList.get(rnd);
+        networkNodeList.remove(pNode2);
+        speciesNetwork.deleteNode(pNode1);
+        speciesNetwork.deleteNode(pNode2);
+        speciesNetwork.addReticulationNode(pNode1);  // use pNode1 as the hybrid node
+        pNode1.setHeight(currentTime);
+        pNode1.setGammaProb(random.nextDouble());
+
+        final NetworkNode cNode = new NetworkNode(speciesNetwork);
+        speciesNetwork.addSpeciationNode(cNode);
+        networkNodeList.add(cNode);
+
+        pNode1.getParents().addAll(pNode2.getParents());
+        for (NetworkNode parent: pNode2.getParents()) {
+            parent.getChildren().remove(pNode2);
+            parent.getChildren().add(pNode1);
         }
+        pNode1.getChildren().add(cNode);
+        cNode.getParents().add(pNode1);
+    }
 
+    private void finish(Network speciesNetwork, List<NetworkNode> networkNodeList) {
         // reached the present, set node labels
         for (int i = 0; i < networkNodeList.size(); i++) {
             NetworkNode node = networkNodeList.get(i);
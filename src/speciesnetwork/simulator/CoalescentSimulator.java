@@ -4,9 +4,6 @@ import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-
 import beastfx.app.seqgen.*;
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -16,11 +13,12 @@ import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.alignment.*;
 import beast.base.evolution.tree.Node;
-import beast.base.util.Randomizer;
 import speciesnetwork.EmbeddedTree;
+import speciesnetwork.Embedding;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
 import speciesnetwork.SanityChecks;
+import speciesnetwork.utils.WorkerPool;
 
 /**
  * @author Chi Zhang
@@ -49,6 +47,13 @@ public class CoalescentSimulator extends Runnable {
             new Input<>("iterations", "Number of iterations to simulate (default is 1).");
     public final Input<Boolean> networkOperatorInput =
             new Input<>("networkOperator", "Whether to write network topology operators (default false).", false);
+    public final Input<Boolean> useThreadsInput = new Input<>("useThreads", "Simulate the iterations (if more " +
+            "than one), or else the sequences of the loci, in parallel, each drawing from its own random stream " +
+            "derived from the seed, so that the output does not depend on the number of threads (default false).", false);
+    public final Input<Integer> threadsInput =
+            new Input<>("threads", "Number of threads to use if useThreads is true (default is the number of available processors).");
+    public final Input<Long> seedInput = new Input<>("seed", "Seed of the random streams if useThreads is true " +
+            "(default is drawn from the chain's random number generator).");
 
     private Network speciesNetwork;
     private RealParameter popSizes;
@@ -56,11 +61,13 @@ public class CoalescentSimulator extends Runnable {
     private RealParameter ploidies;
 
     private int nrOfGeneTrees;
-    private Multimap<NetworkNode, Node> networkNodeGeneLineagesMap = HashMultimap.create();
-    private int nodeIndex;  // gene tree internal node index
 
     private List<SequenceSimulator> seqSimulators;
-    private List<Alignment> alignments = new ArrayList<>();
+
+    // the sections of the XML output which are written locus by locus
+    private static final int DATA = 0, GENE_NEWICKS = 1, GENE_STATE_NODES = 2, GENE_REFS = 3, GENE_LIKELIHOODS = 4,
+            GENE_OPERATORS = 5, OPERATOR_GENE_REFS = 6, GENE_STAT_LOGS = 7, GENE_LOGGERS = 8, NR_OF_SECTIONS = 9;
+    private SectionSpool sections;  // where the loci are written as they are simulated, if generating an XML file
 
     @Override
     public void initAndValidate() {
@@ -71,6 +78,12 @@ public class CoalescentSimulator extends Runnable {
         nrOfGeneTrees = geneTrees.size();
 
         seqSimulators = seqSimulatorsInput.get();
+        // the sequences of locus ig are simulated on gene tree ig, also by the workers, which do not read the tree input
+        for (int ig = 0; ig < Math.min(seqSimulators.size(), nrOfGeneTrees); ig++) {
+            if (seqSimulators.get(ig).m_treeInput.get() != geneTrees.get(ig))
+                throw new IllegalArgumentException("Sequence simulator " + seqSimulators.get(ig).getID() +
+                        " must simulate along gene tree " + geneTrees.get(ig).getID() + ", in the order of the gene trees!");
+        }
     }
 
     @Override
@@ -86,14 +99,25 @@ public class CoalescentSimulator extends Runnable {
             nIterations = 1;
         else
             nIterations = iterationsInput.get();
+        if (useThreadsInput.get() && nIterations > 1) {
+            runParallel(nIterations);
+            return;
+        }
         for (int i = 0; i < nIterations; i++) {
-            simulate();
-
             String outputFileName = outputFileNameInput.get();
-            if (nIterations == 1)
-                writeXMLOutput(outputFileName);  // generate an XML file for a single iteration
-            else
+            if (nIterations == 1) {
+                // generate an XML file for a single iteration, spooling each locus to the sections once simulated
+                try (SectionSpool spool = new SectionSpool(NR_OF_SECTIONS)) {
+                    sections = spool;
+                    simulate();
+                    writeXMLOutput(outputFileName, spool);
+                } finally {
+                    sections = null;
+                }
+            } else {
+                simulate();
                 writeGeneTrees(outputFileName + ".gene.trees");  // otherwise, only output the gene trees
+            }
 
             if (networkSimulatorInput.get() != null)
                 writeSpeciesNetworks(outputFileName + ".species.trees");  // output simulated species networks
@@ -101,6 +125,14 @@ public class CoalescentSimulator extends Runnable {
     }
 
     public void simulate() {
+        final List<Integer> loci = new ArrayList<>(nrOfGeneTrees);
+        for (int ig = 0; ig < nrOfGeneTrees; ig++)
+            loci.add(ig);
+        simulate(loci);
+    }
+
+    /* simulate the gene trees (and alignments) of the given loci only, keeping the others */
+    public void simulate(final Collection<Integer> loci) {
         if (speciesNetworkInput.get() == null)
             speciesNetwork = networkSimulatorInput.get().simulate();  // simulate a species network
         else
@@ -112,166 +144,382 @@ public class CoalescentSimulator extends Runnable {
         popSizes.setDimension(speciesBranchCount);
 
         final int traversalNodeCount = speciesNetwork.getInternalNodeCount();
-        // simulate each gene tree and alignment
-        for (int ig = 0; ig < nrOfGeneTrees; ig++) {
+        // simulate each gene tree
+        for (int ig: loci) {
             EmbeddedTree geneTree = geneTrees.get(ig);
 
-            networkNodeGeneLineagesMap.clear();
+            // initialize embedding matrix to -1 (no traversal)
+            geneTree.embedding.reset(traversalNodeCount);
+            // simulate the gene tree
+            final GeneTreeSimulation simulation = new GeneTreeSimulation(speciesNetwork, popSizes, geneTree.ploidy,
+                    geneTree.getInternalNodes(), geneTree.embedding, RandomSource.RANDOMIZER);
+            geneTree.setRoot(simulation.simulate(geneTree.getExternalNodes()));
+        }
+
+        // simulate the alignments on the gene trees, each of which is not kept after being written
+        final int[] lociArray = loci.stream().mapToInt(Integer::intValue).toArray();
+        if (useThreadsInput.get()) {
+            // in parallel, each locus drawing from its own random stream, and written in the order of the loci
+            final SplittableRandom[] streams =
+                    WorkerPool.splitStreams(BirthHybridSimulator.getSeed(seedInput.get()), lociArray.length);
+            final int[] written = new int[1];  // number of loci written
+            WorkerPool.runOrdered(BirthHybridSimulator.getThreadCount(threadsInput.get()), lociArray.length, i -> {
+                final int ig = lociArray[i];
+                if (seqSimulators.size() <= ig) return null;
+                final SequenceSimulation simulation = new SequenceSimulation(seqSimulators.get(ig));
+                return simulation.simulate(geneTrees.get(ig).getRoot(), RandomSource.of(streams[i]));
+            }, alignment -> {
+                final int ig = lociArray[written[0]++];
+                if (sections != null)
+                    writeLocusSections(ig, geneTrees.get(ig), alignment);
+            });
+        } else {
+            for (int ig : lociArray) {
+                final Alignment alignment = seqSimulators.size() > ig ? seqSimulators.get(ig).simulate() : null;
+                if (sections != null)
+                    writeLocusSections(ig, geneTrees.get(ig), alignment);
+            }
+        }
+    }
+
+    /*
+     * The simulation of one gene tree in a species network, which does not share state with other simulations, so
+     * that different replicates can be simulated in parallel (without the embedding, which is then null).
+     * The gene tree nodes are referred to by index, the tips first and then the internal nodes in the order they are
+     * used. The lineages at the tipward end of each species branch are kept in an int array per network node, and the
+     * lineages in a population are coalesced in place (swap-remove), so each coalescent event costs O(1).
+     */
+    private final class GeneTreeSimulation {
+        private final Network speciesNetwork;
+        private final RealParameter popSizes;
+        private final double ploidy;
+        private final List<Node> internalNodes;
+        private final Embedding embedding;
+        private final RandomSource random;
+
+        private Node[] geneNodes;    // the tips, then the internal nodes
+        private int nTips;
+        private int nodeIndex = 0;   // gene tree internal node index
+        // lineages at the tipward end of the branches above each network node, by node number
+        private final int[][] bottomLineages;
+        private final int[] bottomCounts;
+        private Node root;
+
+        GeneTreeSimulation(Network speciesNetwork, RealParameter popSizes, double ploidy, List<Node> internalNodes,
+                           Embedding embedding, RandomSource random) {
+            this.speciesNetwork = speciesNetwork;
+            this.popSizes = popSizes;
+            this.ploidy = ploidy;
+            this.internalNodes = internalNodes;
+            this.embedding = embedding;
+            this.random = random;
+            bottomLineages = new int[speciesNetwork.getNodeCount()][];
+            bottomCounts = new int[speciesNetwork.getNodeCount()];
+        }
+
+        /* simulate the gene tree with the given tips, and return its root */
+        Node simulate(List<Node> externalNodes) {
+            nTips = externalNodes.size();
+            geneNodes = new Node[nTips + internalNodes.size()];
             // generate map of tip names to tip nodes
             final Map<String, NetworkNode> speciesNodeMap = new HashMap<>();
             for (NetworkNode leafNode : speciesNetwork.getLeafNodes()) {
                 final String speciesName = leafNode.getLabel();
                 speciesNodeMap.put(speciesName, leafNode);
             }
-            final Map<String, Node> geneNodeMap = new HashMap<>();
-            for (Node leafNode : geneTree.getExternalNodes()) {
-                final String geneName = leafNode.getID();
-                geneNodeMap.put(geneName, leafNode);
+            final Map<String, Integer> geneNodeMap = new HashMap<>();
+            for (int i = 0; i < nTips; i++) {
+                geneNodes[i] = externalNodes.get(i);
+                geneNodeMap.put(geneNodes[i].getID(), i);
             }
-            // multimap of species network tip node to gene tree tip nodes
-            final TaxonSet taxonSuperSet = speciesNetwork.taxonSetInput.get();
+            // species network tip node to gene tree tip nodes
+            final TaxonSet taxonSuperSet = getTaxonSuperSet();
             for (Taxon species : taxonSuperSet.taxonsetInput.get()) {
                 final String speciesName = species.getID();
                 final NetworkNode speciesNode = speciesNodeMap.get(speciesName);
                 final TaxonSet speciesTaxonSet = (TaxonSet) species;
                 for (Taxon geneTip : speciesTaxonSet.taxonsetInput.get()) {
                     final String gTipName = geneTip.getID();
-                    final Node geneNode = geneNodeMap.get(gTipName);
-                    if (geneNode != null) networkNodeGeneLineagesMap.put(speciesNode, geneNode);
-                }
-            }
-
-            // adjust the heights of gene tree tips to be equal to the height of corresponding species tip
-            for (NetworkNode speciesLeaf: speciesNetwork.getLeafNodes()) {
-                for (Node geneLeaf : networkNodeGeneLineagesMap.get(speciesLeaf)) {
-                    geneLeaf.setHeight(speciesLeaf.getHeight());
+                    final Integer geneNode = geneNodeMap.get(gTipName);
+                    if (geneNode != null) {
+                        // adjust the height of gene tree tip to be equal to the height of corresponding species tip
+                        geneNodes[geneNode].setHeight(speciesNode.getHeight());
+                        addBottomLineage(speciesNode, geneNode);
+                    }
                 }
             }
 
             // reset visited indicator
             speciesNetwork.resetAllVisited();
-            // initialize embedding matrix to -1 (no traversal)
-            geneTree.embedding.reset(traversalNodeCount);
-            // simulate the gene tree
-            nodeIndex = 0;
-            simulateGeneTree(speciesNetwork.getRoot(), geneTree);
-
-            // simulate alignment on the gene tree
-            if (seqSimulators.size() > ig) {
-                alignments.add(seqSimulators.get(ig).simulate());
-            }
+            simulateGeneTree(speciesNetwork.getRoot());
+            return root;
         }
-    }
 
-    // recursively simulate lineages coalescent in each population
-    private void simulateGeneTree(NetworkNode snNode, EmbeddedTree geneTree) {
-        if (snNode.isVisited())
-            return;
-        for (NetworkNode c: snNode.getChildren()) {
-            simulateGeneTree(c, geneTree);
+        private void addBottomLineage(NetworkNode snNode, int lineage) {
+            final int nodeNr = snNode.getNr();
+            if (bottomLineages[nodeNr] == null)
+                bottomLineages[nodeNr] = new int[4];
+            else if (bottomCounts[nodeNr] == bottomLineages[nodeNr].length)
+                bottomLineages[nodeNr] = Arrays.copyOf(bottomLineages[nodeNr], 2 * bottomCounts[nodeNr]);
+            bottomLineages[nodeNr][bottomCounts[nodeNr]++] = lineage;
         }
 
-        snNode.setVisited(true);  // set visited indicator
+        // recursively simulate lineages coalescent in each population
+        private void simulateGeneTree(NetworkNode snNode) {
+            if (snNode.isVisited())
+                return;
+            for (NetworkNode c: snNode.getChildren()) {
+                simulateGeneTree(c);
+            }
 
-        final Collection<Node> lineagesAtBottom = networkNodeGeneLineagesMap.get(snNode);
+            snNode.setVisited(true);  // set visited indicator
+
+            final int nodeNr = snNode.getNr();
+            final int nBottom = bottomCounts[nodeNr];
+            final int[] lineagesAtBottom = nBottom == 0 ? new int[0] : bottomLineages[nodeNr];
+
+            if (snNode.isReticulation()) {
+                // assign lineages at the bottom to the left and right populations
+                final int[] lineagesAtL = new int[nBottom];
+                final int[] lineagesAtR = new int[nBottom];
+                int nL = 0, nR = 0;
+                for (int i = 0; i < nBottom; i++) {
+                    if (random.nextDouble() < snNode.getGammaProb())
+                        lineagesAtL[nL++] = lineagesAtBottom[i];
+                    else
+                        lineagesAtR[nR++] = lineagesAtBottom[i];
+                }
 
-        if (snNode.isReticulation()) {
-            // assign lineages at the bottom to the left and right populations
-            final Collection<Node> lineagesAtLBottom = new HashSet<>();
-            final Collection<Node> lineagesAtRBottom = new HashSet<>();
-            for (Node lineage : lineagesAtBottom) {
-                if (Randomizer.nextDouble() < snNode.getGammaProb())
-                    lineagesAtLBottom.add(lineage);
+                final double bottomHeight = snNode.getHeight();
+                final Integer lBranchNumber = snNode.gammaBranchNumber;
+                NetworkNode lParent = snNode.getParentByBranch(lBranchNumber);
+                final double lPopSize = popSizes.getValue(lBranchNumber);
+                final double lTopHeight = lParent.getHeight();
+                nL = simulateCoalescentEvents(lineagesAtL, nL, bottomHeight, lTopHeight, lPopSize);
+                final Integer rBranchNumber = snNode.gammaBranchNumber + 1;
+                NetworkNode rParent = snNode.getParentByBranch(rBranchNumber);
+                final double rPopSize = popSizes.getValue(rBranchNumber);
+                final double rTopHeight = rParent.getHeight();
+                nR = simulateCoalescentEvents(lineagesAtR, nR, bottomHeight, rTopHeight, rPopSize);
+
+                moveToParent(lineagesAtL, nL, lParent, lBranchNumber);
+                moveToParent(lineagesAtR, nR, rParent, rBranchNumber);
+            }
+            else {
+                final double bottomHeight = snNode.getHeight();
+                final Integer sBranchNumber = snNode.gammaBranchNumber;
+                NetworkNode sParent = snNode.getParentByBranch(sBranchNumber);
+                final double popSize = popSizes.getValue(sBranchNumber);
+                final double topHeight;
+                if (sParent.isOrigin())  // network root
+                    topHeight = Double.POSITIVE_INFINITY;
                 else
-                    lineagesAtRBottom.add(lineage);
+                    topHeight = sParent.getHeight();
+
+                final int nTop = simulateCoalescentEvents(lineagesAtBottom, nBottom, bottomHeight, topHeight, popSize);
+                if (sParent.isOrigin()) {
+                    root = geneNodes[lineagesAtBottom[0]];
+                } else {
+                    moveToParent(lineagesAtBottom, nTop, sParent, sBranchNumber);
+                }
             }
+        }
 
-            final double bottomHeight = snNode.getHeight();
-            final Integer lBranchNumber = snNode.gammaBranchNumber;
-            NetworkNode lParent = snNode.getParentByBranch(lBranchNumber);
-            final double lPopSize = popSizes.getValue(lBranchNumber);
-            final double lTopHeight = lParent.getHeight();
-            List<Node> lineagesAtLTop =
-                    simulateCoalescentEvents(lineagesAtLBottom, bottomHeight, lTopHeight, lPopSize, geneTree);
-            final Integer rBranchNumber = snNode.gammaBranchNumber + 1;
-            NetworkNode rParent = snNode.getParentByBranch(rBranchNumber);
-            final double rPopSize = popSizes.getValue(rBranchNumber);
-            final double rTopHeight = rParent.getHeight();
-            List<Node> lineagesAtRTop =
-                    simulateCoalescentEvents(lineagesAtRBottom, bottomHeight, rTopHeight, rPopSize, geneTree);
-
-            networkNodeGeneLineagesMap.putAll(lParent, lineagesAtLTop);
-            networkNodeGeneLineagesMap.putAll(rParent, lineagesAtRTop);
-            // update embedding
-            final int traversalLParentNr = lParent.getTraversalNumber();
-            for (final Node geneNode : lineagesAtLTop)
-            	geneTree.embedding.setDirection(geneNode.getNr(), traversalLParentNr, lBranchNumber);
-            final int traversalRParentNr = rParent.getTraversalNumber();
-            for (final Node geneNode : lineagesAtRTop)
-            	geneTree.embedding.setDirection(geneNode.getNr(), traversalRParentNr, rBranchNumber);
+        // add the lineages at the top of a branch to the bottom of the parent node, and update the embedding
+        private void moveToParent(int[] lineages, int n, NetworkNode parent, Integer branchNumber) {
+            final int traversalParentNr = embedding == null ? -1 : parent.getTraversalNumber();
+            for (int i = 0; i < n; i++) {
+                addBottomLineage(parent, lineages[i]);
+                if (embedding != null)
+                    embedding.setDirection(geneNodes[lineages[i]].getNr(), traversalParentNr, branchNumber);
+            }
         }
-        else {
-            final double bottomHeight = snNode.getHeight();
-            final Integer sBranchNumber = snNode.gammaBranchNumber;
-            NetworkNode sParent = snNode.getParentByBranch(sBranchNumber);
-            final double popSize = popSizes.getValue(sBranchNumber);
-            final double topHeight;
-            if (sParent.isOrigin())  // network root
-                topHeight = Double.POSITIVE_INFINITY;
-            else
-                topHeight = sParent.getHeight();
 
-            List<Node> lineagesAtTop =
-                    simulateCoalescentEvents(lineagesAtBottom, bottomHeight, topHeight, popSize, geneTree);
-            if (sParent.isOrigin()) {
-                geneTree.setRoot(lineagesAtTop.get(0));
-            } else {
-                networkNodeGeneLineagesMap.putAll(sParent, lineagesAtTop);
-                // update embedding
-                final int traversalParentNr = sParent.getTraversalNumber();
-                for (final Node geneNode : lineagesAtTop)
-                	geneTree.embedding.setDirection(geneNode.getNr(), traversalParentNr, sBranchNumber);
+        /* coalesce the first n lineages in place, and return the number of lineages at the top */
+        private int simulateCoalescentEvents(int[] lineages, int n, double bottomHeight, double topHeight, double Ne) {
+            double currentHeight = bottomHeight;
+
+            // go up backward in time
+            while (n > 1 && currentHeight < topHeight) {
+                // generate a coalescent waiting time
+                final double coalescentRate = n * (n - 1) / (2 * Ne * ploidy);
+                final double waitingTime = random.nextExponential(coalescentRate);
+                currentHeight += waitingTime;
+
+                if (currentHeight < topHeight) {
+                    // randomly pick two lineages to coalescence, and replace them by their parent
+                    int rnd = random.nextInt(n);
+                    final Node left = geneNodes[lineages[rnd]];
+                    lineages[rnd] = lineages[--n];
+                    rnd = random.nextInt(n);
+                    final Node right = geneNodes[lineages[rnd]];
+                    // deal with the parent of the two picked nodes
+                    final int parentIndex = nTips + nodeIndex;
+                    final Node node = internalNodes.get(nodeIndex++);
+                    geneNodes[parentIndex] = node;
+                    left.setParent(node); right.setParent(node);
+                    node.setChild(0, left);   node.setChild(1, right);
+                    node.setHeight(currentHeight);
+                    lineages[rnd] = parentIndex;
+                }
             }
+
+            return n;
         }
     }
 
-    private List<Node> simulateCoalescentEvents(Collection<Node> lineages, double bottomHeight,
-                                                double topHeight, double Ne, EmbeddedTree geneTree) {
-        // start from the lineages at the bottom
-        List<Node> currentLineages = new ArrayList<>(lineages);
-        double currentHeight = bottomHeight;
-
-        List<Node> internalNodes = geneTree.getInternalNodes();
-
-        // then go up backward in time
-        while (currentLineages.size() > 1 && currentHeight < topHeight) {
-            // generate a coalescent waiting time
-            final int nLineage = currentLineages.size();
-            final double coalescentRate = nLineage * (nLineage - 1) / (2 * Ne * geneTree.ploidy);
-            final double waitingTime = Randomizer.nextExponential(coalescentRate);
-            currentHeight += waitingTime;
-
-            if (currentHeight < topHeight) {
-                // randomly pick two lineages to coalescence
-                int rnd = Randomizer.nextInt(nLineage);
-                final Node left = currentLineages.get(rnd);
-                currentLineages.remove(left);
-                rnd = Randomizer.nextInt(nLineage - 1);
-                final Node right = currentLineages.get(rnd);
-                currentLineages.remove(right);
-                // deal with the parent of the two picked nodes
-                final Node node = internalNodes.get(nodeIndex++);
-                left.setParent(node); right.setParent(node);
-                node.setChild(0, left);   node.setChild(1, right);
-                node.setHeight(currentHeight);
-                currentLineages.add(node);
+    // the taxon set of the species network, which is not set in the networks simulated for parallel replicates
+    private TaxonSet getTaxonSuperSet() {
+        if (speciesNetworkInput.get() != null)
+            return speciesNetworkInput.get().taxonSetInput.get();
+        return networkSimulatorInput.get().speciesNetworkInput.get().taxonSetInput.get();
+    }
+
+    /* simulate the iterations in parallel, and write the gene trees and species networks in order */
+    private void runParallel(final int nIterations) throws IOException {
+        final SplittableRandom[] streams =
+                WorkerPool.splitStreams(BirthHybridSimulator.getSeed(seedInput.get()), nIterations);
+        final int nThreads = BirthHybridSimulator.getThreadCount(threadsInput.get());
+
+        final String outputFileName = outputFileNameInput.get();
+        final boolean writeNetworks = networkSimulatorInput.get() != null;
+        final Node[] templates = copyGeneTreeRoots();
+        try (PrintStream geneOut = outputFileName == null ? null :
+                     new PrintStream(new FileOutputStream(outputFileName + ".gene.trees", true));
+             PrintStream networkOut = outputFileName == null || !writeNetworks ? null :
+                     new PrintStream(new FileOutputStream(outputFileName + ".species.trees", true))) {
+            WorkerPool.runOrdered(nThreads, nIterations, i -> simulateReplicate(templates, RandomSource.of(streams[i])), replicate -> {
+                (geneOut == null ? System.out : geneOut).print(replicate[0]);
+                if (writeNetworks)
+                    (networkOut == null ? System.out : networkOut).println(replicate[1] + ";");
+            });
+        }
+    }
+
+    /* simulate one iteration into copies of the species network and gene trees, and return them as strings */
+    private String[] simulateReplicate(final Node[] templates, final RandomSource random) {
+        final Network network;
+        if (speciesNetworkInput.get() == null)
+            network = networkSimulatorInput.get().simulate(new Network(), random);
+        else
+            network = speciesNetworkInput.get().copy();
+        SanityChecks.checkNetworkSanity(network.getOrigin());
+
+        final StringBuilder buf = new StringBuilder();
+        for (Node root : simulateGeneTrees(network, popSizesInput.get().getValues(), templates, random))
+            buf.append(root.toNewick()).append(";\n");
+        return new String[]{buf.toString(), network.toString()};
+    }
+
+    /* copies of the current gene trees, from which the gene trees of parallel replicates are simulated */
+    Node[] copyGeneTreeRoots() {
+        final Node[] roots = new Node[nrOfGeneTrees];
+        for (int ig = 0; ig < nrOfGeneTrees; ig++)
+            roots[ig] = geneTrees.get(ig).getRoot().copy();
+        return roots;
+    }
+
+    /*
+     * simulate the gene trees in the given species network with the given population sizes (recycled over the
+     * branches if fewer) into copies of the templates, and return their roots
+     */
+    Node[] simulateGeneTrees(final Network network, final Double[] popSizeValues, final Node[] templates,
+                             final RandomSource random) {
+        final RealParameter replicatePopSizes = new RealParameter(popSizeValues);
+        replicatePopSizes.setDimension(network.getBranchCount());
+
+        final Node[] roots = new Node[nrOfGeneTrees];
+        for (int ig = 0; ig < nrOfGeneTrees; ig++) {
+            final Node rootCopy = templates[ig].copy();
+            final List<Node> externalNodes = rootCopy.getAllLeafNodes();
+            final List<Node> internalNodes = new ArrayList<>();
+            for (Node node : rootCopy.getAllChildNodesAndSelf()) {
+                if (!node.isLeaf()) internalNodes.add(node);
             }
+            internalNodes.sort(Comparator.comparingInt(Node::getNr));
+
+            final GeneTreeSimulation simulation = new GeneTreeSimulation(network, replicatePopSizes,
+                    geneTrees.get(ig).ploidy, internalNodes, null, random);
+            roots[ig] = simulation.simulate(externalNodes);
+            roots[ig].setParent(null);
         }
+        return roots;
+    }
+
+    /* write the sections of locus i to the spool, so that only the current locus is kept in memory */
+    private void writeLocusSections(int i, EmbeddedTree geneTree, Alignment alignment) {
+        final String outputFileName = outputFileNameInput.get();
+        PrintStream out = sections.get(DATA);
+        out.println("    <data id=\"gene" + (i+1) + "\" name=\"alignment\">");
+        if (alignment != null) {  // have simulated alignments
+            List<Sequence> sequences = alignment.sequenceInput.get();
+            for (Sequence seq : sequences)
+                out.println("        <sequence taxon=\"" + seq.getTaxon() + "\" value=\"" + seq.getData() + "\"/>");
+        } else {
+            for (Node leaf : geneTree.getExternalNodes())
+                out.println("        <sequence taxon=\"" + leaf.getID() + "\" totalcount=\"4\" value=\"-\"/>");
+        }
+        out.println("    </data>");
+
+        out = sections.get(GENE_NEWICKS);
+        out.println("    <init spec=\"beast.base.evolution.tree.TreeParser\" id=\"newick:gene" + (i+1) + "\" IsLabelledNewick=\"true\"\n" +
+                    "          newick=\"" + geneTree.getRoot().toNewick() + "\"/>");
 
-        return currentLineages;
+        out = sections.get(GENE_STATE_NODES);
+        out.println("            <stateNode id=\"tree:gene" + (i+1) + "\" spec=\"speciesnetwork.EmbeddedTree\">");
+        out.println("                <taxonset id=\"taxonset:gene" + (i + 1) + "\" spec=\"TaxonSet\" alignment=\"@gene" + (i + 1) + "\"/>");
+        out.println("            </stateNode>");
+
+        sections.get(GENE_REFS).println("                <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        sections.get(OPERATOR_GENE_REFS).println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+
+        out = sections.get(GENE_LIKELIHOODS);
+        out.println("                <distribution id=\"likelihood:gene" + (i + 1) + "\" data=\"@gene" + (i+1) + "\" tree=\"@tree:gene" + (i+1) + "\" spec=\"TreeLikelihood\">");
+        out.println("                    <siteModel id=\"siteModel:gene" + (i+1) + "\" mutationRate=\"1.0\" spec=\"SiteModel\">");
+        out.println("                        <substModel id=\"jc:gene" + (i+1) + "\" spec=\"JukesCantor\"/>");
+        out.println("                    </siteModel>");
+        out.println("                    <branchRateModel id=\"strictClock:gene" + (i+1) + "\" clock.rate=\"@clockRate:gene\" spec=\"StrictClockModel\"/>");
+        out.println("                </distribution>");
+
+        out = sections.get(GENE_OPERATORS);
+        out.println("        <operator id=\"scaleAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"3.0\">");
+        out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        out.println("            <operator id=\"scale:gene" + (i+1) + "\" spec=\"ScaleOperator\" scaleFactor=\"0.5\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
+        out.println("        </operator>");
+        out.println("        <operator id=\"scaleRootAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"3.0\">");
+        out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        out.println("            <operator id=\"scaleRoot:gene" + (i+1) + "\" spec=\"ScaleOperator\" rootOnly=\"true\" scaleFactor=\"0.5\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
+        out.println("        </operator>");
+        out.println("        <operator id=\"uniformAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"30.0\">");
+        out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        out.println("            <operator id=\"uniform:gene" + (i+1) + "\" spec=\"Uniform\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
+        out.println("        </operator>");
+        out.println("        <operator id=\"subSlideAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"15.0\">");
+        out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        out.println("            <operator id=\"subSlide:gene" + (i+1) + "\" spec=\"SubtreeSlide\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
+        out.println("        </operator>");
+        out.println("        <operator id=\"narrowAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"15.0\">");
+        out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        out.println("            <operator id=\"narrow:gene" + (i+1) + "\" spec=\"Exchange\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
+        out.println("        </operator>");
+        out.println("        <operator id=\"wideAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"5.0\">");
+        out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        out.println("            <operator id=\"wide:gene" + (i+1) + "\" spec=\"Exchange\" isNarrow=\"false\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
+        out.println("        </operator>");
+        out.println("        <operator id=\"WilsonBaldingAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"5.0\">");
+        out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        out.println("            <operator id=\"WilsonBalding:gene" + (i+1) + "\" spec=\"WilsonBalding\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
+        out.println("        </operator>\n");
+
+        sections.get(GENE_STAT_LOGS).println("            <log id=\"height:gene" + (i+1) + "\" tree=\"@tree:gene" + (i+1) + "\" spec=\"beast.base.evolution.tree.TreeStatLogger\"/>");
+
+        out = sections.get(GENE_LOGGERS);
+        out.println("        <logger id=\"treelog:gene" + (i + 1) + "\" fileName=\"" + outputFileName + ".gene" + (i+1) + ".trees\" logEvery=\"2000\" mode=\"tree\">");
+        out.println("            <log id=\"treeLogger:gene" + (i+1) + "\" tree=\"@tree:gene" + (i+1) + "\" spec=\"beast.base.evolution.TreeWithMetaDataLogger\"/>");
+        out.println("        </logger>");
     }
 
-    private void writeXMLOutput(String outputFileName) throws IOException {
+    private void writeXMLOutput(String outputFileName, SectionSpool spool) throws IOException {
         PrintStream out;  // where to print
         if (outputFileName == null) {
             out = System.out;
@@ -289,20 +537,7 @@ public class CoalescentSimulator extends Runnable {
         out.println("<beast namespace=\"beast.base.core:beast.base.core.util:beast.base.evolution.alignment:beast.base.evolution.tree.coalescent:beast.base.evolution.operators:" +
                     "beast.base.evolution.sitemodel:beast.base.evolution.substitutionmodel:beast.base.evolution.branchratemodel:beast.base.evolution.likelihood\" version=\"2.6\">");
         // print sequence data
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            out.println("    <data id=\"gene" + (i+1) + "\" name=\"alignment\">");
-            if (seqSimulators.size() > i) {  // have simulated alignments
-                Alignment alignment = alignments.get(i);
-                List<Sequence> sequences = alignment.sequenceInput.get();
-                for (Sequence seq : sequences)
-                    out.println("        <sequence taxon=\"" + seq.getTaxon() + "\" value=\"" + seq.getData() + "\"/>");
-            } else {
-            	EmbeddedTree geneTree = geneTrees.get(i);
-                for (Node leaf : geneTree.getExternalNodes())
-                    out.println("        <sequence taxon=\"" + leaf.getID() + "\" totalcount=\"4\" value=\"-\"/>");
-            }
-            out.println("    </data>");
-        }
+        spool.copyTo(DATA, out);
         out.println("");  // mappings
         out.println("    <map name=\"Uniform\">beast.base.math.distributions.Uniform</map>\n" +
                     "    <map name=\"Exponential\">beast.base.math.distributions.Exponential</map>\n" +
@@ -319,11 +554,7 @@ public class CoalescentSimulator extends Runnable {
                     "          newick=\"" + speciesNetwork.getOrigin().toString(df, true) + "\"/>");
         // print initial/true gene trees
         out.println("    <!--");
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            EmbeddedTree geneTree = geneTrees.get(i);
-            out.println("    <init spec=\"beast.base.evolution.tree.TreeParser\" id=\"newick:gene" + (i+1) + "\" IsLabelledNewick=\"true\"\n" +
-                        "          newick=\"" + geneTree.getRoot().toNewick() + "\"/>");
-        }
+        spool.copyTo(GENE_NEWICKS, out);
         out.println("        -->\n");
         out.println("    <run id=\"mcmc\" spec=\"MCMC\" chainLength=\"40000000\" storeEvery=\"10000\">");  // MCMC block
         out.println("        <state id=\"state\">");  // states
@@ -359,31 +590,23 @@ public class CoalescentSimulator extends Runnable {
             out.println("            <parameter id=\"hybridProp:species\" lower=\"0.0\" upper=\"1.0\" name=\"stateNode\">0.1</parameter>");
         }
         out.println("            <parameter id=\"clockRate:gene\" lower=\"0.0\" name=\"stateNode\">1.0</parameter>");
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            out.println("            <stateNode id=\"tree:gene" + (i+1) + "\" spec=\"speciesnetwork.EmbeddedTree\">");
-            out.println("                <taxonset id=\"taxonset:gene" + (i + 1) + "\" spec=\"TaxonSet\" alignment=\"@gene" + (i + 1) + "\"/>");
-            out.println("            </stateNode>");
-        }
+        spool.copyTo(GENE_STATE_NODES, out);
         out.println("        </state>\n");  // end of states
         // starbeast initializer
         out.println("        <init id=\"SNI\" spec=\"speciesnetwork.SpeciesNetworkInitializer\" estimate=\"false\" method=\"random\" speciesNetwork=\"@network:species\" origin=\"@originTime:species\">");
         // for (int i = 0; i < nrOfGeneTrees; i++)  out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
         out.println("            <coalescentSimulator id=\"coalSim\" spec=\"speciesnetwork.simulator.CoalescentSimulator\" speciesNetwork=\"@network:species\" popSizes=\"@popMean:species\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("                <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(GENE_REFS, out);
         out.println("            </coalescentSimulator>");
         out.println("            <rebuildEmbedding id=\"initEmbed\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"0.0\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("                <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(GENE_REFS, out);
         out.println("            </rebuildEmbedding>");
         out.println("        </init>\n");
         // print posterior, prior, and likelihood stuff
         out.println("        <distribution id=\"posterior\" spec=\"util.CompoundDistribution\">");
         // coalescent
         out.println("            <distribution id=\"coalescent\" spec=\"speciesnetwork.MultispeciesCoalescent\" speciesNetwork=\"@network:species\">");
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            out.println("                <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-        }
+        spool.copyTo(GENE_REFS, out);
         out.println("                <!-- populationModel id=\"popModel\" popSizes=\"@popSizes\" spec=\"speciesnetwork.ConstantPopulation\"/ -->");
         out.println("                <populationModel id=\"popModel\" alpha=\"5.0\" mean=\"@popMean:species\" spec=\"speciesnetwork.ConstantPopIntegrated\"/>");
         out.println("            </distribution>");
@@ -423,48 +646,12 @@ public class CoalescentSimulator extends Runnable {
         out.println("            </distribution>");
         // likelihood
         out.println("            <distribution id=\"likelihood\" spec=\"util.CompoundDistribution\">");  // likelihood
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            out.println("                <distribution id=\"likelihood:gene" + (i + 1) + "\" data=\"@gene" + (i+1) + "\" tree=\"@tree:gene" + (i+1) + "\" spec=\"TreeLikelihood\">");
-            out.println("                    <siteModel id=\"siteModel:gene" + (i+1) + "\" mutationRate=\"1.0\" spec=\"SiteModel\">");
-            out.println("                        <substModel id=\"jc:gene" + (i+1) + "\" spec=\"JukesCantor\"/>");
-            out.println("                    </siteModel>");
-            out.println("                    <branchRateModel id=\"strictClock:gene" + (i+1) + "\" clock.rate=\"@clockRate:gene\" spec=\"StrictClockModel\"/>");
-            out.println("                </distribution>");
-        }
+        spool.copyTo(GENE_LIKELIHOODS, out);
         out.println("            </distribution>");
         out.println("        </distribution>\n");
         // print operators
         // gene tree operators
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            out.println("        <operator id=\"scaleAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"3.0\">");
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-            out.println("            <operator id=\"scale:gene" + (i+1) + "\" spec=\"ScaleOperator\" scaleFactor=\"0.5\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
-            out.println("        </operator>");
-            out.println("        <operator id=\"scaleRootAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"3.0\">");
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-            out.println("            <operator id=\"scaleRoot:gene" + (i+1) + "\" spec=\"ScaleOperator\" rootOnly=\"true\" scaleFactor=\"0.5\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
-            out.println("        </operator>");
-            out.println("        <operator id=\"uniformAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"30.0\">");
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-            out.println("            <operator id=\"uniform:gene" + (i+1) + "\" spec=\"Uniform\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
-            out.println("        </operator>");
-            out.println("        <operator id=\"subSlideAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"15.0\">");
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-            out.println("            <operator id=\"subSlide:gene" + (i+1) + "\" spec=\"SubtreeSlide\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
-            out.println("        </operator>");
-            out.println("        <operator id=\"narrowAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"15.0\">");
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-            out.println("            <operator id=\"narrow:gene" + (i+1) + "\" spec=\"Exchange\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
-            out.println("        </operator>");
-            out.println("        <operator id=\"wideAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"5.0\">");
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-            out.println("            <operator id=\"wide:gene" + (i+1) + "\" spec=\"Exchange\" isNarrow=\"false\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
-            out.println("        </operator>");
-            out.println("        <operator id=\"WilsonBaldingAndEmbed:gene" + (i+1) + "\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"5.0\">");
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
-            out.println("            <operator id=\"WilsonBalding:gene" + (i+1) + "\" spec=\"WilsonBalding\" tree=\"@tree:gene" + (i+1) + "\" weight=\"0.0\"/>");
-            out.println("        </operator>\n");
-        }
+        spool.copyTo(GENE_OPERATORS, out);
         // species network operators
         out.println("        <operatorschedule id=\"opSchedule\" spec=\"OperatorSchedule\">");
         out.println("            <subschedule id=\"opSubschedule\" spec=\"OperatorSchedule\" operatorPattern=\"^.*species$\" weight=\"20\" weightIsPercentage=\"true\"/>");
@@ -483,39 +670,32 @@ public class CoalescentSimulator extends Runnable {
         out.println("");
         out.println("        <operator id=\"originMultiplier:species\" spec=\"speciesnetwork.operators.OriginMultiplier\" speciesNetwork=\"@network:species\" origin=\"@originTime:species\" weight=\"5.0\"/>");
         out.println("        <operator id=\"networkMultiplier:species\" spec=\"speciesnetwork.operators.NetworkMultiplier\" speciesNetwork=\"@network:species\" origin=\"@originTime:species\" weight=\"10.0\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(OPERATOR_GENE_REFS, out);
         out.println("        </operator>");
         out.println("        <operator id=\"coorNodeUniform:species\" spec=\"speciesnetwork.operators.CoordinatedNodeUniform\" speciesNetwork=\"@network:species\" weight=\"60.0\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(OPERATOR_GENE_REFS, out);
         out.println("        </operator>");
         out.println("        <operator id=\"coorNodeSlider:species\" spec=\"speciesnetwork.operators.CoordinatedNodeSlider\" speciesNetwork=\"@network:species\" isNormal=\"true\" sigma=\"0.005\" weight=\"60.0\">");
         out.println("            <origin idref=\"originTime:species\"/>");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(OPERATOR_GENE_REFS, out);
         out.println("        </operator>");
         out.println("");
         // whether or not to write network topology operators
         if (!networkOperatorInput.get())  out.println("        <!--");
         out.println("        <operator id=\"relocateBranchAndEmbed:species\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"150.0\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(OPERATOR_GENE_REFS, out);
         out.println("            <operator id=\"relocateBranch:species\" spec=\"speciesnetwork.operators.RelocateBranch\" speciesNetwork=\"@network:species\" weight=\"0.0\"/>");
         out.println("        </operator>");
         out.println("        <operator id=\"flipReticulationAndEmbed:species\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"15.0\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(OPERATOR_GENE_REFS, out);
         out.println("            <operator id=\"flipReticulation:species\" spec=\"speciesnetwork.operators.FlipReticulation\" speciesNetwork=\"@network:species\" weight=\"0.0\"/>");
         out.println("        </operator>");
         out.println("        <operator id=\"addReticulationAndEmbed:species\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"80.0\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(OPERATOR_GENE_REFS, out);
         out.println("            <operator id=\"addReticulation:species\" spec=\"speciesnetwork.operators.AddReticulation\" speciesNetwork=\"@network:species\" weight=\"0.0\"/>");
         out.println("        </operator>");
         out.println("        <operator id=\"deleteReticulationAndEmbed:species\" spec=\"speciesnetwork.operators.RebuildEmbedding\" speciesNetwork=\"@network:species\" weight=\"80.0\">");
-        for (int i = 0; i < nrOfGeneTrees; i++)
-            out.println("            <geneTree idref=\"tree:gene" + (i+1) + "\"/>");
+        spool.copyTo(OPERATOR_GENE_REFS, out);
         out.println("            <operator id=\"deleteReticulation:species\" spec=\"speciesnetwork.operators.DeleteReticulation\" speciesNetwork=\"@network:species\" weight=\"0.0\"/>");
         out.println("        </operator>");
         if (!networkOperatorInput.get())  out.println("        -->");
@@ -541,9 +721,7 @@ public class CoalescentSimulator extends Runnable {
         out.println("            <log idref=\"popMean:species\"/>");
         out.println("            <log idref=\"clockRate:gene\"/>");
         out.println("            <log id=\"height:species\" speciesNetwork=\"@network:species\" spec=\"speciesnetwork.utils.NetworkStatLogger\"/>");
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            out.println("            <log id=\"height:gene" + (i+1) + "\" tree=\"@tree:gene" + (i+1) + "\" spec=\"beast.base.evolution.tree.TreeStatLogger\"/>");
-        }
+        spool.copyTo(GENE_STAT_LOGS, out);
         out.println("        </logger>");
         out.println("        <logger id=\"specieslog\" fileName=\"" + outputFileName + ".species.trees\" logEvery=\"2000\" mode=\"tree\">");
         out.println("            <log id=\"networkLogger:species\" spec=\"speciesnetwork.utils.NetworkWithMetaDataLogger\" speciesNetwork=\"@network:species\"/>");
@@ -551,13 +729,11 @@ public class CoalescentSimulator extends Runnable {
         out.println("        <logger id=\"backbonelog\" fileName=\"" + outputFileName + ".backbone.trees\" logEvery=\"2000\" mode=\"tree\">");
         out.println("            <log id=\"backboneLogger:species\" spec=\"speciesnetwork.utils.BackboneTreeLogger\" speciesNetwork=\"@network:species\"/>");
         out.println("        </logger>");
-        for (int i = 0; i < nrOfGeneTrees; i++) {
-            out.println("        <logger id=\"treelog:gene" + (i + 1) + "\" fileName=\"" + outputFileName + ".gene" + (i+1) + ".trees\" logEvery=\"2000\" mode=\"tree\">");
-            out.println("            <log id=\"treeLogger:gene" + (i+1) + "\" tree=\"@tree:gene" + (i+1) + "\" spec=\"beast.base.evolution.TreeWithMetaDataLogger\"/>");
-            out.println("        </logger>");
-        }
+        spool.copyTo(GENE_LOGGERS, out);
         out.println("    </run>");  // end of MCMC
         out.println("</beast>");
+        if (out != System.out)
+            out.close();
     }
 
     private void writeGeneTrees(String outputFileName) throws IOException {
@@ -0,0 +1,202 @@
+package speciesnetwork.simulator;
+
+import java.util.Arrays;
+
+/*
+ * A continuous-time Markov chain on a finite set of states, in which each state has at most one speciation and one
+ * hybridization transition, and the rest of its exit rate leads out of the state space. A path from the start state
+ * to the end state during a given time is sampled exactly by uniformization (Hobolth and Stone 2009): with a rate
+ * mu >= every exit rate, the number of jumps is Poisson(mu*T) and the jump chain has transition matrix R = I + Q/mu
+ * (including virtual jumps to the same state), so the number of jumps and then each state are drawn conditioned on
+ * ending in the end state. The cost is O(mu*T) matrix-vector products, each O(number of states).
+ * The vectors R^m e_end are kept at sqrt(m) checkpoints and recomputed block by block when sampling the states.
+ * The weights of the numbers of jumps sum to the probability of the end state, from which the probability mass of the
+ * paths leaving the state space can be checked.
+ */
+final class ConditionedCountChain {
+    private final int nStates;
+    private final double[] exitRates;
+    private final int[] speciationTo, hybridizationTo;  // -1 if no such transition within the state space
+    private final double[] speciationRates, hybridizationRates;
+
+    /* the events of a sampled path, from the oldest to the youngest */
+    static final class Path {
+        final double[] heights;
+        final boolean[] isHybridization;
+
+        private Path(double[] heights, boolean[] isHybridization) {
+            this.heights = heights;
+            this.isHybridization = isHybridization;
+        }
+    }
+
+    /* the weights of the numbers of jumps, with the vectors R^m e_end at the checkpoints */
+    private static final class JumpWeights {
+        final double mu;
+        final int maxJumps, blockSize;
+        final double[][] checkpoints;
+        final double[] logWeights;
+        final double maxLogWeight;
+
+        private JumpWeights(double mu, int maxJumps, int blockSize, double[][] checkpoints, double[] logWeights) {
+            this.mu = mu;
+            this.maxJumps = maxJumps;
+            this.blockSize = blockSize;
+            this.checkpoints = checkpoints;
+            this.logWeights = logWeights;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double w : logWeights)
+                max = Math.max(max, w);
+            this.maxLogWeight = max;
+        }
+    }
+
+    ConditionedCountChain(double[] exitRates, int[] speciationTo, double[] speciationRates,
+                          int[] hybridizationTo, double[] hybridizationRates) {
+        this.nStates = exitRates.length;
+        this.exitRates = exitRates;
+        this.speciationTo = speciationTo;
+        this.speciationRates = speciationRates;
+        this.hybridizationTo = hybridizationTo;
+        this.hybridizationRates = hybridizationRates;
+    }
+
+    /**
+     * @return the log probability of being in state end at height 0 after starting in state start at height time,
+     * without leaving the state space
+     */
+    double logProbability(final int start, final int end, final double time) {
+        final JumpWeights weights = weigh(start, end, time);
+        if (weights == null)
+            return start == end ? 0.0 : Double.NEGATIVE_INFINITY;
+        if (weights.maxLogWeight == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        for (double w : weights.logWeights)
+            sum += Math.exp(w - weights.maxLogWeight);
+        return weights.maxLogWeight + Math.log(sum);
+    }
+
+    /**
+     * sample the events of a path from state start at height time to state end at height 0
+     * @return the path, or null if the end state cannot be reached
+     */
+    Path sample(final int start, final int end, final double time, final RandomSource random) {
+        final JumpWeights weights = weigh(start, end, time);
+        if (weights == null)
+            return start == end ? new Path(new double[0], new boolean[0]) : null;
+        if (weights.maxLogWeight == Double.NEGATIVE_INFINITY)
+            return null;
+        final double mu = weights.mu;
+        final int maxJumps = weights.maxJumps, blockSize = weights.blockSize;
+        final double[][] checkpoints = weights.checkpoints;
+        final double[] probs = new double[maxJumps + 1];
+        for (int m = 0; m <= maxJumps; m++)
+            probs[m] = Math.exp(weights.logWeights[m] - weights.maxLogWeight);
+        final int nJumps = random.randomChoicePDF(probs);
+
+        // the jump times are uniform in (0, T), and the i-th jump goes to y with prob. R[x,y] * v_{N-i}[y]
+        final double[] jumpHeights = new double[nJumps];
+        for (int i = 0; i < nJumps; i++)
+            jumpHeights[i] = time * random.nextDouble();
+        Arrays.sort(jumpHeights);  // the i-th jump from the origin is at jumpHeights[nJumps-1-i]
+
+        final double[] heights = new double[nJumps];
+        final boolean[] isHybridization = new boolean[nJumps];
+        int nEvents = 0;
+        int state = start;
+        final double[][] block = new double[blockSize][];
+        for (int b = (nJumps - 1) / blockSize; b >= 0 && nJumps > 0; b--) {
+            // recompute v_m for the block from its checkpoint
+            final int first = b * blockSize;
+            final int last = Math.min(first + blockSize - 1, nJumps - 1);
+            block[0] = checkpoints[b];
+            for (int m = first + 1; m <= last; m++) {
+                block[m - first] = multiply(block[m - first - 1], mu);
+                normalize(block[m - first]);  // only the ratios within a vector are used
+            }
+
+            for (int m = last; m >= first; m--) {  // the jump to the state with v_m, i.e. the (nJumps-m)-th jump
+                final double[] vm = block[m - first];
+                final double stay = (1.0 - exitRates[state] / mu) * vm[state];
+                final double toSpeciation = speciationTo[state] < 0 ? 0.0 :
+                        speciationRates[state] / mu * vm[speciationTo[state]];
+                final double toHybridization = hybridizationTo[state] < 0 ? 0.0 :
+                        hybridizationRates[state] / mu * vm[hybridizationTo[state]];
+                final double u = random.nextDouble() * (stay + toSpeciation + toHybridization);
+                if (u < stay)
+                    continue;  // a virtual jump
+                final boolean hybridization = u >= stay + toSpeciation;
+                state = hybridization ? hybridizationTo[state] : speciationTo[state];
+                heights[nEvents] = jumpHeights[m];
+                isHybridization[nEvents] = hybridization;
+                nEvents++;
+            }
+        }
+
+        return new Path(Arrays.copyOf(heights, nEvents), Arrays.copyOf(isHybridization, nEvents));
+    }
+
+    /* the weights of the numbers of jumps from state start to state end, or null if no state has an exit rate */
+    private JumpWeights weigh(final int start, final int end, final double time) {
+        double mu = 0.0;
+        for (double rate : exitRates)
+            mu = Math.max(mu, rate);
+        if (mu == 0.0)
+            return null;
+        final double meanJumps = mu * time;
+        final int maxJumps = (int) Math.ceil(meanJumps + 12 * Math.sqrt(meanJumps) + 30);
+
+        // the weight of m jumps is Poisson(m; mu*T) * R^m[start, end], with v_m = R^m e_end scaled to max 1
+        final int blockSize = (int) Math.ceil(Math.sqrt(maxJumps + 1));
+        final double[][] checkpoints = new double[maxJumps / blockSize + 1][];
+        final double[] logWeights = new double[maxJumps + 1];
+        double[] v = new double[nStates];
+        v[end] = 1.0;
+        double logScale = 0.0;
+        double logPoisson = -meanJumps;
+        for (int m = 0; m <= maxJumps; m++) {
+            if (m > 0) {
+                v = multiply(v, mu);
+                final double max = normalize(v);
+                if (max == 0.0) {  // the end state cannot be reached with m or more jumps
+                    Arrays.fill(logWeights, m, maxJumps + 1, Double.NEGATIVE_INFINITY);
+                    break;
+                }
+                logScale += Math.log(max);
+                logPoisson += Math.log(meanJumps) - Math.log(m);
+            }
+            if (m % blockSize == 0)
+                checkpoints[m / blockSize] = v.clone();
+            logWeights[m] = logPoisson + logScale + Math.log(v[start]);
+        }
+
+        return new JumpWeights(mu, maxJumps, blockSize, checkpoints, logWeights);
+    }
+
+    // scale v to maximum 1, and return the maximum before scaling
+    private static double normalize(final double[] v) {
+        double max = 0.0;
+        for (double x : v)
+            max = Math.max(max, x);
+        if (max > 0.0) {
+            for (int i = 0; i < v.length; i++)
+                v[i] /= max;
+        }
+        return max;
+    }
+
+    // R v, with R = I + Q/mu
+    private double[] multiply(final double[] v, final double mu) {
+        final double[] rv = new double[nStates];
+        for (int i = 0; i < nStates; i++) {
+            double x = (1.0 - exitRates[i] / mu) * v[i];
+            if (speciationTo[i] >= 0)
+                x += speciationRates[i] / mu * v[speciationTo[i]];
+            if (hybridizationTo[i] >= 0)
+                x += hybridizationRates[i] / mu * v[hybridizationTo[i]];
+            rv[i] = x;
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,367 @@
+package speciesnetwork.simulator;
+
+import java.io.*;
+import java.util.*;
+
+import beastfx.app.seqgen.SequenceSimulator;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import speciesnetwork.NetworkParser;
+import speciesnetwork.SanityChecks;
+import speciesnetwork.utils.WorkerPool;
+
+/**
+ * Posterior predictive simulation. The networks in the log are read one at a time and parsed, and the gene trees of
+ * the coalescent simulator are simulated in each of them by the worker threads, each sample drawing from its own random
+ * stream derived from the seed. Only the selected summary statistics of each simulated data set are kept and written,
+ * in the order of the samples, so the memory used does not grow with the number of samples.
+ * If a statistic of the sequences is selected, the sequences are also simulated by the workers, on the simulated gene
+ * trees with the models of the sequence simulators of the coalescent simulator.
+ * The population size of each network is read from the trace log if one is given, in the row of the same sample
+ * number. Otherwise the population size of the coalescent simulator is held fixed for all the networks. In either
+ * case a single population size is used for all the branches, as the branches of a parsed network are not numbered
+ * as they were in the chain, so per-branch population sizes cannot be matched to them.
+ */
+
+@Description("Simulate gene trees (and sequences) in the species networks of a posterior sample, and log the summary statistics.")
+public class PosteriorPredictiveSimulator extends Runnable {
+    public final Input<String> inputFileNameInput = new Input<>("inputFileName",
+            "Name of the file that contains networks in extended newick format.", Validate.REQUIRED);
+    public final Input<String> outputFileNameInput = new Input<>("outputFileName",
+            "If provided, write to this file rather than to standard out.");
+    public final Input<Integer> burninInput = new Input<>("burnin", "The absolute burn-in.", 0);
+    public final Input<CoalescentSimulator> coalSimulatorInput = new Input<>("coalescentSimulator",
+            "Simulator of the gene trees and sequences (its species network only provides the taxon sets, and its " +
+            "population size, the same for all the branches, is used for all the networks if there is no trace log).",
+            Validate.REQUIRED);
+    public final Input<String> traceFileNameInput = new Input<>("traceFileName", "Name of the trace log of the " +
+            "same run, from which the population size of each network is read in the row of its sample number " +
+            "(default is to hold the population size of the coalescent simulator fixed).");
+    public final Input<String> popSizesNameInput = new Input<>("popSizesName", "Name of the population size in " +
+            "the trace log, a single value used for all the branches, such as popMean (per-branch population sizes " +
+            "cannot be matched to the branches of the parsed networks) (default is popSizes).", "popSizes");
+    public final Input<String> statisticsInput = new Input<>("statistics", "Comma-separated summary statistics " +
+            "to log, among " + Arrays.toString(Statistic.values()) + " (default is treeHeight,treeLength).",
+            "treeHeight,treeLength");
+    public final Input<Boolean> useThreadsInput = new Input<>("useThreads", "Simulate the samples in parallel " +
+            "(default false).", false);
+    public final Input<Integer> threadsInput =
+            new Input<>("threads", "Number of threads to use if useThreads is true (default is the number of available processors).");
+    public final Input<Long> seedInput = new Input<>("seed", "Seed of the random streams of the samples " +
+            "(default is drawn from the chain's random number generator).");
+
+    /* the summary statistics of a simulated data set, each averaged over the loci */
+    public enum Statistic {
+        treeHeight,           // gene tree root height
+        treeLength,           // sum of gene tree branch lengths
+        segregatingSites,     // number of segregating sites
+        nucleotideDiversity;  // average number of pairwise differences per site
+
+        boolean usesSequences() {
+            return this == segregatingSites || this == nucleotideDiversity;
+        }
+    }
+
+    private Statistic[] statistics;
+    private boolean simulateSequences;
+    private SequenceSimulation[] seqSimulations;
+    private static PrintStream progressStream = Log.info;
+
+    /* a logged network, with its population size and the random stream to simulate from it */
+    private static final class Sample {
+        final String label, newick;
+        final Double[] popSizes;  // a single value, for all the branches
+        final SplittableRandom random;
+        double[] values;
+
+        Sample(String label, String newick, Double popSize, SplittableRandom random) {
+            this.label = label;
+            this.newick = newick;
+            this.popSizes = new Double[]{popSize};
+            this.random = random;
+        }
+    }
+
+    /* the population size logged in a trace log, read forward as the samples are */
+    private static final class PopSizesTrace implements Closeable {
+        private final BufferedReader br;
+        private final int column;  // of the population size
+
+        PopSizesTrace(String fileName, String popSizesName) throws IOException {
+            br = new BufferedReader(new FileReader(fileName));
+            String line;
+            do {
+                line = br.readLine();
+            } while (line != null && (line.trim().isEmpty() || line.startsWith("#")));
+            if (line == null)
+                throw new IOException("No header in the trace log " + fileName);
+            final String[] names = line.trim().split("\t");
+            int found = -1;
+            boolean perBranch = false;
+            for (int c = 1; c < names.length; c++) {
+                if (names[c].equals(popSizesName))
+                    found = c;
+                else if (names[c].startsWith(popSizesName) && names[c].substring(popSizesName.length()).matches("\\d+"))
+                    perBranch = true;
+            }
+            if (found < 0 && perBranch)
+                throw new IllegalArgumentException("The population sizes " + popSizesName + " are logged per branch " +
+                        "in the trace log " + fileName + ", which cannot be matched to the branches of the parsed " +
+                        "networks! Log a single population size, such as popMean, instead.");
+            if (found < 0)
+                throw new IllegalArgumentException("No column " + popSizesName + " in the trace log " + fileName);
+            column = found;
+        }
+
+        /* the population size in the row of the sample number, skipping the rows before it */
+        Double get(long sampleNr) throws IOException {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                final String[] values = line.trim().split("\t");
+                final long nr = Long.parseLong(values[0]);
+                if (nr < sampleNr) continue;
+                if (nr > sampleNr) break;
+                return Double.parseDouble(values[column]);
+            }
+            throw new IllegalArgumentException("No population size logged at sample " + sampleNr + " in the trace log!");
+        }
+
+        @Override
+        public void close() throws IOException {
+            br.close();
+        }
+    }
+
+    @Override
+    public void initAndValidate() {
+        final String[] names = statisticsInput.get().split(",");
+        statistics = new Statistic[names.length];
+        simulateSequences = false;
+        for (int i = 0; i < names.length; i++) {
+            try {
+                statistics[i] = Statistic.valueOf(names[i].trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown statistic " + names[i].trim() + ", which should be one of " +
+                        Arrays.toString(Statistic.values()));
+            }
+            simulateSequences |= statistics[i].usesSequences();
+        }
+
+        final CoalescentSimulator coalSimulator = coalSimulatorInput.get();
+        if (traceFileNameInput.get() == null && !isSingleValue(coalSimulator.popSizesInput.get().getValues()))
+            throw new IllegalArgumentException("The population sizes of the coalescent simulator differ between " +
+                    "branches, which cannot be matched to the branches of the parsed networks!");
+        if (simulateSequences &&
+                coalSimulator.seqSimulatorsInput.get().size() < coalSimulator.geneTreesInput.get().size())
+            throw new IllegalArgumentException("The statistics of sequences need a sequence simulator for each gene tree!");
+    }
+
+    @Override
+    public void run() throws IOException {
+        final CoalescentSimulator coalSimulator = coalSimulatorInput.get();
+        final Node[] templates = coalSimulator.copyGeneTreeRoots();
+        final SplittableRandom seeds = new SplittableRandom(BirthHybridSimulator.getSeed(seedInput.get()));
+        final int nThreads = useThreadsInput.get() ? BirthHybridSimulator.getThreadCount(threadsInput.get()) : 1;
+        final int burnin = burninInput.get();
+        final Double fixedPopSize = coalSimulator.popSizesInput.get().getValue();
+        if (simulateSequences) {
+            final List<SequenceSimulator> seqSimulators = coalSimulator.seqSimulatorsInput.get();
+            seqSimulations = new SequenceSimulation[templates.length];
+            for (int ig = 0; ig < templates.length; ig++)
+                seqSimulations[ig] = new SequenceSimulation(seqSimulators.get(ig));
+        }
+
+        final String outputFileName = outputFileNameInput.get();
+        PrintStream out;  // where to print
+        if (outputFileName == null) {
+            out = System.out;
+        } else {
+            String msg = "Writing to";
+            if (new File(outputFileName).exists())
+                msg = "Warning: Overwriting";
+            progressStream.println(msg + " file " + outputFileName);
+            out = new PrintStream(outputFileName);
+        }
+        out.print("Sample");
+        for (Statistic statistic : statistics)
+            out.print("\t" + statistic);
+        out.println();
+
+        progressStream.print("Simulating from network samples ");
+        final int[] counts = new int[2];  // numbers of networks read and simulated
+        try (BufferedReader br = new BufferedReader(new FileReader(inputFileNameInput.get()));
+             PopSizesTrace trace = traceFileNameInput.get() == null ? null :
+                     new PopSizesTrace(traceFileNameInput.get(), popSizesNameInput.get())) {
+            // the samples after the burn-in, read as the workers are ready for them
+            final Iterator<Sample> samples = new Iterator<Sample>() {
+                private Sample next = readNext();
+
+                private Sample readNext() {
+                    try {
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            if (!line.trim().toLowerCase().startsWith("tree ")) continue;
+                            final int i = line.indexOf('(');
+                            if (i < 0) continue;
+                            if (++counts[0] <= burnin) continue;
+                            String label = line.substring(0, line.indexOf('=') < 0 ? i : line.indexOf('=')).trim();
+                            label = label.substring(5).trim();  // remove "tree "
+                            if (label.startsWith("STATE_")) label = label.substring(6);
+                            final Double popSize = trace == null ? fixedPopSize : trace.get(getSampleNr(label));
+                            return new Sample(label, line.substring(i), popSize, seeds.split());
+                        }
+                        return null;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Sample next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    final Sample sample = next;
+                    next = readNext();
+                    return sample;
+                }
+            };
+
+            final PrintStream log = out;
+            WorkerPool.runOrdered(nThreads, samples, sample -> simulate(sample, templates), sample -> {
+                log.print(sample.label);
+                for (double value : sample.values)
+                    log.print("\t" + value);
+                log.println();
+                if (++counts[1] % 100 == 0) progressStream.print(".");
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        progressStream.println("\nSimulated from " + counts[1] + " networks, " + Math.min(burnin, counts[0]) +
+                " discarded as burn-in.");
+
+        if (out != System.out)
+            out.close();
+    }
+
+    private static boolean isSingleValue(Double[] values) {
+        for (Double value : values) {
+            if (!value.equals(values[0]))
+                return false;
+        }
+        return true;
+    }
+
+    private static long getSampleNr(String label) {
+        try {
+            return Long.parseLong(label);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The network " + label + " has no sample number to match in the trace log!");
+        }
+    }
+
+    /* parse the network and simulate the gene trees (and sequences), and compute their statistics (in a worker) */
+    private Sample simulate(final Sample sample, final Node[] templates) {
+        final NetworkParser network = new NetworkParser(new TreeParser(sample.newick));
+        SanityChecks.checkNetworkSanity(network.getOrigin());
+        final RandomSource random = RandomSource.of(sample.random);
+        final Node[] roots = coalSimulatorInput.get().simulateGeneTrees(network, sample.popSizes, templates, random);
+
+        sample.values = new double[statistics.length];
+        for (int j = 0; j < statistics.length; j++) {
+            if (statistics[j] == Statistic.treeHeight) {
+                for (Node root : roots)
+                    sample.values[j] += root.getHeight() / roots.length;
+            } else if (statistics[j] == Statistic.treeLength) {
+                for (Node root : roots)
+                    sample.values[j] += getTreeLength(root) / roots.length;
+            }
+        }
+        if (simulateSequences)
+            simulateSequences(sample, roots, random);
+        return sample;
+    }
+
+    private static double getTreeLength(final Node root) {
+        double length = 0.0;
+        for (Node node : root.getAllChildNodesAndSelf()) {
+            if (!node.isRoot())
+                length += node.getParent().getHeight() - node.getHeight();
+        }
+        return length;
+    }
+
+    /* simulate the sequences on the gene trees of the sample, and compute their statistics */
+    private void simulateSequences(final Sample sample, final Node[] roots, final RandomSource random) {
+        final int nLoci = roots.length;
+        for (int ig = 0; ig < nLoci; ig++) {
+            final Alignment alignment = seqSimulations[ig].simulate(roots[ig], random);  // released after the statistics
+            final List<Sequence> sequences = alignment.sequenceInput.get();
+            final char[][] data = new char[sequences.size()][];
+            for (int k = 0; k < data.length; k++)
+                data[k] = sequences.get(k).getData().toCharArray();
+
+            for (int j = 0; j < statistics.length; j++) {
+                if (statistics[j] == Statistic.segregatingSites)
+                    sample.values[j] += countSegregatingSites(data) / nLoci;
+                else if (statistics[j] == Statistic.nucleotideDiversity)
+                    sample.values[j] += getNucleotideDiversity(data) / nLoci;
+            }
+        }
+    }
+
+    protected static double countSegregatingSites(final char[][] data) {
+        final int nSites = data.length == 0 ? 0 : data[0].length;
+        int count = 0;
+        for (int s = 0; s < nSites; s++) {
+            for (int k = 1; k < data.length; k++) {
+                if (data[k][s] != data[0][s]) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    // the proportion of differing pairs averaged over the sites, counting the identical pairs of each site
+    protected static double getNucleotideDiversity(final char[][] data) {
+        final int n = data.length;
+        final int nSites = n == 0 ? 0 : data[0].length;
+        if (n < 2 || nSites == 0)
+            return 0.0;
+        final double nPairs = n * (n - 1) / 2.0;
+        final char[] column = new char[n];
+        double diversity = 0.0;
+        for (int s = 0; s < nSites; s++) {
+            for (int k = 0; k < n; k++)
+                column[k] = data[k][s];
+            Arrays.sort(column);
+            long identicalPairs = 0;
+            int run = 1;
+            for (int k = 1; k <= n; k++) {
+                if (k < n && column[k] == column[k - 1]) {
+                    run++;
+                } else {
+                    identicalPairs += (long) run * (run - 1) / 2;
+                    run = 1;
+                }
+            }
+            diversity += (nPairs - identicalPairs) / nPairs;
+        }
+        return diversity / nSites;
+    }
+}
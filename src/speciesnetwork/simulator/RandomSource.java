@@ -0,0 +1,79 @@
+package speciesnetwork.simulator;
+
+import java.util.SplittableRandom;
+
+import beast.base.util.Randomizer;
+
+/*
+ * The random numbers used by the simulators, drawn from the global Randomizer, or from a stream of their own so that
+ * replicates can be simulated in parallel with results depending only on the seed and the replicate number.
+ */
+abstract class RandomSource {
+    abstract double nextDouble();
+
+    abstract int nextInt(int n);
+
+    abstract double nextExponential(double rate);
+
+    abstract int randomChoicePDF(double[] pdf);
+
+    static final RandomSource RANDOMIZER = new RandomSource() {
+        @Override
+        double nextDouble() {
+            return Randomizer.nextDouble();
+        }
+
+        @Override
+        int nextInt(int n) {
+            return Randomizer.nextInt(n);
+        }
+
+        @Override
+        double nextExponential(double rate) {
+            return Randomizer.nextExponential(rate);
+        }
+
+        @Override
+        int randomChoicePDF(double[] pdf) {
+            return Randomizer.randomChoicePDF(pdf);
+        }
+    };
+
+    static RandomSource of(final SplittableRandom random) {
+        return new RandomSource() {
+            @Override
+            double nextDouble() {
+                return random.nextDouble();
+            }
+
+            @Override
+            int nextInt(int n) {
+                return random.nextInt(n);
+            }
+
+            @Override
+            double nextExponential(double rate) {
+                return -Math.log(1.0 - random.nextDouble()) / rate;
+            }
+
+            @Override
+            int randomChoicePDF(double[] pdf) {
+                double total = 0.0;
+                for (double p : pdf)
+                    total += p;
+                double u = random.nextDouble() * total;
+                for (int i = 0; i < pdf.length; i++) {
+                    u -= pdf[i];
+                    if (u < 0.0)
+                        return i;
+                }
+                // rounding error, return the last non-zero entry
+                for (int i = pdf.length - 1; i > 0; i--) {
+                    if (pdf[i] > 0.0)
+                        return i;
+                }
+                return 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package speciesnetwork.simulator;
+
+import java.io.*;
+import java.nio.file.Files;
+
+/*
+ * Temporary files holding the bodies of the sections of an output file, which are written locus by locus and then
+ * copied into the output in the order of the file, so that the loci do not have to be kept in memory until the end.
+ * A section can be copied more than once. The files are deleted when the spool is closed.
+ */
+final class SectionSpool implements Closeable {
+    private final File[] files;
+    private final PrintStream[] streams;
+
+    SectionSpool(int nSections) throws IOException {
+        files = new File[nSections];
+        streams = new PrintStream[nSections];
+        try {
+            for (int i = 0; i < nSections; i++) {
+                files[i] = File.createTempFile("section" + i + "-", ".tmp");
+                files[i].deleteOnExit();
+                streams[i] = new PrintStream(new BufferedOutputStream(new FileOutputStream(files[i])));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /* the stream to append to the given section */
+    PrintStream get(int section) {
+        return streams[section];
+    }
+
+    /* copy the body of the given section written so far to the output */
+    void copyTo(int section, PrintStream out) throws IOException {
+        streams[section].flush();
+        if (streams[section].checkError())
+            throw new IOException("Failed to write " + files[section]);
+        out.flush();
+        Files.copy(files[section].toPath(), out);
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < files.length; i++) {
+            if (streams[i] != null)
+                streams[i].close();
+            if (files[i] != null && !files[i].delete())
+                files[i].deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package speciesnetwork.simulator;
+
+import java.util.List;
+
+import beastfx.app.seqgen.SequenceSimulator;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+
+/*
+ * The simulation of an alignment along a gene tree with the models of a sequence simulator, as in its simulate(),
+ * but on a given tree and drawing from a given random source, and keeping the states in local arrays, so that the
+ * alignments of different loci (or of different copies of a gene tree) can be simulated in parallel.
+ * The site model, the substitution model and the branch rate model may be shared by the loci, thus they are only used
+ * while holding their locks, always taken in this order. Ascertained data and merging with other alignments are not
+ * supported, as the alignment is not written by the sequence simulator.
+ */
+final class SequenceSimulation {
+    private final List<String> taxaNames;
+    private final DataType dataType;
+    private final SiteModel siteModel;
+    private final SubstitutionModel substModel;
+    private final BranchRateModel branchRateModel;  // null for a strict clock of rate 1
+    private final int sequenceLength, stateCount, categoryCount;
+
+    SequenceSimulation(final SequenceSimulator seqSimulator) {
+        final Alignment data = seqSimulator.m_data.get();
+        if (data.isAscertained)
+            throw new IllegalArgumentException("Ascertained data is not supported in the parallel simulation of " +
+                                               "sequences (" + seqSimulator.getID() + ")!");
+        if (!seqSimulator.mergeListInput.get().isEmpty())
+            throw new IllegalArgumentException("Merging with other alignments is not supported in the parallel " +
+                                               "simulation of sequences (" + seqSimulator.getID() + ")!");
+        taxaNames = data.getTaxaNames();
+        dataType = data.getDataType();
+        siteModel = (SiteModel) seqSimulator.m_pSiteModelInput.get();
+        substModel = siteModel.getSubstitutionModel();
+        branchRateModel = seqSimulator.m_pBranchRateModelInput.get();
+        sequenceLength = seqSimulator.m_sequenceLengthInput.get();
+        stateCount = data.getMaxStateCount();
+        categoryCount = siteModel.getCategoryCount();
+    }
+
+    /* simulate the alignment along the gene tree with the given root, whose leaves are numbered as the taxa */
+    Alignment simulate(final Node root, final RandomSource random) {
+        final double[] categoryProbs, frequencies;
+        synchronized (siteModel) {
+            synchronized (substModel) {
+                categoryProbs = siteModel.getCategoryProportions(root).clone();
+                frequencies = substModel.getFrequencies().clone();
+            }
+        }
+
+        final int[] categories = new int[sequenceLength];
+        for (int i = 0; i < sequenceLength; i++)
+            categories[i] = random.randomChoicePDF(categoryProbs);
+
+        final int[] rootSequence = new int[sequenceLength];
+        for (int i = 0; i < sequenceLength; i++)
+            rootSequence[i] = random.randomChoicePDF(frequencies);
+
+        final Alignment alignment = new Alignment();
+        alignment.userDataTypeInput.setValue(dataType, alignment);
+        final double[][] probabilities = new double[categoryCount][stateCount * stateCount];
+        traverse(root, rootSequence, categories, probabilities, alignment, random);
+        alignment.initAndValidate();
+        return alignment;
+    }
+
+    // simulate the sequences of the children of the node, and add those of the leaves to the alignment
+    private void traverse(final Node node, final int[] parentSequence, final int[] categories,
+                          final double[][] probabilities, final Alignment alignment, final RandomSource random) {
+        for (Node child : node.getChildren()) {
+            for (int j = 0; j < categoryCount; j++)
+                getTransitionProbabilities(node, child, j, probabilities[j]);
+
+            final int[] sequence = new int[sequenceLength];
+            final double[] cProb = new double[stateCount];
+            for (int i = 0; i < sequenceLength; i++) {
+                final double[] probs = probabilities[categories[i]];
+                System.arraycopy(probs, parentSequence[i] * stateCount, cProb, 0, stateCount);
+                sequence[i] = random.randomChoicePDF(cProb);
+            }
+
+            if (child.isLeaf()) {
+                final Sequence s = new Sequence(taxaNames.get(child.getNr()), dataType.encodingToString(sequence));
+                alignment.sequenceInput.setValue(s, alignment);
+            } else {
+                traverse(child, sequence, categories, probabilities, alignment, random);
+            }
+        }
+    }
+
+    private void getTransitionProbabilities(final Node parent, final Node child, final int category,
+                                            final double[] probs) {
+        synchronized (siteModel) {
+            synchronized (substModel) {
+                final double clockRate;
+                if (branchRateModel == null) {
+                    clockRate = 1.0;
+                } else {
+                    synchronized (branchRateModel) {
+                        clockRate = branchRateModel.getRateForBranch(child);
+                    }
+                }
+                final double branchRate = clockRate * siteModel.getRateForCategory(category, child);
+                substModel.getTransitionProbabilities(child, parent.getHeight(), child.getHeight(), branchRate, probs);
+            }
+        }
+    }
+}
@@ -5,11 +5,9 @@ import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.*;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMultiset;
-import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Multisets;
@@ -20,8 +18,8 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Log;
 import beast.base.inference.Runnable;
-import beast.base.util.HeapSort;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.util.Randomizer;
 import speciesnetwork.Network;
 import speciesnetwork.NetworkNode;
 import speciesnetwork.NetworkParser;
@@ -44,6 +42,12 @@ public class NetworkSummarizer extends Runnable {
             "The number of decimal places to use (default -1 for full precision)", -1);
     public final Input<Boolean> popBubblesInput = new Input<>("popBubbles",
             "Pop network bubbles (parallel edges) before summarizing posterior.", true);
+    public final Input<Boolean> streamingInput = new Input<>("streaming", "Summarize the networks as they are read, " +
+            "keeping only the first network of each topology and the sampled heights and gamma probs (default false). " +
+            "The memory still grows with the number of samples unless maxSamples is set.", false);
+    public final Input<Integer> maxSamplesInput = new Input<>("maxSamples", "The maximum number of values of each " +
+            "node height and gamma prob to keep, as a uniform random sample of them (default 0 to keep all). If there " +
+            "are more values, the median and 95% HPD interval are approximate, while the mean and range are exact.", 0);
 
     private Map<Integer, Integer> rSubnetworks;
     private Table<Integer, Integer, Integer> sSubnetworks;
@@ -51,6 +55,9 @@ public class NetworkSummarizer extends Runnable {
 
     private boolean useMedian;
     private boolean popBubbles;
+    private boolean streaming;
+    private int maxSamples;
+    private boolean approximate;  // whether a median or HPD interval is from a random sample of the values
     private DecimalFormat df;
     private static PrintStream progressStream = Log.info;
 
@@ -60,6 +67,10 @@ public class NetworkSummarizer extends Runnable {
     	sSubnetworks = HashBasedTable.create(); // subnetworks defined by a speciation node
         useMedian = medianInput.get();
         popBubbles = popBubblesInput.get();
+        streaming = streamingInput.get();
+        maxSamples = maxSamplesInput.get();
+        if (maxSamples < 0)
+            throw new IllegalArgumentException("maxSamples must be non-negative!");
 
         int dp = decimalPlacesInput.get();
         if (dp < 0) {
@@ -76,6 +87,7 @@ public class NetworkSummarizer extends Runnable {
         // get the absolute burn-in
         final int burnin = burninInput.get();
         final Multimap<Integer, Network> binnedNetworks = HashMultimap.create();
+        final Map<Integer, TopologySamples> topologies = new LinkedHashMap<>();  // if streaming, in order of appearance
 
         progressStream.print("Parsing network samples ");
         final String inputFileName = inputFileNameInput.get();
@@ -97,7 +109,19 @@ public class NetworkSummarizer extends Runnable {
                     if (numNetworks > burnin) {
                         if (popBubbles) popNetworkBubbles(network);
                         final int networkNr = findSubnetworks(network.getOrigin());
-                        binnedNetworks.put(networkNr, network);  // bin networks by topology
+                        if (streaming) {
+                            // collate the parameters now, and keep the network only if its topology is new
+                            TopologySamples samples = topologies.get(networkNr);
+                            if (samples == null) {
+                                samples = new TopologySamples(network, maxSamples);
+                                topologies.put(networkNr, samples);
+                            }
+                            samples.count++;
+                            network.resetAllVisited();
+                            collateParameters(network.getOrigin(), null, null, samples);
+                        } else {
+                            binnedNetworks.put(networkNr, network);  // bin networks by topology
+                        }
                     }
                     if (numNetworks % 10000 == 0) progressStream.print(".");
                 }
@@ -107,11 +131,6 @@ public class NetworkSummarizer extends Runnable {
         }
         progressStream.println("\nParsed " + numNetworks + " networks totally, " + burnin + " discarded as burn-in.");
 
-        // in descending order of topology frequencies, calculate node summaries
-        final Multiset<Integer> allNetworkNrs = binnedNetworks.keys();
-        final ImmutableMultiset<Integer> orderedNetworkNrs = Multisets.copyHighestCountFirst(allNetworkNrs);
-        final Set<Integer> uniqueNetworkNrs = new LinkedHashSet<>(orderedNetworkNrs);
-
         progressStream.println("Writing summary networks with heights and gamma probs");
         final String outputFileName = outputFileNameInput.get();
         PrintStream out;  // where to print
@@ -125,28 +144,49 @@ public class NetworkSummarizer extends Runnable {
             out = new PrintStream(outputFileName);
         }
 
-        for (Integer networkNr: uniqueNetworkNrs) {
-            final ListMultimap<Integer, Double> networkHeights = ArrayListMultimap.create();
-            final Table<Integer, Integer, List<Double>> networkGammas = HashBasedTable.create();
-
-            for (Network network: binnedNetworks.get(networkNr)) {
-                NetworkNode origin = network.getOrigin();
-                network.resetAllVisited();
-                collateParameters(origin, null, null, networkHeights, networkGammas);
-            }
-
-            for (Network network: binnedNetworks.get(networkNr)) {
-                NetworkNode origin = network.getOrigin();
-                origin.topologySupport = (double) allNetworkNrs.count(networkNr) / (double) allNetworkNrs.size();
-                network.resetAllVisited();
-                summarizeParameters(origin, null, null, networkHeights, networkGammas);
-
-                out.println(network.toString(df) + ";");
-                break;
+        // in descending order of topology frequencies, calculate node summaries
+        if (streaming) {
+            final List<TopologySamples> orderedTopologies = new ArrayList<>(topologies.values());
+            orderedTopologies.sort((a, b) -> Integer.compare(b.count, a.count));
+            int nrOfSamples = 0;
+            for (TopologySamples samples : orderedTopologies)
+                nrOfSamples += samples.count;
+            for (TopologySamples samples : orderedTopologies)
+                writeSummaryNetwork(out, samples, nrOfSamples);
+        } else {
+            final Multiset<Integer> allNetworkNrs = binnedNetworks.keys();
+            final ImmutableMultiset<Integer> orderedNetworkNrs = Multisets.copyHighestCountFirst(allNetworkNrs);
+            final Set<Integer> uniqueNetworkNrs = new LinkedHashSet<>(orderedNetworkNrs);
+
+            for (Integer networkNr: uniqueNetworkNrs) {
+                final Collection<Network> networks = binnedNetworks.get(networkNr);
+                final TopologySamples samples = new TopologySamples(networks.iterator().next(), maxSamples);
+                samples.count = networks.size();
+                for (Network network: networks) {
+                    network.resetAllVisited();
+                    collateParameters(network.getOrigin(), null, null, samples);
+                }
+                writeSummaryNetwork(out, samples, allNetworkNrs.size());
             }
         }
 
         out.close();
+        if (approximate)
+            progressStream.println("The medians and 95% HPD intervals of more than " + maxSamples +
+                                   " values are approximate, from a random sample of " + maxSamples + " values.");
+    }
+
+    /*
+     * Summarize the node heights and gammas into the first network of the topology, and write it
+     */
+    private void writeSummaryNetwork(PrintStream out, TopologySamples samples, int nrOfSamples) {
+        final Network network = samples.network;
+        final NetworkNode origin = network.getOrigin();
+        origin.topologySupport = (double) samples.count / (double) nrOfSamples;
+        network.resetAllVisited();
+        summarizeParameters(origin, null, null, samples);
+
+        out.println(network.toString(df) + ";");
     }
 
     private void popNetworkBubbles(Network network) {
@@ -217,17 +257,20 @@ public class NetworkSummarizer extends Runnable {
      * Collate all node heights and reticulation node gammas, for networks sharing a common topology
      */
     private void collateParameters(NetworkNode node, Integer parentSubnetworkNr, Integer parentBranchNr,
-                                   ListMultimap<Integer, Double> heights, Table<Integer, Integer, List<Double>> gammas) {
+                                   TopologySamples samples) {
         final Integer subnetworkNr = node.subnetworkNr;
 
         if (node.isReticulation()) {
-            if (!gammas.contains(subnetworkNr, parentSubnetworkNr))
-                gammas.put(subnetworkNr, parentSubnetworkNr, new ArrayList<>());
+            Samples gammas = samples.gammas.get(subnetworkNr, parentSubnetworkNr);
+            if (gammas == null) {
+                gammas = new Samples(samples.maxSamples);
+                samples.gammas.put(subnetworkNr, parentSubnetworkNr, gammas);
+            }
             final double nodeGamma = node.getGammaProb();
             if (node.gammaBranchNumber.equals(parentBranchNr))
-                gammas.get(subnetworkNr, parentSubnetworkNr).add(nodeGamma);
+                gammas.add(nodeGamma);
             else
-                gammas.get(subnetworkNr, parentSubnetworkNr).add(1.0 - nodeGamma);
+                gammas.add(1.0 - nodeGamma);
         }
 
         if (node.isVisited())
@@ -235,12 +278,11 @@ public class NetworkSummarizer extends Runnable {
         // mark visited to avoid duplicated recursion
         node.setVisited(true);
 
-        final Double nodeHeight = node.getHeight();
-        heights.put(subnetworkNr, nodeHeight);
+        samples.heights.computeIfAbsent(subnetworkNr, nr -> new Samples(samples.maxSamples)).add(node.getHeight());
 
         for (Integer branchNr : node.childBranchNumbers) {
             final NetworkNode child = node.getChildByBranch(branchNr);
-            collateParameters(child, subnetworkNr, branchNr, heights, gammas);
+            collateParameters(child, subnetworkNr, branchNr, samples);
         }
     }
 
@@ -248,15 +290,18 @@ public class NetworkSummarizer extends Runnable {
      * Summarize the node heights and gammas across all samples sharing the same network topology
      */
     private void summarizeParameters(NetworkNode node, Integer parentSubnetworkNr, Integer parentBranchNr,
-                                     ListMultimap<Integer, Double> heights, Table<Integer, Integer, List<Double>> gammas) {
+                                     TopologySamples samples) {
         final Integer subnetworkNr = node.subnetworkNr;
 
         if (node.isReticulation() && node.gammaBranchNumber.equals(parentBranchNr)) {
-            final List<Double> sampledGammas = gammas.get(subnetworkNr, parentSubnetworkNr);
-            final double meanGamma = calculateMean(sampledGammas);
+            final Samples gammas = samples.gammas.get(subnetworkNr, parentSubnetworkNr);
+            final double[] sampledGammas = gammas.toArray();
+            final double meanGamma = gammas.mean;
+            Arrays.sort(sampledGammas);
             final double medianGamma = calculateMedian(sampledGammas);
             final double[] hpdGamma = calculateHPDInterval(0.95, sampledGammas);
-            final double[] rangeGamma = calculateRange(sampledGammas);
+            final double[] rangeGamma = {gammas.min, gammas.max};
+            approximate |= gammas.isSubsampled();
             node.setMetaData("gamma_mean", meanGamma);
             node.setMetaData("gamma_median", medianGamma);
             node.setMetaData("gamma_95%HPD", new Object[]{hpdGamma[0], hpdGamma[1]});
@@ -274,11 +319,14 @@ public class NetworkSummarizer extends Runnable {
         // mark visited to avoid duplicated recursion
         node.setVisited(true);
 
-        final List<Double> sampledHeights = heights.get(subnetworkNr);
-        final double meanHeight = calculateMean(sampledHeights);
+        final Samples heights = samples.heights.get(subnetworkNr);
+        final double[] sampledHeights = heights.toArray();
+        final double meanHeight = heights.mean;
+        Arrays.sort(sampledHeights);
         final double medianHeight = calculateMedian(sampledHeights);
         final double[] hpdHeight = calculateHPDInterval(0.95, sampledHeights);
-        final double[] rangeHeight = calculateRange(sampledHeights);
+        final double[] rangeHeight = {heights.min, heights.max};
+        approximate |= heights.isSubsampled();
         node.setMetaData("height_mean", meanHeight);
         node.setMetaData("height_median", medianHeight);
         node.setMetaData("height_95%HPD", new Object[]{hpdHeight[0],hpdHeight[1]});
@@ -292,84 +340,115 @@ public class NetworkSummarizer extends Runnable {
 
         for (Integer branchNr: node.childBranchNumbers) {
             final NetworkNode child = node.getChildByBranch(branchNr);
-            summarizeParameters(child, subnetworkNr, branchNr, heights, gammas);
+            summarizeParameters(child, subnetworkNr, branchNr, samples);
         }
     }
 
-    private double calculateMean(List<Double> sample) {
-        double avg = 0.0;
-        int n = 1;
-        for (Double v : sample){
-            avg += (v - avg) / n;
-            n++;
-        }  // more numerically stable
-        return avg;
-    }
-
-    private double calculateMedian(List<Double> sample) {
-        final int length = sample.size();
-        int[] indices = new int[length];
-        HeapSort.sort(sample, indices);
-
+    /* the sample of the following is sorted in ascending order */
+    private double calculateMedian(double[] sorted) {
+        final int length = sorted.length;
         int pos = length / 2;
         if (length % 2 == 1) {
-            return sample.get(indices[pos]);
+            return sorted[pos];
         } else {
-            return (sample.get(indices[pos - 1]) + sample.get(indices[pos])) / 2.0;
+            return (sorted[pos - 1] + sorted[pos]) / 2.0;
         }
     }
 
-    private double[] calculateHPDInterval(double prop, List<Double> sample) {
-        final int length = sample.size();
-        int[] indices = new int[length];
-        HeapSort.sort(sample, indices);
-
+    private double[] calculateHPDInterval(double prop, double[] sorted) {
+        final int length = sorted.length;
         double minRange = Double.MAX_VALUE;
         int hpdIndex = 0;
 
         int diff = (int) Math.round(prop * length);
         for (int i = 0; i <= (length - diff); i++) {
-            double minValue = sample.get(indices[i]);
-            double maxValue = sample.get(indices[i + diff - 1]);
+            double minValue = sorted[i];
+            double maxValue = sorted[i + diff - 1];
             double range = Math.abs(maxValue - minValue);
             if (range < minRange) {
                 minRange = range;
                 hpdIndex = i;
             }
         }
-        double lower = sample.get(indices[hpdIndex]);
-        double upper = sample.get(indices[hpdIndex + diff - 1]);
+        double lower = sorted[hpdIndex];
+        double upper = sorted[hpdIndex + diff - 1];
 
         return new double[]{lower, upper};
     }
 
-    private double[] calculateRange(List<Double> sample) {
-        double min = sample.get(0);
-        double max = min;
-        for (Double v : sample) {
-            if (v > max) max = v;
-            if (v < min) min = v;
-        }
-        return new double[]{min, max};
-    }
-
     // 1st and 3rd quartiles
-    private double[] calculateQuartiles(List<Double> sample) {
-        final int length = sample.size();
-        int[] indices = new int[length];
-        HeapSort.sort(sample, indices);
-
+    private double[] calculateQuartiles(double[] sorted) {
+        final int length = sorted.length;
         int mid = length / 2;
         int pos = mid / 2;
         double first, third;
         if (mid % 2 == 1 || length == 1) {
-            first = sample.get(indices[pos]);
-            third = sample.get(indices[length - pos - 1]);
+            first = sorted[pos];
+            third = sorted[length - pos - 1];
         } else {
-            first = (sample.get(indices[pos - 1]) + sample.get(indices[pos])) / 2.0;
-            third = (sample.get(indices[length - pos - 1]) + sample.get(indices[length - pos])) / 2.0;
+            first = (sorted[pos - 1] + sorted[pos]) / 2.0;
+            third = (sorted[length - pos - 1] + sorted[length - pos]) / 2.0;
         }
 
         return new double[]{first, third};
     }
+
+    /*
+     * The node heights and gammas sampled in the networks sharing a topology, by subnetwork, and the network to summarize
+     */
+    private static final class TopologySamples {
+        final Network network;
+        final int maxSamples;
+        int count;  // number of networks
+        final Map<Integer, Samples> heights = new HashMap<>();
+        final Table<Integer, Integer, Samples> gammas = HashBasedTable.create();
+
+        TopologySamples(Network network, int maxSamples) {
+            this.network = network;
+            this.maxSamples = maxSamples;
+        }
+    }
+
+    /*
+     * The sampled values of a node height or gamma, with their mean and range. All the values are kept in a growing
+     * array, or if maxSize is positive, a uniform random sample of at most maxSize of them (reservoir sampling).
+     */
+    private static final class Samples {
+        private final int maxSize;  // 0 for no limit
+        private double[] values;
+        private int size = 0;
+        private long count = 0;  // number of values added
+        double mean = 0.0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+        Samples(int maxSize) {
+            this.maxSize = maxSize;
+            values = new double[maxSize > 0 ? Math.min(8, maxSize) : 8];
+        }
+
+        void add(double value) {
+            count++;
+            mean += (value - mean) / count;  // more numerically stable
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+
+            if (maxSize == 0 || size < maxSize) {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, maxSize > 0 ? Math.min(2 * size, maxSize) : 2 * size);
+                values[size++] = value;
+            } else {
+                // replace a kept value with prob. maxSize / count
+                final long i = (long) (Randomizer.nextDouble() * count);
+                if (i < maxSize)
+                    values[(int) i] = value;
+            }
+        }
+
+        boolean isSubsampled() {
+            return count > size;
+        }
+
+        double[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
 }
@@ -0,0 +1,160 @@
+package speciesnetwork.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Shared worker threads and deterministic random streams for the parallel parts of this package.
+ * Tasks which need random numbers should not call Randomizer (which is not thread-safe), but draw from their own
+ * stream returned by splitStreams(), so that the results only depend on the seed and not on the number of threads.
+ */
+public final class WorkerPool {
+    // one pool per requested number of threads, with daemon threads so that they never block the exit
+    private static final Map<Integer, ExecutorService> pools = new HashMap<>();
+    private static final List<Long> threadIds = new ArrayList<>();  // of all the worker threads ever started
+
+    private WorkerPool() {
+    }
+
+    /**
+     * @return the number of threads to use if not specified by the user
+     */
+    public static int defaultThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public static synchronized ExecutorService getExecutor(final int nThreads) {
+        return pools.computeIfAbsent(nThreads, n -> Executors.newFixedThreadPool(n, r -> {
+            final Thread thread = new Thread(r, "speciesnetwork-worker");
+            thread.setDaemon(true);
+            synchronized (threadIds) {
+                threadIds.add(thread.getId());
+            }
+            return thread;
+        }));
+    }
+
+    /**
+     * @return the ids of the worker threads started so far, such as to measure what they allocate
+     */
+    public static long[] getThreadIds() {
+        synchronized (threadIds) {
+            return threadIds.stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    /**
+     * run task(0), ..., task(nTasks-1) using nThreads threads and wait for all of them to finish
+     * if nThreads is 1, the tasks are run in order in the calling thread
+     */
+    public static void run(final int nThreads, final int nTasks, final IntConsumer task) {
+        if (nThreads <= 1 || nTasks <= 1) {
+            for (int i = 0; i < nTasks; i++)
+                task.accept(i);
+            return;
+        }
+
+        final ExecutorService executor = getExecutor(nThreads);
+        final List<Future<?>> futures = new ArrayList<>(nTasks);
+        for (int i = 0; i < nTasks; i++) {
+            final int taskNr = i;
+            futures.add(executor.submit(() -> task.accept(taskNr)));
+        }
+        waitFor(futures);
+    }
+
+    /**
+     * run task(0), ..., task(nTasks-1) using nThreads threads, and pass the results to the consumer in the order of the
+     * tasks, in the calling thread, as soon as they and all the tasks before them have finished
+     * at most a few tasks per thread are submitted ahead of the consumer, so that the results kept in memory are bounded
+     */
+    public static <T> void runOrdered(final int nThreads, final int nTasks, final IntFunction<T> task,
+                                      final Consumer<T> consumer) {
+        if (nThreads <= 1 || nTasks <= 1) {
+            for (int i = 0; i < nTasks; i++)
+                consumer.accept(task.apply(i));
+            return;
+        }
+        runOrdered(nThreads, IntStream.range(0, nTasks).iterator(), task::apply, consumer);
+    }
+
+    /**
+     * as above, but with a task for each input of the iterator, which is only advanced in the calling thread when there
+     * is room in the window, so that a long input (such as the lines of a log file) is streamed through the workers
+     */
+    public static <S, T> void runOrdered(final int nThreads, final Iterator<S> inputs, final Function<S, T> task,
+                                         final Consumer<T> consumer) {
+        if (nThreads <= 1) {
+            while (inputs.hasNext())
+                consumer.accept(task.apply(inputs.next()));
+            return;
+        }
+
+        final ExecutorService executor = getExecutor(nThreads);
+        final int window = 4 * nThreads;
+        final ArrayDeque<Future<T>> pending = new ArrayDeque<>(window);
+        try {
+            while (inputs.hasNext() || !pending.isEmpty()) {
+                while (pending.size() < window && inputs.hasNext()) {
+                    final S input = inputs.next();
+                    pending.add(executor.submit(() -> task.apply(input)));
+                }
+                consumer.accept(pending.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } finally {
+            for (Future<T> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    /* wait for all the tasks to finish, and rethrow the first failure */
+    public static void waitFor(final List<? extends Future<?>> futures) {
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) failure = new RuntimeException(e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (failure == null)
+                    failure = cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * @return n independent random streams, the i-th of which only depends on the seed and i
+     */
+    public static SplittableRandom[] splitStreams(final long seed, final int n) {
+        final SplittableRandom root = new SplittableRandom(seed);
+        final SplittableRandom[] streams = new SplittableRandom[n];
+        for (int i = 0; i < n; i++) {
+            streams[i] = root.split();
+        }
+        return streams;
+    }
+}